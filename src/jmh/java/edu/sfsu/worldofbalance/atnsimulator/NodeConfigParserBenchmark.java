@@ -0,0 +1,58 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the scanner of NodeConfigParser with the original tokenizing parser
+ * on node configs of the form used by batches, of a few sizes.
+ * Run with: ./gradlew jmh (adding -PjmhArgs="-prof gc" to also measure allocation)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NodeConfigParserBenchmark {
+
+    @Param({"2", "5", "20"})
+    public int nodeCount;
+
+    private String nodeConfig;
+    private NodeConfigParser parser;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder().append(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            if (i == 0)
+                builder.append(",[3],4112.19,20.0,2,K=3134.36,R=1.0,0");
+            else
+                builder.append(",[").append(i + 50).append("],3975.08,0.213,1,X=0.54461,0");
+        }
+        nodeConfig = builder.toString();
+        parser = new NodeConfigParser(1000);
+    }
+
+    @Benchmark
+    public NodeConfigParser.Result scanner() {
+        return parser.parse(nodeConfig);
+    }
+
+    @Benchmark
+    public NodeConfigParser.Result patterns() {
+        return parser.parseWithPatterns(nodeConfig);
+    }
+}
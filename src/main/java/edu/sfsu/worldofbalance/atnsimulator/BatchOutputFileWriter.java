@@ -0,0 +1,108 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes the data from all simulations of a batch to a single HDF5 output file,
+ * in the order in which they complete. Like any OutputWriter, it should be used by a single thread,
+ * such as the writer stage of a BatchPipeline, which then owns the file.
+ *
+ * The summary of each simulation is stacked in datasets indexed by simulation ID:
+ * /timesteps_simulated, /stop_event (the ordinal of a SimulationEventHandler.EventType, named in /stop_event_names),
+ * /node_offset and /node_count. The final biomass, extinction timesteps and original node IDs of the nodes of all
+ * simulations are concatenated in /final_biomass, /extinction_timesteps and /node_ids,
+ * where simulation s has the node_count[s] elements starting at node_offset[s].
+ * A node count of 0 means that the simulation was not written.
+ *
+ * Everything else about simulation s is written to the group /simulations/s,
+ * laid out as in the files written by OutputFileWriter.
+ * Its biomass is written there as it is recorded, if it was opened by openBiomassSink().
+ */
+public class BatchOutputFileWriter implements OutputWriter {
+
+    public static final String FILENAME = "ATN_batch.h5";
+    public static final int BLOCK_SIZE = 1024;  // Chunk size of the stacked and concatenated datasets
+
+    private IHDF5Writer writer;
+    private OutputFileFormat format;
+    private long nodesWritten;  // Length of the concatenated datasets
+    private Set<Integer> openSimulations = new HashSet<>();  // IDs opened by openBiomassSink() and not yet written
+
+    public BatchOutputFileWriter(File outputDirectory) {
+        this(outputDirectory, new OutputFileFormat());
+    }
+
+    /**
+     * Create the output file in the given directory.
+     * @param outputDirectory the directory in which to create the file
+     * @param format the storage layout of the datasets
+     */
+    public BatchOutputFileWriter(File outputDirectory, OutputFileFormat format) {
+        this.format = format;
+        writer = HDF5Factory.configure(new File(outputDirectory, FILENAME)).writer();
+        HDF5IntStorageFeatures intFeatures = format.intFeatures();
+        writer.int32().createArray("/timesteps_simulated", 0, BLOCK_SIZE, intFeatures);
+        writer.int32().createArray("/stop_event", 0, BLOCK_SIZE, intFeatures);
+        writer.int64().createArray("/node_offset", 0, BLOCK_SIZE, intFeatures);
+        writer.int32().createArray("/node_count", 0, BLOCK_SIZE, intFeatures);
+        writer.float64().createArray("/final_biomass", 0, BLOCK_SIZE, format.floatFeatures());
+        writer.int32().createArray("/extinction_timesteps", 0, BLOCK_SIZE, intFeatures);
+        writer.int32().createArray("/node_ids", 0, BLOCK_SIZE, intFeatures);
+        SimulationEventHandler.EventType[] eventTypes = SimulationEventHandler.EventType.values();
+        String[] eventNames = new String[eventTypes.length];
+        for (int i = 0; i < eventTypes.length; i++)
+            eventNames[i] = eventTypes[i].toString();
+        writer.writeStringArray("/stop_event_names", eventNames);
+    }
+
+    @Override
+    public BiomassSink openBiomassSink(int simulationId, int nodeCount) {
+        String group = "/simulations/" + simulationId;
+        openSimulations.add(simulationId);
+        return new HDF5BiomassSink(writer, group + "/biomass", group + "/biomass_timesteps", nodeCount, format);
+    }
+
+    @Override
+    public void write(OutputFileData data) {
+        boolean biomassWritten = openSimulations.remove(data.simulationId);
+        SimulationResults results = data.simulationResults;
+        int nodeCount = data.originalNodeIds.length;
+        long id = data.simulationId;
+
+        writer.int32().writeArrayBlockWithOffset(
+                "/timesteps_simulated", new int[] {results.timestepsSimulated}, 1, id);
+        writer.int32().writeArrayBlockWithOffset(
+                "/stop_event", new int[] {results.stopEvent.ordinal()}, 1, id);
+        writer.int64().writeArrayBlockWithOffset("/node_offset", new long[] {nodesWritten}, 1, id);
+        writer.float64().writeArrayBlockWithOffset("/final_biomass", results.finalBiomass, nodeCount, nodesWritten);
+        writer.int32().writeArrayBlockWithOffset(
+                "/extinction_timesteps", results.extinctionTimesteps, nodeCount, nodesWritten);
+        writer.int32().writeArrayBlockWithOffset("/node_ids", data.originalNodeIds, nodeCount, nodesWritten);
+        nodesWritten += nodeCount;
+
+        OutputFileWriter.writeDetails(data, writer, "/simulations/" + data.simulationId, !biomassWritten, format);
+
+        // Written last, so that a simulation is only marked as written once all of it is
+        writer.int32().writeArrayBlockWithOffset("/node_count", new int[] {nodeCount}, 1, id);
+    }
+
+    /**
+     * Leave the biomass already written to the group of the simulation, which stays marked as not written.
+     * @param simulationId the ID of the simulation
+     */
+    @Override
+    public void discard(int simulationId) {
+        openSimulations.remove(simulationId);
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+    }
+}
@@ -0,0 +1,466 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the simulations of a batch in a pipeline of three stages connected by bounded queues:
+ * a parse thread turns node configs into simulations, simulation threads run them,
+ * and a writer thread writes their results through an OutputWriter, which it owns.
+ * The simulation threads never touch the output files, so they keep running while results are written,
+ * and submit() blocks while the pipeline is full, so that memory use does not depend on the size of the batch.
+ *
+ * The recorded biomass is not held for the whole of a simulation: each simulation thread passes it to the writer
+ * in chunks of CHUNK_ROWS rows, through the same bounded queue as the completed simulations,
+ * and the writer streams them into the sink opened by OutputWriter.openBiomassSink().
+ * A simulation thread waits while the queue is full, so memory use does not depend on the number of timesteps.
+ *
+ * The simulations are run by a CostAwareScheduler, most expensive first, by a cost estimated from
+ * the size of the subweb and the number of timesteps (see estimateCost()).
+ * A parsed simulation takes little memory until it runs, so the parse stage runs well ahead,
+ * filling a scheduling window much larger than the other queues, within which the simulations are ordered.
+ *
+ * Each stage counts the items it has completed and the time its threads have spent busy,
+ * and getMetrics() reports these along with the number of items waiting in each queue.
+ * A stage that is busy all the time while the queue in front of it is full is the bottleneck of the batch.
+ * It also fits the simulation time to the estimated cost, to show how well the estimate predicts it.
+ *
+ * The parse stage takes the compiled subweb of each node config from a TopologyCache,
+ * so that simulations of the same nodes share it rather than each building it again.
+ */
+public class BatchPipeline {
+
+    public static final int QUEUE_CAPACITY_PER_THREAD = 4;
+    public static final int SCHEDULING_WINDOW_PER_THREAD = 64;
+    public static final int CHUNK_ROWS = 256;  // Rows of biomass passed to the writer at a time
+
+    private static final Job END = new Job();            // Passed along to end the stages
+    private static final Output END_OUTPUT = new Output();
+
+    private TopologyCache topologyCache;
+    private int nodeConfigBiomassScale;
+    private OutputWriter outputWriter;
+
+    private BlockingQueue<Job> parseQueue;
+    private CostAwareScheduler simulationScheduler;
+    private BlockingQueue<Output> outputQueue;
+
+    private Stage parseStage;
+    private Stage simulationStage;
+    private Stage writeStage;
+    private List<Thread> threads = new ArrayList<>();
+    private long startTime;  // System.nanoTime() at start()
+    private ScheduledExecutorService reporter;
+    private CostFit costFit = new CostFit();
+
+    /**
+     * A simulation on its way through the pipeline
+     */
+    private static class Job {
+        int simulationId;
+        String nodeConfig;
+        SimulationParameters simulationParameters;
+        NodeConfigParser.Result parseResult;
+        FoodWebTopology topology;
+        Simulation simulation;
+        double estimatedCost;
+    }
+
+    /**
+     * An item passed to the writer: a chunk of the biomass of a running simulation,
+     * the data from a completed simulation, or (with neither) notice that a simulation failed
+     */
+    private static class Output {
+        int simulationId;
+        int nodeCount;
+        int[] timesteps;              // Timestep of each row of the chunk
+        double[][] biomass;           // Rows of the chunk (null if not a chunk)
+        int rows;                     // Rows of the chunk in use
+        int timestepsSimulated = -1;  // Set on the last chunk of a simulation, to finish its sink
+        OutputFileData data;          // Data from the completed simulation (null if not completed)
+    }
+
+    /**
+     * Passes the biomass recorded by a simulation to the writer a chunk at a time
+     */
+    private class ChunkSink implements BiomassSink {
+        private int simulationId;
+        private int nodeCount;
+        private Output chunk;
+
+        ChunkSink(int simulationId, int nodeCount) {
+            this.simulationId = simulationId;
+            this.nodeCount = nodeCount;
+        }
+
+        /**
+         * @throws CancellationException if the simulation thread has been interrupted,
+         *                               which fails the simulation
+         */
+        @Override
+        public void record(int timestep, double[] biomass) {
+            if (Thread.currentThread().isInterrupted())
+                throw new CancellationException("Simulation " + simulationId + " interrupted");
+            if (chunk == null)
+                chunk = newChunk();
+            chunk.timesteps[chunk.rows] = timestep;
+            System.arraycopy(biomass, 0, chunk.biomass[chunk.rows++], 0, nodeCount);
+            if (chunk.rows == CHUNK_ROWS) {
+                putOutput(chunk);
+                chunk = null;
+            }
+        }
+
+        @Override
+        public void finish(int timesteps) {
+            // Always sent, so that a simulation that recorded nothing still gets its (empty) datasets
+            if (chunk == null)
+                chunk = newChunk();
+            chunk.timestepsSimulated = timesteps;
+            putOutput(chunk);
+            chunk = null;
+        }
+
+        private Output newChunk() {
+            Output output = new Output();
+            output.simulationId = simulationId;
+            output.nodeCount = nodeCount;
+            output.timesteps = new int[CHUNK_ROWS];
+            output.biomass = new double[CHUNK_ROWS][nodeCount];
+            return output;
+        }
+    }
+
+    /**
+     * Counters of the work done by the threads of a stage
+     */
+    private static class Stage {
+        final String name;
+        final int threads;
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong busyTime = new AtomicLong();  // Nanoseconds
+
+        Stage(String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+        }
+    }
+
+    /**
+     * Least-squares fit of the time taken by simulations to their estimated cost,
+     * as a rate (seconds per unit of cost) through the origin, and the correlation between them
+     */
+    private static class CostFit {
+        long n;
+        double sumX, sumY, sumXX, sumYY, sumXY;
+
+        synchronized void add(double cost, double seconds) {
+            n++;
+            sumX += cost;
+            sumY += seconds;
+            sumXX += cost * cost;
+            sumYY += seconds * seconds;
+            sumXY += cost * seconds;
+        }
+
+        synchronized String describe() {
+            double rate = sumXY / sumXX;
+            double correlation = (n * sumXY - sumX * sumY)
+                    / Math.sqrt((n * sumXX - sumX * sumX) * (n * sumYY - sumY * sumY));
+            return String.format("%.3g s per unit of estimated cost, correlation %.2f", rate, correlation);
+        }
+    }
+
+    /**
+     * @param fullFoodWeb the food web of which the node configs describe subwebs
+     * @param nodeConfigBiomassScale the biomass scale of the node configs
+     * @param simulationThreads the number of simulation threads
+     * @param queueCapacity the number of items each queue can hold
+     *                      (simulations, or for the writer, also chunks of CHUNK_ROWS rows of biomass)
+     * @param schedulingWindow the number of parsed simulations that can wait to run,
+     *                         among which the most expensive runs first
+     * @param outputWriter writes the results, from the writer thread only, and is closed when the pipeline finishes
+     */
+    public BatchPipeline(
+            FoodWeb fullFoodWeb,
+            int nodeConfigBiomassScale,
+            int simulationThreads,
+            int queueCapacity,
+            int schedulingWindow,
+            OutputWriter outputWriter) {
+        this(new TopologyCache(fullFoodWeb, TopologyCache.DEFAULT_CAPACITY),
+                nodeConfigBiomassScale, simulationThreads, queueCapacity, schedulingWindow, outputWriter);
+    }
+
+    /**
+     * @param topologyCache the cache of compiled subwebs of the food web of which the node configs describe subwebs
+     * @param nodeConfigBiomassScale the biomass scale of the node configs
+     * @param simulationThreads the number of simulation threads
+     * @param queueCapacity the number of items each queue can hold
+     *                      (simulations, or for the writer, also chunks of CHUNK_ROWS rows of biomass)
+     * @param schedulingWindow the number of parsed simulations that can wait to run,
+     *                         among which the most expensive runs first
+     * @param outputWriter writes the results, from the writer thread only, and is closed when the pipeline finishes
+     */
+    public BatchPipeline(
+            TopologyCache topologyCache,
+            int nodeConfigBiomassScale,
+            int simulationThreads,
+            int queueCapacity,
+            int schedulingWindow,
+            OutputWriter outputWriter) {
+        this.topologyCache = topologyCache;
+        this.nodeConfigBiomassScale = nodeConfigBiomassScale;
+        this.outputWriter = outputWriter;
+        parseQueue = new ArrayBlockingQueue<>(queueCapacity);
+        simulationScheduler = new CostAwareScheduler(simulationThreads, schedulingWindow);
+        outputQueue = new ArrayBlockingQueue<>(queueCapacity);
+        parseStage = new Stage("parse", 1);
+        simulationStage = new Stage("simulate", simulationThreads);
+        writeStage = new Stage("write", 1);
+    }
+
+    /**
+     * Start the threads of the pipeline.
+     * @param reportInterval seconds between metrics reports printed to standard output (0 for none)
+     */
+    public void start(int reportInterval) {
+        startTime = System.nanoTime();
+        threads.add(new Thread(this::parse, "BatchPipeline-parse"));
+        threads.add(new Thread(this::write, "BatchPipeline-write"));
+        for (Thread thread : threads)
+            thread.start();
+
+        if (reportInterval > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate(
+                    () -> System.out.println(getMetrics()), reportInterval, reportInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Queue a simulation of the given node config, waiting while the pipeline is full.
+     * @param simulationId the ID of the simulation
+     * @param simulationParameters the parameters of the simulation
+     * @param nodeConfig the node config
+     */
+    public void submit(int simulationId, SimulationParameters simulationParameters, String nodeConfig)
+            throws InterruptedException {
+        Job job = new Job();
+        job.simulationId = simulationId;
+        job.simulationParameters = simulationParameters;
+        job.nodeConfig = nodeConfig;
+        parseQueue.put(job);
+    }
+
+    /**
+     * Wait for every simulation submitted to be written, and close the output writer.
+     */
+    public void finish() throws InterruptedException {
+        parseQueue.put(END);
+        for (Thread thread : threads)
+            thread.join();
+        if (reporter != null)
+            reporter.shutdownNow();
+        System.out.println(getMetrics());
+    }
+
+    /**
+     * Estimate the cost of a simulation, in proportion to the number of derivative evaluations it would take
+     * to run for all of its timesteps (one per timestep, at a steady step size) times the cost of each,
+     * which is linear in the number of nodes and links.
+     *
+     * The estimate is only a key by which to order the simulations, not a prediction of their time:
+     * a simulation that stops early, at a steady state or after total extinction, costs much less,
+     * and that can't be known before it runs. Scaling the estimates by the fitted rate (see getMetrics())
+     * would not change their order, so the fit is only reported.
+     * @param topology the compiled subweb simulated
+     * @param simulationParameters the parameters of the simulation
+     * @return the estimated cost, in units of one node or link per timestep
+     */
+    public static double estimateCost(FoodWebTopology topology, SimulationParameters simulationParameters) {
+        return (double) (topology.nodeCount + topology.linkCount) * simulationParameters.timesteps;
+    }
+
+    /**
+     * @return the number of simulations completed and failed, the throughput and the fraction of time busy
+     * of each stage, the number of items in each queue, the hits and misses of the topology cache,
+     * and the fit of the time taken by the simulations to their estimated cost
+     */
+    public String getMetrics() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        StringBuilder metrics = new StringBuilder("Pipeline after " + String.format("%.1f", seconds) + " s:");
+        for (Stage stage : new Stage[] {parseStage, simulationStage, writeStage}) {
+            metrics.append(String.format(" %s %d done, %d failed, %.1f/s, %.0f%% busy;",
+                    stage.name,
+                    stage.completed.get(),
+                    stage.failed.get(),
+                    stage.completed.get() / seconds,
+                    100 * stage.busyTime.get() / 1e9 / seconds / stage.threads));
+        }
+        metrics.append(String.format(" queues: parse %d/%d, simulate %d/%d, write %d/%d",
+                parseQueue.size(), parseQueue.size() + parseQueue.remainingCapacity(),
+                simulationScheduler.getWaitingCount(), simulationScheduler.getCapacity(),
+                outputQueue.size(), outputQueue.size() + outputQueue.remainingCapacity()));
+        metrics.append(String.format("; topology cache %d hits, %d misses",
+                topologyCache.getHitCount(), topologyCache.getMissCount()));
+        if (costFit.n > 1)
+            metrics.append("; ").append(costFit.describe());
+        return metrics.toString();
+    }
+
+    private void parse() {
+        NodeConfigParser parser = new NodeConfigParser(nodeConfigBiomassScale);
+        try {
+            while (true) {
+                Job job = parseQueue.take();
+                if (job == END)
+                    break;
+                long start = System.nanoTime();
+                try {
+                    job.parseResult = parser.parse(job.nodeConfig);
+                    job.topology = topologyCache.get(job.parseResult.nodeIds);
+                    job.simulation = BatchSimulationTask.createSimulation(
+                            job.topology, job.parseResult, job.simulationParameters);
+                    job.estimatedCost = estimateCost(job.topology, job.simulationParameters);
+                    parseStage.completed.incrementAndGet();
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to parse simulation " + job.simulationId + ": " + e);
+                    parseStage.failed.incrementAndGet();
+                    job = null;
+                }
+                parseStage.busyTime.addAndGet(System.nanoTime() - start);
+                if (job != null) {
+                    Job parsed = job;
+                    simulationScheduler.submit(job.estimatedCost, () -> simulate(parsed));
+                }
+            }
+            simulationScheduler.shutdown();
+            outputQueue.put(END_OUTPUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void simulate(Job job) {
+        System.out.println("Running simulation " + job.simulationId);
+        long start = System.nanoTime();
+        OutputFileData data = null;
+        Throwable failure = null;
+        try {
+            if (job.simulationParameters.recordBiomass)
+                job.simulation.setBiomassSink(new ChunkSink(job.simulationId, job.parseResult.initialBiomass.length));
+            job.simulation.run();
+            data = new OutputFileData();
+            data.simulationId = job.simulationId;
+            data.simulationResults = job.simulation.getResults();
+            data.nodeConfig = job.nodeConfig;
+            data.nodeConfigBiomassScale = nodeConfigBiomassScale;
+            data.originalNodeIds = job.parseResult.nodeIds;
+            data.originalSubweb = job.topology.subweb;
+            simulationStage.completed.incrementAndGet();
+        } catch (Throwable e) {
+            System.err.println("Simulation " + job.simulationId + " failed: " + e);
+            simulationStage.failed.incrementAndGet();
+            failure = e;
+        }
+        long time = System.nanoTime() - start;
+        simulationStage.busyTime.addAndGet(time);
+
+        Output output = new Output();
+        output.simulationId = job.simulationId;
+        if (data != null) {
+            costFit.add(job.estimatedCost, time / 1e9);
+            output.data = data;
+        }
+        putOutput(output);  // If the simulation failed, the writer discards any biomass already passed to it
+        if (failure instanceof Error)
+            throw (Error) failure;
+    }
+
+    /**
+     * Pass an item to the writer, waiting while its queue is full.
+     * The item is passed even if the thread is interrupted while waiting,
+     * because the writer must see the outcome of every simulation whose biomass it has been passed,
+     * and the interrupt is kept, so that the simulation fails at its next chunk.
+     */
+    private void putOutput(Output output) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                outputQueue.put(output);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Stream a chunk of biomass into the sink of its simulation, opening the sink with the first chunk.
+     */
+    private void writeChunk(Output chunk, Map<Integer, BiomassSink> sinks) {
+        BiomassSink sink = sinks.get(chunk.simulationId);
+        if (sink == null) {
+            sink = outputWriter.openBiomassSink(chunk.simulationId, chunk.nodeCount);
+            sinks.put(chunk.simulationId, sink);
+        }
+        for (int r = 0; r < chunk.rows; r++)
+            sink.record(chunk.timesteps[r], chunk.biomass[r]);
+        if (chunk.timestepsSimulated >= 0)
+            sink.finish(chunk.timestepsSimulated);
+    }
+
+    private void write() {
+        Map<Integer, BiomassSink> sinks = new HashMap<>();  // Sinks of the simulations being streamed, by ID
+        Set<Integer> failedWrites = new HashSet<>();          // Simulations whose biomass failed to be written
+        try {
+            while (true) {
+                Output output = outputQueue.take();
+                if (output == END_OUTPUT)
+                    break;
+                long start = System.nanoTime();
+                int id = output.simulationId;
+                try {
+                    if (output.biomass != null) {
+                        if (!failedWrites.contains(id))
+                            writeChunk(output, sinks);
+                    } else if (output.data != null && !failedWrites.remove(id)) {
+                        sinks.remove(id);
+                        outputWriter.write(output.data);
+                        writeStage.completed.incrementAndGet();
+                    } else {
+                        // The simulation failed, or its biomass could not be written
+                        failedWrites.remove(id);
+                        if (sinks.remove(id) != null)
+                            outputWriter.discard(id);
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to write simulation " + id + ": " + e);
+                    writeStage.failed.incrementAndGet();
+                    if (output.biomass != null)
+                        failedWrites.add(id);  // Skip the rest of it, and discard it once it completes
+                }
+                writeStage.busyTime.addAndGet(System.nanoTime() - start);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            outputWriter.close();
+        }
+    }
+}
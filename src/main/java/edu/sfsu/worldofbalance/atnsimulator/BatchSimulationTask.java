@@ -5,6 +5,7 @@ import java.io.File;
 /**
  * Runs a single simulation from a node config string
  * and saves the results to a file.
+ * Batches are run by BatchPipeline, which writes the results from a thread of its own.
  */
 public class BatchSimulationTask implements Runnable {
 
@@ -14,6 +15,7 @@ public class BatchSimulationTask implements Runnable {
     private String nodeConfig;
     private int nodeConfigBiomassScale;
     private File outputDirectory;
+    private OutputFileFormat outputFileFormat;
 
     public BatchSimulationTask(
             FoodWeb fullFoodWeb,
@@ -22,12 +24,25 @@ public class BatchSimulationTask implements Runnable {
             String nodeConfig,
             int nodeConfigBiomassScale,
             File outputDirectory) {
+        this(fullFoodWeb, simulationId, simulationParameters, nodeConfig, nodeConfigBiomassScale,
+                outputDirectory, new OutputFileFormat());
+    }
+
+    public BatchSimulationTask(
+            FoodWeb fullFoodWeb,
+            int simulationId,
+            SimulationParameters simulationParameters,
+            String nodeConfig,
+            int nodeConfigBiomassScale,
+            File outputDirectory,
+            OutputFileFormat outputFileFormat) {
         this.fullFoodWeb = fullFoodWeb;
         this.simulationId = simulationId;
         this.simulationParameters = simulationParameters;
         this.nodeConfig = nodeConfig;
         this.nodeConfigBiomassScale = nodeConfigBiomassScale;
         this.outputDirectory = outputDirectory;
+        this.outputFileFormat = outputFileFormat;
     }
 
     @Override
@@ -37,13 +52,13 @@ public class BatchSimulationTask implements Runnable {
         NodeConfigParser parser = new NodeConfigParser(nodeConfigBiomassScale);
         NodeConfigParser.Result parseResult = parser.parse(nodeConfig);
 
-        FoodWeb subweb = fullFoodWeb.subweb(parseResult.nodeIds);
-        FoodWeb normalizedSubweb = subweb.normalizedCopy(parseResult.nodeIds);
-        parseResult.parameters.applyFoodWebDependentDefaults(normalizedSubweb);
-        parseResult.parameters.calculateSystemCarryingCapacity();
+        FoodWebTopology topology = new FoodWebTopology(fullFoodWeb, parseResult.nodeIds);
+        Simulation simulation = createSimulation(topology, parseResult, simulationParameters);
 
-        ModelEquations equations = new ModelEquations(normalizedSubweb, parseResult.parameters);
-        Simulation simulation = new Simulation(simulationParameters, equations, parseResult.initialBiomass);
+        // Stream the biomass into the output file, so that it is not all held in memory
+        OutputFileWriter writer = new OutputFileWriter(outputDirectory, outputFileFormat);
+        if (simulationParameters.recordBiomass)
+            simulation.setBiomassSink(writer.openBiomassSink(simulationId, parseResult.initialBiomass.length));
 
         simulation.run();
 
@@ -53,8 +68,22 @@ public class BatchSimulationTask implements Runnable {
         data.nodeConfig = nodeConfig;
         data.nodeConfigBiomassScale = nodeConfigBiomassScale;
         data.originalNodeIds = parseResult.nodeIds;
-        data.originalSubweb = subweb;
-        OutputFileWriter writer = new OutputFileWriter(outputDirectory);
+        data.originalSubweb = topology.subweb;
         writer.write(data);
     }
+
+    /**
+     * Set up a simulation of a compiled subweb, such as one shared through a TopologyCache,
+     * with the parameters and initial biomass from a parsed node config.
+     */
+    static Simulation createSimulation(
+            FoodWebTopology topology,
+            NodeConfigParser.Result parseResult,
+            SimulationParameters simulationParameters) {
+        parseResult.parameters.applyFoodWebDependentDefaults(topology.normalizedSubweb);
+        parseResult.parameters.calculateSystemCarryingCapacity();
+
+        ModelEquations equations = new ModelEquations(topology, parseResult.parameters);
+        return new Simulation(simulationParameters, equations, parseResult.initialBiomass);
+    }
 }
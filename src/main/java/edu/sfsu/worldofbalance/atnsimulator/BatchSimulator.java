@@ -4,17 +4,21 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.Scanner;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
 
 public class BatchSimulator {
 
+    private static final String AUTO_INTEGRATOR = "auto";
+    private static final String STANDARD_INPUT = "-";
+
     private static FoodWeb serengeti;
 
     public static void main(String[] args) {
@@ -36,44 +40,131 @@ public class BatchSimulator {
     }
 
     private static void runBatch(CommandLineArguments arguments) {
-        Scanner input;
-        try {
-            input = new Scanner(arguments.nodeConfigFile);
+        // Node configs are read a line at a time as the pipeline takes them, from the file or standard input
+        if (arguments.nodeConfigFile == null || arguments.nodeConfigFile.getPath().equals(STANDARD_INPUT)) {
+            runBatch(arguments, new BufferedReader(new InputStreamReader(System.in)));
+            return;
+        }
+        try (BufferedReader input = new BufferedReader(new FileReader(arguments.nodeConfigFile))) {
+            runBatch(arguments, input);
         } catch (FileNotFoundException ex) {
             System.err.println("Input file " + arguments.nodeConfigFile + " not found");
-            return;
+        } catch (IOException e) {
+            System.err.println("Error closing " + arguments.nodeConfigFile + ": " + e.getMessage());
         }
+    }
 
+    private static void runBatch(CommandLineArguments arguments, BufferedReader input) {
         if (!arguments.outputDirectory.exists())
             arguments.outputDirectory.mkdirs();
 
-        ExecutorService executorService = Executors.newFixedThreadPool(arguments.threads);
-
         readSerengetiFoodWeb();
+
+        // Lines read ahead of the main loop for calibration
+        List<String> sampleNodeConfigs = new ArrayList<>();
+
+        SimulationParameters.IntegratorType integratorType;
+        if (arguments.integrator.equalsIgnoreCase(AUTO_INTEGRATOR)) {
+            try {
+                String line;
+                while (sampleNodeConfigs.size() < arguments.calibrationSampleSize
+                        && (line = input.readLine()) != null)
+                    sampleNodeConfigs.add(line);
+            } catch (IOException e) {
+                System.err.println("Error reading node configs: " + e.getMessage());
+                return;
+            }
+            integratorType = calibrateIntegrator(arguments, sampleNodeConfigs);
+        } else {
+            try {
+                integratorType = SimulationParameters.IntegratorType.valueOf(arguments.integrator.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown integrator " + arguments.integrator);
+                return;
+            }
+        }
+
+        OutputFileFormat outputFileFormat = new OutputFileFormat();
+        outputFileFormat.chunkRows = arguments.chunkRows;
+        outputFileFormat.deflateLevel = arguments.deflateLevel;
+        OutputWriter outputWriter = arguments.batchOutputFile
+                ? new BatchOutputFileWriter(arguments.outputDirectory, outputFileFormat)
+                : new OutputFileWriter(arguments.outputDirectory, outputFileFormat);
+
+        BatchPipeline pipeline = new BatchPipeline(
+                new TopologyCache(serengeti, arguments.topologyCacheSize),
+                arguments.nodeConfigBiomassScale,
+                arguments.threads,
+                arguments.queueCapacity > 0
+                        ? arguments.queueCapacity : BatchPipeline.QUEUE_CAPACITY_PER_THREAD * arguments.threads,
+                arguments.schedulingWindow > 0
+                        ? arguments.schedulingWindow
+                        : BatchPipeline.SCHEDULING_WINDOW_PER_THREAD * arguments.threads,
+                outputWriter);
+        pipeline.start(arguments.metricsInterval);
+
+        // Simulations only read their parameters, so all of them share one instance
+        SimulationParameters parameters = createSimulationParameters(arguments);
+        parameters.integratorType = integratorType;
+
+        // submit() waits while the pipeline is full, so only as many lines are read as it can hold
         int simulationId = 0;
         System.out.println();
-        while (input.hasNextLine()) {
-            SimulationParameters parameters = new SimulationParameters();
-            parameters.timesteps = arguments.timesteps;
-            parameters.stepSize = arguments.stepSize;
-            parameters.stopOnSteadyState = !arguments.noStopOnSteadyState;
-            parameters.recordBiomass = !arguments.noRecordBiomass;
-            String nodeConfig = input.nextLine();
-
-            BatchSimulationTask task = new BatchSimulationTask(
-                    serengeti,
-                    simulationId,
-                    parameters,
-                    nodeConfig,
-                    arguments.nodeConfigBiomassScale,
-                    arguments.outputDirectory);
-
-            executorService.execute(task);
-
-            simulationId++;
+        try {
+            for (String nodeConfig : sampleNodeConfigs)
+                pipeline.submit(simulationId++, parameters, nodeConfig);
+            sampleNodeConfigs.clear();
+            String nodeConfig;
+            while ((nodeConfig = input.readLine()) != null)
+                pipeline.submit(simulationId++, parameters, nodeConfig);
+        } catch (IOException e) {
+            System.err.println("Error reading node configs: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
         }
 
-        shutdownAndAwaitTermination(executorService);
+        try {
+            pipeline.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static SimulationParameters createSimulationParameters(CommandLineArguments arguments) {
+        SimulationParameters parameters = new SimulationParameters();
+        parameters.timesteps = arguments.timesteps;
+        parameters.stepSize = arguments.stepSize;
+        parameters.stopOnSteadyState = !arguments.noStopOnSteadyState;
+        parameters.recordBiomass = !arguments.noRecordBiomass;
+        if (!arguments.recordTimesteps.isEmpty())
+            parameters.recordingSchedule = RecordingSchedule.at(
+                    arguments.recordTimesteps.stream().mapToInt(t -> t).toArray());
+        else if (arguments.recordLogSpaced > 0)
+            parameters.recordingSchedule = RecordingSchedule.logSpaced(arguments.recordLogSpaced);
+        else
+            parameters.recordingSchedule = RecordingSchedule.every(arguments.recordInterval);
+        parameters.recordingAbsoluteTolerance = arguments.recordingAbsoluteTolerance;
+        parameters.recordingRelativeTolerance = arguments.recordingRelativeTolerance;
+        parameters.removeExtinctNodes = arguments.removeExtinctNodes;
+        parameters.solveForEquilibrium = arguments.solveForEquilibrium;
+        parameters.analyzeStability = arguments.stabilityAnalysis;
+        parameters.absoluteTolerance = arguments.absoluteTolerance;
+        parameters.relativeTolerance = arguments.relativeTolerance;
+        return parameters;
+    }
+
+    private static SimulationParameters.IntegratorType calibrateIntegrator(
+            CommandLineArguments arguments, List<String> sampleNodeConfigs) {
+        System.out.println("Calibrating integrator on " + sampleNodeConfigs.size() + " node configs");
+        IntegratorCalibrator calibrator = new IntegratorCalibrator(
+                serengeti,
+                createSimulationParameters(arguments),
+                arguments.nodeConfigBiomassScale,
+                arguments.calibrationTolerance);
+        IntegratorCalibrator.Result result = calibrator.calibrate(sampleNodeConfigs);
+        System.out.println(result);
+        return result.chosen;
     }
 
     private static void readSerengetiFoodWeb() {
@@ -82,30 +173,12 @@ public class BatchSimulator {
         serengeti = FoodWeb.createFromJson(reader);
     }
 
-    // From Java 8 API documentation for ExecutorService
-    private static void shutdownAndAwaitTermination(ExecutorService pool) {
-        pool.shutdown(); // Disable new tasks from being submitted
-        try {
-            // Wait a while for existing tasks to terminate
-            if (!pool.awaitTermination(1000, TimeUnit.DAYS)) {
-                pool.shutdownNow(); // Cancel currently executing tasks
-                // Wait a while for tasks to respond to being cancelled
-                if (!pool.awaitTermination(60, TimeUnit.SECONDS))
-                    System.err.println("Pool did not terminate");
-            }
-        } catch (InterruptedException ie) {
-            // (Re-)Cancel if current thread also interrupted
-            pool.shutdownNow();
-            // Preserve interrupt status
-            Thread.currentThread().interrupt();
-        }
-    }
-
     private static class CommandLineArguments {
         @Parameter(names = {"-h", "--help"}, help = true)
         private boolean help;
 
-        @Parameter(names = {"-n", "--node-config-file"}, description = "Node config file", required = true)
+        @Parameter(names = {"-n", "--node-config-file"},
+                description = "Node config file, one per line (- or omitted to read them from standard input)")
         private File nodeConfigFile;
 
         @Parameter(names = {"-b", "--node-config-biomass-scale"}, description = "Node config biomass scale")
@@ -126,7 +199,90 @@ public class BatchSimulator {
         @Parameter(names = {"-r", "--no-record-biomass"}, description = "Do not record biomass data")
         private boolean noRecordBiomass = false;
 
+        @Parameter(names = {"-R", "--record-interval"}, description = "Timesteps between recorded biomass samples")
+        private Integer recordInterval = 1;
+
+        @Parameter(names = {"-L", "--record-log-spaced"},
+                description = "Record biomass at log-spaced timesteps, with this many samples per decade")
+        private Integer recordLogSpaced = 0;
+
+        @Parameter(names = {"-P", "--record-timesteps"},
+                description = "Comma-separated list of the timesteps at which to record biomass")
+        private List<Integer> recordTimesteps = new ArrayList<>();
+
+        @Parameter(names = {"--recording-absolute-tolerance"},
+                description = "Record biomass only when some node has changed by more than this much (plus the "
+                        + "relative tolerance) since the last recorded timestep")
+        private Double recordingAbsoluteTolerance = 0.0;
+
+        @Parameter(names = {"--recording-relative-tolerance"},
+                description = "Record biomass only when some node has changed by more than this fraction (plus the "
+                        + "absolute tolerance) since the last recorded timestep")
+        private Double recordingRelativeTolerance = 0.0;
+
+        @Parameter(names = {"-k", "--remove-extinct-nodes"},
+                description = "Continue with a reduced system of the surviving nodes after extinctions")
+        private boolean removeExtinctNodes = false;
+
+        @Parameter(names = {"-q", "--solve-for-equilibrium"},
+                description = "Stop at a stable equilibrium found by solving for it rather than by integrating to it")
+        private boolean solveForEquilibrium = false;
+
+        @Parameter(names = {"--stability-analysis"},
+                description = "Classify the final state by the eigenvalues of the Jacobian")
+        private boolean stabilityAnalysis = false;
+
+        @Parameter(names = {"-I", "--integrator"},
+                description = "Integration method: GRAGG_BULIRSCH_STOER, DORMAND_PRINCE_853, DORMAND_PRINCE_54, "
+                        + "ROSENBROCK, STIFFNESS_SWITCHING, or auto to choose by calibration")
+        private String integrator = SimulationParameters.IntegratorType.GRAGG_BULIRSCH_STOER.toString();
+
+        @Parameter(names = {"-a", "--absolute-tolerance"}, description = "Allowed absolute error per integration step")
+        private Double absoluteTolerance = ModelEquations.EXTINCT;
+
+        @Parameter(names = {"-e", "--relative-tolerance"}, description = "Allowed relative error per integration step")
+        private Double relativeTolerance = 1.0e-10;
+
+        @Parameter(names = {"-s", "--calibration-sample-size"},
+                description = "Number of node configs to run with each integrator in auto mode")
+        private Integer calibrationSampleSize = 10;
+
+        @Parameter(names = {"-x", "--calibration-tolerance"},
+                description = "Maximum relative error in final biomass for an integrator to be chosen in auto mode")
+        private Double calibrationTolerance = 1.0e-4;
+
         @Parameter(names = {"-T", "--threads"}, description = "Number of simulation threads")
         private Integer threads = 4;
+
+        @Parameter(names = {"-B", "--batch-output-file"},
+                description = "Write all simulations to a single file, " + BatchOutputFileWriter.FILENAME
+                        + ", rather than a file per simulation")
+        private boolean batchOutputFile = false;
+
+        @Parameter(names = {"-C", "--chunk-rows"}, description = "Rows of biomass per chunk of the output files")
+        private Integer chunkRows = HDF5BiomassSink.BLOCK_ROWS;
+
+        @Parameter(names = {"-z", "--deflate-level"},
+                description = "Compress the biomass and link parameters of the output files with this deflate level "
+                        + "(1-9), after byte shuffling, or 0 for no compression")
+        private Integer deflateLevel = 0;
+
+        @Parameter(names = {"-M", "--metrics-interval"},
+                description = "Seconds between reports of the throughput and queue depths of the pipeline (0 for none)")
+        private Integer metricsInterval = 10;
+
+        @Parameter(names = {"-Q", "--queue-capacity"},
+                description = "Simulations each queue of the pipeline can hold before the stage feeding it waits "
+                        + "(default " + BatchPipeline.QUEUE_CAPACITY_PER_THREAD + " per thread)")
+        private Integer queueCapacity = 0;
+
+        @Parameter(names = {"--scheduling-window"},
+                description = "Parsed simulations that can wait to run, among which the most expensive runs first "
+                        + "(default " + BatchPipeline.SCHEDULING_WINDOW_PER_THREAD + " per thread)")
+        private Integer schedulingWindow = 0;
+
+        @Parameter(names = {"-K", "--topology-cache-size"},
+                description = "Number of distinct node sets whose compiled subwebs are kept for reuse (0 for none)")
+        private Integer topologyCacheSize = TopologyCache.DEFAULT_CAPACITY;
     }
 }
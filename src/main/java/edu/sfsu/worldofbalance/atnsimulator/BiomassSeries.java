@@ -0,0 +1,115 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import java.util.Arrays;
+
+/**
+ * A biomass time series held in memory as 32-bit floats, in a single flat array in row-major order:
+ * the biomass of node i in row r is element r * nodeCount + i.
+ * Row r is the biomass at timestep getTimestep(r), which is timestep r if every timestep is recorded.
+ *
+ * The arrays start small and double in capacity as rows are recorded,
+ * so the series takes no more than twice the space of the rows recorded, with no per-row overhead,
+ * and is already in the precision of the output files.
+ * Finishing the series trims the arrays to the rows recorded.
+ */
+public class BiomassSeries implements BiomassSink {
+
+    public static final int INITIAL_CAPACITY = 64;  // Rows
+
+    private int nodeCount;
+    private float[] data;
+    private int[] timesteps;  // Timestep of each row
+    private int size;         // Rows recorded
+
+    /**
+     * @param nodeCount number of nodes
+     */
+    public BiomassSeries(int nodeCount) {
+        this.nodeCount = nodeCount;
+        data = new float[INITIAL_CAPACITY * nodeCount];
+        timesteps = new int[INITIAL_CAPACITY];
+    }
+
+    @Override
+    public void record(int timestep, double[] biomass) {
+        if (size == timesteps.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, 2 * size);
+            timesteps = Arrays.copyOf(timesteps, capacity);
+            data = Arrays.copyOf(data, capacity * nodeCount);
+        }
+        timesteps[size] = timestep;
+        int offset = size * nodeCount;
+        for (int i = 0; i < nodeCount; i++)
+            data[offset + i] = (float) biomass[i];
+        size++;
+    }
+
+    @Override
+    public void finish(int timestepsSimulated) {
+        while (size > 0 && timesteps[size - 1] >= timestepsSimulated)
+            size--;
+        if (timesteps.length != size) {
+            timesteps = Arrays.copyOf(timesteps, size);
+            data = Arrays.copyOf(data, size * nodeCount);
+        }
+    }
+
+    /**
+     * @return the number of rows (timesteps) recorded
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the timestep at which the given row was recorded
+     */
+    public int getTimestep(int row) {
+        checkRow(row);
+        return timesteps[row];
+    }
+
+    /**
+     * @return the biomass of node nodeId in the given row
+     */
+    public double get(int row, int nodeId) {
+        checkRow(row);
+        return data[row * nodeCount + nodeId];
+    }
+
+    /**
+     * @return a copy of the biomass of each node in the given row
+     */
+    public double[] getRow(int row) {
+        checkRow(row);
+        double[] biomass = new double[nodeCount];
+        for (int i = 0; i < nodeCount; i++)
+            biomass[i] = data[row * nodeCount + i];
+        return biomass;
+    }
+
+    /**
+     * @return the underlying array, of which the first size() * getNodeCount() elements are the rows recorded
+     * (exactly those once the series is finished)
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the underlying array of the timestep of each row, of which the first size() elements are used
+     * (exactly those once the series is finished)
+     */
+    public int[] getTimesteps() {
+        return timesteps;
+    }
+
+    private void checkRow(int row) {
+        if (row >= size)
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+    }
+}
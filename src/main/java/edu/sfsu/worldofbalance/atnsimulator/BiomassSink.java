@@ -0,0 +1,25 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+/**
+ * Receives the biomass of each node at each recorded timestep of a simulation, in increasing order of timestep,
+ * so that the biomass time series need not be held in memory for the whole simulation.
+ */
+public interface BiomassSink {
+
+    /**
+     * Record the biomass of each node at a timestep later than any recorded before.
+     * The array is owned by the caller and may be changed after this returns.
+     *
+     * @param timestep the timestep
+     * @param biomass the biomass of each node at the timestep
+     */
+    void record(int timestep, double[] biomass);
+
+    /**
+     * Finish recording, discarding any timesteps recorded at or after the given number of timesteps
+     * (only the last timestep recorded can be, since the simulation stops within the timestep after it).
+     *
+     * @param timesteps the number of timesteps simulated
+     */
+    void finish(int timesteps);
+}
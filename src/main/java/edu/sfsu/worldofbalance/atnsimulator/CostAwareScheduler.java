@@ -0,0 +1,121 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs independent tasks of varying cost on a fixed number of worker threads, most expensive first,
+ * so that the cheap tasks fill in around the expensive ones at the end rather than an expensive task
+ * starting last and running alone while the other workers are idle.
+ *
+ * Submitted tasks wait in a window of limited capacity, ordered by decreasing estimated cost
+ * (and by submission order among equal costs). A worker takes the most expensive waiting task
+ * only when it becomes free, so the order is decided as late as possible.
+ * submit() waits while the window is full, so tasks can only be ordered within the window:
+ * it should hold many more tasks than there are workers, for the ordering to matter.
+ *
+ * A task that throws a RuntimeException is logged, and the worker goes on to the next task.
+ * An Error is logged and rethrown, which ends the worker.
+ */
+public class CostAwareScheduler {
+
+    private PriorityBlockingQueue<Entry> waiting = new PriorityBlockingQueue<>();
+    private Semaphore capacity;  // Free places in the window
+    private List<Thread> workers = new ArrayList<>();
+    private long submitted;      // Number of tasks submitted
+
+    /**
+     * A task waiting to run
+     */
+    private static class Entry implements Comparable<Entry> {
+        final double cost;
+        final long sequence;
+        final Runnable task;  // null to end a worker
+
+        Entry(double cost, long sequence, Runnable task) {
+            this.cost = cost;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int byCost = Double.compare(other.cost, cost);
+            return byCost != 0 ? byCost : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Start the workers.
+     * @param threads the number of workers
+     * @param capacity the number of tasks that can wait to run
+     */
+    public CostAwareScheduler(int threads, int capacity) {
+        this.capacity = new Semaphore(capacity);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "CostAwareScheduler-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queue a task to run, waiting while the window is full.
+     * Should be called by one thread at a time.
+     * @param cost the estimated cost of the task, in any unit, the same for all tasks
+     * @param task the task
+     */
+    public void submit(double cost, Runnable task) throws InterruptedException {
+        capacity.acquire();
+        waiting.put(new Entry(cost, submitted++, task));
+    }
+
+    /**
+     * Wait for all of the tasks submitted to finish, and stop the workers.
+     */
+    public void shutdown() throws InterruptedException {
+        // Ordered after every task, one for each worker
+        for (int i = 0; i < workers.size(); i++)
+            waiting.put(new Entry(Double.NEGATIVE_INFINITY, Long.MAX_VALUE, null));
+        for (Thread worker : workers)
+            worker.join();
+    }
+
+    /**
+     * @return the number of tasks waiting to run
+     */
+    public int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * @return the number of tasks that can wait to run
+     */
+    public int getCapacity() {
+        return waiting.size() + capacity.availablePermits();
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                Entry entry = waiting.take();
+                if (entry.task == null)
+                    break;
+                capacity.release();
+                try {
+                    entry.task.run();
+                } catch (RuntimeException e) {
+                    // Keep the worker for the tasks still waiting
+                    System.err.println("Task failed: " + e);
+                } catch (Error e) {
+                    System.err.println("Task failed: " + e);
+                    throw e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
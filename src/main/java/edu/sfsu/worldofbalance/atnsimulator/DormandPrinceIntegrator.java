@@ -0,0 +1,54 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+/**
+ * The explicit Dormand-Prince 5(4) embedded Runge-Kutta method, as an in-house alternative to
+ * DormandPrince54Integrator from Apache Commons Math that does not allocate memory as it steps.
+ *
+ * The steps and the dense output are those of DormandPrinceStepper, whose stage arrays,
+ * like the dense output coefficients and the interpolator, are allocated once
+ * and reused for every step and every call to integrate() (see SingleStepIntegrator).
+ * The last stage of each step is the derivative at the end of the step,
+ * which is reused as the first stage of the next ("first same as last"),
+ * so each step costs six evaluations of the derivatives.
+ */
+public class DormandPrinceIntegrator extends SingleStepIntegrator {
+
+    private static final String NAME = "Dormand-Prince 5(4)";
+
+    private DormandPrinceStepper stepper;
+    private double[] errorEstimate;
+
+    /**
+     * @param minStep minimal step (sign is irrelevant, regardless of integration direction)
+     * @param maxStep maximal step (sign is irrelevant, regardless of integration direction)
+     * @param scalAbsoluteTolerance allowed absolute error
+     * @param scalRelativeTolerance allowed relative error
+     */
+    public DormandPrinceIntegrator(double minStep, double maxStep,
+                                   double scalAbsoluteTolerance, double scalRelativeTolerance) {
+        super(NAME, minStep, maxStep, scalAbsoluteTolerance, scalRelativeTolerance);
+    }
+
+    @Override
+    protected int getOrder() {
+        return 5;
+    }
+
+    @Override
+    protected void allocate() {
+        stepper = new DormandPrinceStepper(this, n);
+        errorEstimate = new double[n];
+    }
+
+    @Override
+    protected BufferedStepInterpolator createInterpolator() {
+        return new DormandPrinceStepper.DormandPrinceStepInterpolator(this, stepper);
+    }
+
+    @Override
+    protected double attemptStep() {
+        stepper.step(stepStart, stepSize, y, yDot0, yEnd, yDotEnd);
+        stepper.estimateError(stepSize, yDot0, yDotEnd, errorEstimate);
+        return normalizedError(errorEstimate);
+    }
+}
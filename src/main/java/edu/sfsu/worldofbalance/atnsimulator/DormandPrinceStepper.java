@@ -0,0 +1,280 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * The steps and dense output of the explicit Dormand-Prince 5(4) embedded Runge-Kutta method,
+ * shared by DormandPrinceIntegrator and the explicit mode of StiffnessSwitchingIntegrator.
+ *
+ * The stage arrays are allocated once per dimension and reused for every step.
+ * The first stage of a step is the derivative at its start, and the last stage is the derivative at its end,
+ * which the integrator reuses as the first stage of the next step ("first same as last"),
+ * so each step costs six evaluations of the derivatives.
+ *
+ * Dense output is the fourth-order continuous extension of Hairer, Norsett and Wanner
+ * (Solving Ordinary Differential Equations I, section II.6), as used in their DOPRI5 code.
+ */
+class DormandPrinceStepper {
+
+    // Method coefficients
+    private static final double C2 = 1.0 / 5.0;
+    private static final double C3 = 3.0 / 10.0;
+    private static final double C4 = 4.0 / 5.0;
+    private static final double C5 = 8.0 / 9.0;
+    private static final double A21 = 1.0 / 5.0;
+    private static final double A31 = 3.0 / 40.0;
+    private static final double A32 = 9.0 / 40.0;
+    private static final double A41 = 44.0 / 45.0;
+    private static final double A42 = -56.0 / 15.0;
+    private static final double A43 = 32.0 / 9.0;
+    private static final double A51 = 19372.0 / 6561.0;
+    private static final double A52 = -25360.0 / 2187.0;
+    private static final double A53 = 64448.0 / 6561.0;
+    private static final double A54 = -212.0 / 729.0;
+    private static final double A61 = 9017.0 / 3168.0;
+    private static final double A62 = -355.0 / 33.0;
+    private static final double A63 = 46732.0 / 5247.0;
+    private static final double A64 = 49.0 / 176.0;
+    private static final double A65 = -5103.0 / 18656.0;
+    private static final double B1 = 35.0 / 384.0;
+    private static final double B3 = 500.0 / 1113.0;
+    private static final double B4 = 125.0 / 192.0;
+    private static final double B5 = -2187.0 / 6784.0;
+    private static final double B6 = 11.0 / 84.0;
+    private static final double E1 = 71.0 / 57600.0;
+    private static final double E3 = -71.0 / 16695.0;
+    private static final double E4 = 71.0 / 1920.0;
+    private static final double E5 = -17253.0 / 339200.0;
+    private static final double E6 = 22.0 / 525.0;
+    private static final double E7 = -1.0 / 40.0;
+
+    // Dense output coefficients
+    private static final double D1 = -12715105075.0 / 11282082432.0;
+    private static final double D3 = 87487479700.0 / 32700410799.0;
+    private static final double D4 = -10690763975.0 / 1880347072.0;
+    private static final double D5 = 701980252875.0 / 199316789632.0;
+    private static final double D6 = -1453857185.0 / 822651844.0;
+    private static final double D7 = 69997945.0 / 29380423.0;
+
+    private SingleStepIntegrator integrator;  // Evaluates the derivatives (and counts the evaluations)
+
+    // Stages of the last step attempted (the first and last are passed in by the integrator)
+    private double[] k2;
+    private double[] k3;
+    private double[] k4;
+    private double[] k5;
+    private double[] k6;
+    private double[] yStage;  // State of the last stage computed, which for a whole step is that of stage 6
+
+    /**
+     * @param integrator the integrator whose steps to take
+     * @param n the dimension of the system
+     */
+    DormandPrinceStepper(SingleStepIntegrator integrator, int n) {
+        this.integrator = integrator;
+        k2 = new double[n];
+        k3 = new double[n];
+        k4 = new double[n];
+        k5 = new double[n];
+        k6 = new double[n];
+        yStage = new double[n];
+    }
+
+    /**
+     * Attempt a step of size h from time t0.
+     * @param y the state at the start of the step
+     * @param k1 the derivatives at the start of the step
+     * @param yEnd receives the state at the end of the step
+     * @param k7 receives the derivatives at the end of the step
+     */
+    void step(double t0, double h, double[] y, double[] k1, double[] yEnd, double[] k7) {
+        int n = y.length;
+        for (int i = 0; i < n; i++)
+            yStage[i] = y[i] + h * A21 * k1[i];
+        integrator.computeDerivatives(t0 + C2 * h, yStage, k2);
+        for (int i = 0; i < n; i++)
+            yStage[i] = y[i] + h * (A31 * k1[i] + A32 * k2[i]);
+        integrator.computeDerivatives(t0 + C3 * h, yStage, k3);
+        for (int i = 0; i < n; i++)
+            yStage[i] = y[i] + h * (A41 * k1[i] + A42 * k2[i] + A43 * k3[i]);
+        integrator.computeDerivatives(t0 + C4 * h, yStage, k4);
+        for (int i = 0; i < n; i++)
+            yStage[i] = y[i] + h * (A51 * k1[i] + A52 * k2[i] + A53 * k3[i] + A54 * k4[i]);
+        integrator.computeDerivatives(t0 + C5 * h, yStage, k5);
+        for (int i = 0; i < n; i++)
+            yStage[i] = y[i] + h * (A61 * k1[i] + A62 * k2[i] + A63 * k3[i] + A64 * k4[i] + A65 * k5[i]);
+        integrator.computeDerivatives(t0 + h, yStage, k6);
+        for (int i = 0; i < n; i++)
+            yEnd[i] = y[i] + h * (B1 * k1[i] + B3 * k3[i] + B4 * k4[i] + B5 * k5[i] + B6 * k6[i]);
+        integrator.computeDerivatives(t0 + h, yEnd, k7);
+    }
+
+    /**
+     * Compute the local error estimate of the last step.
+     * @param k1 the first stage of the step
+     * @param k7 the last stage of the step
+     * @param errorEstimate receives the error estimate of each component
+     */
+    void estimateError(double h, double[] k1, double[] k7, double[] errorEstimate) {
+        for (int i = 0; i < errorEstimate.length; i++)
+            errorEstimate[i] = h * (E1 * k1[i] + E3 * k3[i] + E4 * k4[i] + E5 * k5[i] + E6 * k6[i] + E7 * k7[i]);
+    }
+
+    /**
+     * Estimate |h * lambda| for the dominant eigenvalue lambda of the Jacobian from the last step
+     * (Hairer and Wanner, Solving Ordinary Differential Equations II, section IV.2).
+     * Stages 6 and 7 are both evaluated at the end of the step,
+     * so their difference estimates the Jacobian applied to the difference of their arguments.
+     * @param yEnd the state at the end of the step
+     * @param k7 the last stage of the step
+     */
+    double estimateStiffness(double h, double[] yEnd, double[] k7) {
+        double numerator = 0;
+        double denominator = 0;
+        for (int i = 0; i < yEnd.length; i++) {
+            double dk = k7[i] - k6[i];
+            double dy = yEnd[i] - yStage[i];
+            numerator += dk * dk;
+            denominator += dy * dy;
+        }
+        return denominator > 0 ? Math.abs(h) * Math.sqrt(numerator / denominator) : 0;
+    }
+
+    /**
+     * Interpolates with the continuous extension, whose coefficients are computed once per accepted step
+     * from the integrator's working arrays and the stepper's stages.
+     *
+     * Without its last term, the continuous extension is the cubic Hermite interpolant
+     * of the states and derivatives at the ends of the step, which is used instead for steps
+     * that were not taken by the stepper (see setHermite()).
+     */
+    static class DormandPrinceStepInterpolator extends SingleStepIntegrator.BufferedStepInterpolator {
+
+        private SingleStepIntegrator integrator;
+        private DormandPrinceStepper stepper;
+        private boolean hermite;  // Whether the step being accepted was taken by another method
+        private double[] v1;
+        private double[] v2;
+        private double[] v3;
+        private double[] v4;
+        private double[] v5;
+
+        public DormandPrinceStepInterpolator() {
+            super();
+        }
+
+        DormandPrinceStepInterpolator(SingleStepIntegrator integrator, DormandPrinceStepper stepper) {
+            super();
+            this.integrator = integrator;
+            this.stepper = stepper;
+            int n = integrator.n;
+            v1 = new double[n];
+            v2 = new double[n];
+            v3 = new double[n];
+            v4 = new double[n];
+            v5 = new double[n];
+        }
+
+        /**
+         * Copies are independent of the integrator.
+         */
+        private DormandPrinceStepInterpolator(DormandPrinceStepInterpolator interpolator) {
+            super(interpolator);
+            if (interpolator.v1 != null) {
+                v1 = interpolator.v1.clone();
+                v2 = interpolator.v2.clone();
+                v3 = interpolator.v3.clone();
+                v4 = interpolator.v4.clone();
+                v5 = interpolator.v5.clone();
+            }
+        }
+
+        /**
+         * @param hermite true if the next steps are not taken by the stepper,
+         *                and so are interpolated by the cubic Hermite interpolant
+         */
+        void setHermite(boolean hermite) {
+            this.hermite = hermite;
+        }
+
+        @Override
+        protected StepInterpolator doCopy() {
+            return new DormandPrinceStepInterpolator(this);
+        }
+
+        @Override
+        protected void stepAccepted() {
+            SingleStepIntegrator in = integrator;
+            DormandPrinceStepper s = stepper;
+            double h = in.getCurrentSignedStepsize();
+            for (int i = 0; i < v1.length; i++) {
+                double yDiff = in.y[i] - in.yStart[i];
+                double bSpline = h * in.yDot0[i] - yDiff;
+                v1[i] = in.yStart[i];
+                v2[i] = yDiff;
+                v3[i] = bSpline;
+                v4[i] = yDiff - h * in.yDotEnd[i] - bSpline;
+                v5[i] = hermite ? 0 : h * (D1 * in.yDot0[i] + D3 * s.k3[i] + D4 * s.k4[i] + D5 * s.k5[i]
+                        + D6 * s.k6[i] + D7 * in.yDotEnd[i]);
+            }
+        }
+
+        @Override
+        protected void computeInterpolatedStateAndDerivatives(double theta, double oneMinusThetaH) {
+            if (theta == 1.0 && integrator != null) {
+                // Exactly the end of the step
+                System.arraycopy(currentState, 0, interpolatedState, 0, interpolatedState.length);
+                System.arraycopy(integrator.yDotEnd, 0, interpolatedDerivatives, 0, interpolatedDerivatives.length);
+                return;
+            }
+            double oneMinusTheta = 1 - theta;
+            double twoTheta = 2 * theta;
+            double dot3 = 1 - twoTheta;
+            double dot4 = theta * (2 - 3 * theta);
+            double dot5 = twoTheta * oneMinusTheta * dot3;
+            for (int i = 0; i < interpolatedState.length; i++) {
+                interpolatedState[i] = v1[i] + theta * (v2[i]
+                        + oneMinusTheta * (v3[i] + theta * (v4[i] + oneMinusTheta * v5[i])));
+                interpolatedDerivatives[i] = (v2[i] + dot3 * v3[i] + dot4 * v4[i] + dot5 * v5[i]) / h;
+            }
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            writeBaseExternal(out);
+            int n = currentState == null ? -1 : currentState.length;
+            for (int i = 0; i < n; i++) {
+                out.writeDouble(v1[i]);
+                out.writeDouble(v2[i]);
+                out.writeDouble(v3[i]);
+                out.writeDouble(v4[i]);
+                out.writeDouble(v5[i]);
+            }
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            double t = readBaseExternal(in);
+            int n = currentState == null ? -1 : currentState.length;
+            if (n >= 0) {
+                v1 = new double[n];
+                v2 = new double[n];
+                v3 = new double[n];
+                v4 = new double[n];
+                v5 = new double[n];
+                for (int i = 0; i < n; i++) {
+                    v1[i] = in.readDouble();
+                    v2[i] = in.readDouble();
+                    v3[i] = in.readDouble();
+                    v4[i] = in.readDouble();
+                    v5[i] = in.readDouble();
+                }
+            }
+            setInterpolatedTime(t);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.DecompositionSolver;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.linear.SingularMatrixException;
+
+/**
+ * Finds an equilibrium (fixed point) of ModelEquations directly, by Newton's method,
+ * and determines whether it is locally stable from the eigenvalues of the Jacobian there.
+ *
+ * The equilibrium is one at which all nodes coexist: Newton's method is applied to the per-capita rates of change
+ * B'[i] / B[i], which are zero only at such equilibria, as functions of the logarithms of the biomass,
+ * which keeps the biomass positive. Each step is damped as needed to reduce the norm of the rates.
+ */
+public class EquilibriumSolver {
+
+    public static final int MAX_ITERATIONS = 50;
+    public static final double RELATIVE_DERIVATIVE_TOLERANCE = 1e-10;  // Convergence threshold for |B'[i] / B[i]|
+    public static final int MAX_STEP_HALVINGS = 30;
+
+    private ModelEquations equations;
+    private int nodeCount;
+    private double[] BDot;
+    private double[] rates;  // B'[i] / B[i]
+    private double[][] jacobian;
+
+    /**
+     * @param equations the equations of the nodes that coexist at the equilibrium
+     */
+    public EquilibriumSolver(ModelEquations equations) {
+        this.equations = equations;
+        nodeCount = equations.getDimension();
+        BDot = new double[nodeCount];
+        rates = new double[nodeCount];
+        jacobian = new double[nodeCount][nodeCount];
+    }
+
+    /**
+     * Search for an equilibrium starting from the given biomass.
+     *
+     * @param initialBiomass the starting point of the search (all positive)
+     * @return the biomass of each node at the equilibrium, or null if the search failed
+     */
+    public double[] solve(double[] initialBiomass) {
+        double[] B = initialBiomass.clone();
+        double[] trial = new double[nodeCount];
+        double norm = computeRates(B);
+
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            if (hasConverged())
+                return B;
+
+            // The Jacobian of the rates with respect to log(B) is (J[i][m] - (i == m ? rates[i] : 0)) * B[m] / B[i].
+            // Solve for the step in log(B) that zeroes the linearized rates.
+            equations.computeMainStateJacobian(0, B, BDot, jacobian);
+            for (int i = 0; i < nodeCount; i++) {
+                jacobian[i][i] -= rates[i];
+                for (int m = 0; m < nodeCount; m++)
+                    jacobian[i][m] *= B[m] / B[i];
+            }
+            RealVector delta;
+            try {
+                DecompositionSolver solver = new LUDecomposition(new Array2DRowRealMatrix(jacobian, false)).getSolver();
+                delta = solver.solve(new ArrayRealVector(rates, true).mapMultiplyToSelf(-1));
+            } catch (SingularMatrixException e) {
+                return null;
+            }
+
+            // Halve the step until it reduces the norm of the rates, keeping all nodes above the extinction threshold
+            double lambda = 1;
+            boolean accepted = false;
+            for (int halving = 0; halving <= MAX_STEP_HALVINGS && !accepted; halving++, lambda /= 2) {
+                boolean alive = true;
+                for (int i = 0; i < nodeCount && alive; i++) {
+                    trial[i] = B[i] * Math.exp(lambda * delta.getEntry(i));
+                    alive = trial[i] >= ModelEquations.EXTINCT && trial[i] < Double.POSITIVE_INFINITY;
+                }
+                if (!alive)
+                    continue;
+                double trialNorm = computeRates(trial);
+                if (trialNorm < norm || hasConverged()) {
+                    System.arraycopy(trial, 0, B, 0, nodeCount);
+                    norm = trialNorm;
+                    accepted = true;
+                }
+            }
+            if (!accepted)
+                return null;
+        }
+
+        computeRates(B);
+        return hasConverged() ? B : null;
+    }
+
+    /**
+     * An equilibrium is locally stable if all eigenvalues of the Jacobian there have negative real parts.
+     *
+     * @param biomass the biomass of each node at an equilibrium
+     * @return true if the equilibrium is locally stable
+     */
+    public boolean isStable(double[] biomass) {
+        double[] realParts;
+        try {
+            realParts = eigenvalueRealParts(biomass);
+        } catch (MathIllegalStateException e) {
+            return false;  // The eigenvalue iteration did not converge
+        }
+        for (double realPart : realParts)
+            if (!(realPart < 0))
+                return false;
+        return true;
+    }
+
+    private double[] eigenvalueRealParts(double[] biomass) {
+        equations.computeDerivatives(0, biomass, BDot);
+        equations.computeMainStateJacobian(0, biomass, BDot, jacobian);
+        return new EigenDecomposition(new Array2DRowRealMatrix(jacobian, false)).getRealEigenvalues();
+    }
+
+    /**
+     * Compute the derivatives and the per-capita rates of change at biomass B.
+     * @return the Euclidean norm of the rates
+     */
+    private double computeRates(double[] B) {
+        equations.computeDerivatives(0, B, BDot);
+        double sum = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            rates[i] = BDot[i] / B[i];
+            sum += rates[i] * rates[i];
+        }
+        return Math.sqrt(sum);
+    }
+
+    private boolean hasConverged() {
+        for (double rate : rates)
+            if (!(Math.abs(rate) <= RELATIVE_DERIVATIVE_TOLERANCE))
+                return false;
+        return true;
+    }
+}
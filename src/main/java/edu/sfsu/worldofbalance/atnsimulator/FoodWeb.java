@@ -4,23 +4,56 @@ import com.google.gson.Gson;
 
 import java.io.Reader;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * Represents the basic structure and attributes of a food web as a directed
  * graph. The links are directed from prey node to predator node, representing
  * the direction of energy flow in a food web.
+ *
+ * The nodes are stored in primitive arrays in increasing order of node ID, and links refer to them by
+ * their position in that order. The links are stored in compressed sparse row (CSR) form in both directions:
+ * the prey of the node at position i are at positions prey[preyOffsets[i]] until prey[preyOffsets[i+1]],
+ * and its predators likewise in predatorOffsets and predators, each in increasing order.
+ *
+ * The arrays are never changed once built: adding a node or a link builds new ones,
+ * in time linear in the size of the web, so building a web one link at a time is only meant for small webs.
+ * Reading from JSON, subweb() and normalizedCopy() build theirs at once, in linear time.
+ * A web that is no longer changed can be read by any number of threads.
  */
 public class FoodWeb {
 
-    private HashMap<Integer, HashSet<Integer>> links;
-    private transient HashMap<Integer, HashSet<Integer>> reverseLinks;
-    private HashMap<Integer, NodeAttributes> nodeAttributes;
+    private static final NodeAttributes.NodeType[] NODE_TYPES = NodeAttributes.NodeType.values();
+
+    private int[] nodeIds = new int[0];     // Node ID at each position, in increasing order
+    private byte[] nodeTypes = new byte[0]; // Ordinal of the NodeType of each node
+    private int[] preyOffsets = {0};        // In-links of each node
+    private int[] prey = new int[0];
+    private int[] predatorOffsets = {0};    // Out-links of each node
+    private int[] predators = new int[0];
+
+    /**
+     * The form in which a FoodWeb is read from and written to JSON
+     */
+    private static class JsonForm {
+        Map<Integer, NodeAttributes> nodeAttributes;
+        Map<Integer, int[]> links;
+    }
 
     public FoodWeb() {
-        links = new HashMap<>();
-        reverseLinks = new HashMap<>();
-        nodeAttributes = new HashMap<>();
+    }
+
+    /**
+     * Create a food web from the given nodes and links.
+     * @param nodeIds the node IDs, in increasing order
+     * @param nodeTypes the ordinal of the NodeType of each node
+     * @param linkCount the number of links, which may include duplicates
+     * @param linkPrey the position of the prey node of each link
+     * @param linkPredator the position of the predator node of each link
+     */
+    private FoodWeb(int[] nodeIds, byte[] nodeTypes, int linkCount, int[] linkPrey, int[] linkPredator) {
+        this.nodeIds = nodeIds;
+        this.nodeTypes = nodeTypes;
+        setLinks(linkCount, linkPrey, linkPredator);
     }
 
     /**
@@ -49,11 +82,37 @@ public class FoodWeb {
      * @return the new food web
      */
     public static FoodWeb createFromJson(Reader reader) {
-        Gson gson = new Gson();
-        FoodWeb web = gson.fromJson(reader, FoodWeb.class);
-        web.initializeMissingLinks(web.links);
-        web.initializeMissingLinks(web.reverseLinks);
-        web.populateReverseLinks();
+        JsonForm json = new Gson().fromJson(reader, JsonForm.class);
+
+        int[] nodeIds = new int[json.nodeAttributes.size()];
+        int n = 0;
+        for (int nodeId : json.nodeAttributes.keySet())
+            nodeIds[n++] = nodeId;
+        Arrays.sort(nodeIds);
+        byte[] nodeTypes = new byte[n];
+        for (int p = 0; p < n; p++)
+            nodeTypes[p] = (byte) json.nodeAttributes.get(nodeIds[p]).nodeType.ordinal();
+
+        FoodWeb web = new FoodWeb();
+        web.nodeIds = nodeIds;
+        web.nodeTypes = nodeTypes;
+        int linkCount = 0;
+        if (json.links != null)
+            for (int[] predatorIds : json.links.values())
+                linkCount += predatorIds.length;
+        int[] linkPrey = new int[linkCount];
+        int[] linkPredator = new int[linkCount];
+        int l = 0;
+        if (json.links != null) {
+            for (Map.Entry<Integer, int[]> e : json.links.entrySet()) {
+                int preyPosition = web.positionOf(e.getKey());
+                for (int predatorId : e.getValue()) {
+                    linkPrey[l] = preyPosition;
+                    linkPredator[l++] = web.positionOf(predatorId);
+                }
+            }
+        }
+        web.setLinks(linkCount, linkPrey, linkPredator);
         return web;
     }
 
@@ -61,31 +120,42 @@ public class FoodWeb {
      * @return a JSON representation of the food web
      */
     public String toJson() {
-        return (new Gson()).toJson(this);
+        JsonForm json = new JsonForm();
+        json.nodeAttributes = new LinkedHashMap<>();
+        json.links = new LinkedHashMap<>();
+        for (int p = 0; p < nodeIds.length; p++) {
+            json.nodeAttributes.put(nodeIds[p], new NodeAttributes(NODE_TYPES[nodeTypes[p]]));
+            json.links.put(nodeIds[p], nodeIdsAt(predatorOffsets, predators, p));
+        }
+        return (new Gson()).toJson(json);
     }
 
     /**
      * @return the number of nodes in the food web
      */
     public int nodeCount() {
-        return nodeAttributes.size();
+        return nodeIds.length;
     }
 
     /**
      * @return the number of links in the food web
      */
     public int linkCount() {
-        int count = 0;
-        for (Set<Integer> nodeIds : links.values())
-            count += nodeIds.size();
-        return count;
+        return prey.length;
     }
 
     /**
-     * @return a set of the node IDs in the food web
+     * @return a new set of the node IDs in the food web
      */
     public Set<Integer> nodes() {
-        return nodeAttributes.keySet();
+        return toSet(nodeIds);
+    }
+
+    /**
+     * @return a new array of the node IDs in the food web, in increasing order
+     */
+    public int[] nodeIds() {
+        return nodeIds.clone();
     }
 
     /**
@@ -94,12 +164,37 @@ public class FoodWeb {
      * @param attributes Attributes of the new node
      */
     public void addNode(int nodeId, NodeAttributes attributes) {
-        if (containsNode(nodeId)) {
+        int position = Arrays.binarySearch(nodeIds, nodeId);
+        if (position >= 0) {
             throw new FoodWebDuplicateNodeException(nodeId);
         }
-        links.put(nodeId, new HashSet<>());
-        reverseLinks.put(nodeId, new HashSet<>());
-        nodeAttributes.put(nodeId, attributes);
+        position = -position - 1;
+
+        int n = nodeIds.length;
+        int[] newNodeIds = new int[n + 1];
+        byte[] newNodeTypes = new byte[n + 1];
+        System.arraycopy(nodeIds, 0, newNodeIds, 0, position);
+        System.arraycopy(nodeIds, position, newNodeIds, position + 1, n - position);
+        System.arraycopy(nodeTypes, 0, newNodeTypes, 0, position);
+        System.arraycopy(nodeTypes, position, newNodeTypes, position + 1, n - position);
+        newNodeIds[position] = nodeId;
+        newNodeTypes[position] = (byte) attributes.nodeType.ordinal();
+
+        // The nodes after the new one move up a position
+        int linkCount = linkCount();
+        int[] linkPrey = new int[linkCount];
+        int[] linkPredator = new int[linkCount];
+        getLinks(linkPrey, linkPredator);
+        for (int l = 0; l < linkCount; l++) {
+            if (linkPrey[l] >= position)
+                linkPrey[l]++;
+            if (linkPredator[l] >= position)
+                linkPredator[l]++;
+        }
+
+        nodeIds = newNodeIds;
+        nodeTypes = newNodeTypes;
+        setLinks(linkCount, linkPrey, linkPredator);
     }
 
     /**
@@ -120,65 +215,93 @@ public class FoodWeb {
      * Add a link from the given prey node to the given predator node
      */
     public void addLink(int preyNodeId, int predatorNodeId) {
-        if (!containsNode(preyNodeId)) {
-            throw new FoodWebNodeAbsentException(preyNodeId);
-        }
-        if (!containsNode(predatorNodeId)) {
-            throw new FoodWebNodeAbsentException(predatorNodeId);
-        }
-        links.get(preyNodeId).add(predatorNodeId);
-        reverseLinks.get(predatorNodeId).add(preyNodeId);
+        int preyPosition = positionOf(preyNodeId);
+        int predatorPosition = positionOf(predatorNodeId);
+        if (containsLink(preyNodeId, predatorNodeId))
+            return;
+
+        int linkCount = linkCount();
+        int[] linkPrey = new int[linkCount + 1];
+        int[] linkPredator = new int[linkCount + 1];
+        getLinks(linkPrey, linkPredator);
+        linkPrey[linkCount] = preyPosition;
+        linkPredator[linkCount] = predatorPosition;
+        setLinks(linkCount + 1, linkPrey, linkPredator);
     }
 
     /**
      * @return true if the food web contains the given node
      */
     public boolean containsNode(int nodeId) {
-        return nodeAttributes.containsKey(nodeId);
+        return Arrays.binarySearch(nodeIds, nodeId) >= 0;
     }
 
     /**
      * @return true if the food web contains the given link
      */
     public boolean containsLink(int preyNodeId, int predatorNodeId) {
-        return links.containsKey(preyNodeId) && links.get(preyNodeId).contains(predatorNodeId);
+        int preyPosition = Arrays.binarySearch(nodeIds, preyNodeId);
+        int predatorPosition = Arrays.binarySearch(nodeIds, predatorNodeId);
+        return preyPosition >= 0 && predatorPosition >= 0
+                && Arrays.binarySearch(
+                        prey, preyOffsets[predatorPosition], preyOffsets[predatorPosition + 1], preyPosition) >= 0;
     }
 
     /**
      * Set the attributes of the given node
      */
     public void setNodeAttributes(int nodeId, NodeAttributes attributes) {
-        if (!containsNode(nodeId)) {
-            throw new FoodWebNodeAbsentException(nodeId);
-        }
-        nodeAttributes.put(nodeId, attributes);
+        int position = positionOf(nodeId);
+        byte[] newNodeTypes = nodeTypes.clone();
+        newNodeTypes[position] = (byte) attributes.nodeType.ordinal();
+        nodeTypes = newNodeTypes;
     }
 
     /**
-     * @return the attributes of the given node
+     * @return a copy of the attributes of the given node, or null if it is not in the food web
      */
     public NodeAttributes getNodeAttributes(int nodeId) {
-        return nodeAttributes.get(nodeId);
+        int position = Arrays.binarySearch(nodeIds, nodeId);
+        if (position < 0)
+            return null;
+        return new NodeAttributes(NODE_TYPES[nodeTypes[position]]);
+    }
+
+    /**
+     * @return the type of the given node
+     */
+    public NodeAttributes.NodeType getNodeType(int nodeId) {
+        return NODE_TYPES[nodeTypes[positionOf(nodeId)]];
     }
 
     /**
-     * @return the set of node IDs of out-links of the given node
+     * @return a new set of node IDs of out-links of the given node
      */
     public Set<Integer> getPredatorsOf(int preyNodeId) {
-        if (!containsNode(preyNodeId)) {
-            throw new FoodWebNodeAbsentException(preyNodeId);
-        }
-        return links.get(preyNodeId);
+        int position = positionOf(preyNodeId);
+        return toSet(nodeIdsAt(predatorOffsets, predators, position));
     }
 
     /**
-     * @return the set of node IDs of in-links of the given node
+     * @return a new set of node IDs of in-links of the given node
      */
     public Set<Integer> getPreyOf(int predatorNodeId) {
-        if (!containsNode(predatorNodeId)) {
-            throw new FoodWebNodeAbsentException(predatorNodeId);
-        }
-        return reverseLinks.get(predatorNodeId);
+        int position = positionOf(predatorNodeId);
+        return toSet(nodeIdsAt(preyOffsets, prey, position));
+    }
+
+    /**
+     * @return a new array of node IDs of out-links of the given node, in increasing order
+     */
+    public int[] predatorsOf(int preyNodeId) {
+        return nodeIdsAt(predatorOffsets, predators, positionOf(preyNodeId));
+    }
+
+    /**
+     * @return a new array of node IDs of in-links of the given node, in increasing order
+     */
+    public int[] preyOf(int predatorNodeId) {
+        return nodeIdsAt(preyOffsets, prey, positionOf(predatorNodeId));
     }
 
     /**
@@ -188,23 +311,47 @@ public class FoodWeb {
      * @return the generated subweb
      */
     public FoodWeb subweb(Set<Integer> nodeIds) {
-        FoodWeb subweb = new FoodWeb();
-        for (int nodeId : nodeIds) {
-            subweb.nodeAttributes.put(nodeId, nodeAttributes.get(nodeId));
-            subweb.links.put(nodeId, intersection(nodeIds, links.get(nodeId)));
-            subweb.reverseLinks.put(nodeId, intersection(nodeIds, reverseLinks.get(nodeId)));
-        }
-        return subweb;
+        int[] nodeIdArray = new int[nodeIds.size()];
+        int i = 0;
+        for (int nodeId : nodeIds)
+            nodeIdArray[i++] = nodeId;
+        return subweb(nodeIdArray);
     }
 
     /**
      * @see #subweb(Set)
      */
     public FoodWeb subweb(int[] nodeIds) {
-        Set<Integer> nodeIdSet = new HashSet<>();
+        BitSet included = new BitSet(this.nodeIds.length);
         for (int nodeId : nodeIds)
-            nodeIdSet.add(nodeId);
-        return subweb(nodeIdSet);
+            included.set(positionOf(nodeId));
+
+        // Position of each included node in the subweb, which keeps their order
+        int n = included.cardinality();
+        int[] newPosition = new int[this.nodeIds.length];
+        int[] newNodeIds = new int[n];
+        byte[] newNodeTypes = new byte[n];
+        int linkCount = 0;
+        int k = 0;
+        for (int p = included.nextSetBit(0); p >= 0; p = included.nextSetBit(p + 1)) {
+            newPosition[p] = k;
+            newNodeIds[k] = this.nodeIds[p];
+            newNodeTypes[k++] = nodeTypes[p];
+            linkCount += preyOffsets[p + 1] - preyOffsets[p];
+        }
+
+        int[] linkPrey = new int[linkCount];
+        int[] linkPredator = new int[linkCount];
+        linkCount = 0;
+        for (int i = included.nextSetBit(0); i >= 0; i = included.nextSetBit(i + 1)) {
+            for (int l = preyOffsets[i]; l < preyOffsets[i + 1]; l++) {
+                if (included.get(prey[l])) {
+                    linkPrey[linkCount] = newPosition[prey[l]];
+                    linkPredator[linkCount++] = newPosition[i];
+                }
+            }
+        }
+        return new FoodWeb(newNodeIds, newNodeTypes, linkCount, linkPrey, linkPredator);
     }
 
     /**
@@ -217,32 +364,43 @@ public class FoodWeb {
      * @return a normalized copy of this food web
      */
     public FoodWeb normalizedCopy(int[] nodeIds) {
-        if (nodeIds.length != nodeCount())
+        int n = nodeCount();
+        if (nodeIds.length != n)
             throw new IllegalArgumentException("Wrong number of node IDs");
 
-        // Maps old node IDs to new, normalized node IDs
-        HashMap<Integer, Integer> nodeMap = normalizedNodeIdMap(nodeIds);
-
-        FoodWeb newWeb = new FoodWeb();
-        for (Map.Entry<Integer, Integer> e : nodeMap.entrySet()) {
-            int oldNodeId = e.getKey();
-            int newNodeId = e.getValue();
-            if (!containsNode(oldNodeId))
-                throw new FoodWebNodeAbsentException(oldNodeId);
-            newWeb.addNode(newNodeId, new NodeAttributes(nodeAttributes.get(oldNodeId)));
-            newWeb.links.put(newNodeId, mapSetValues(links.get(oldNodeId), nodeMap));
+        // Maps the position of each existing node to its new node ID
+        int[] newNodeId = new int[n];
+        Arrays.fill(newNodeId, -1);
+        byte[] newNodeTypes = new byte[n];
+        for (int k = 0; k < n; k++) {
+            int position = positionOf(nodeIds[k]);
+            if (newNodeId[position] >= 0)
+                throw new IllegalArgumentException("Duplicate node ID " + nodeIds[k]);
+            newNodeId[position] = k;
+            newNodeTypes[k] = nodeTypes[position];
         }
-        newWeb.initializeMissingLinks(newWeb.reverseLinks);
-        newWeb.populateReverseLinks();
 
-        return newWeb;
+        int[] newNodeIds = new int[n];
+        for (int k = 0; k < n; k++)
+            newNodeIds[k] = k;
+        int linkCount = linkCount();
+        int[] linkPrey = new int[linkCount];
+        int[] linkPredator = new int[linkCount];
+        for (int i = 0; i < n; i++) {
+            for (int l = preyOffsets[i]; l < preyOffsets[i + 1]; l++) {
+                linkPrey[l] = newNodeId[prey[l]];
+                linkPredator[l] = newNodeId[i];
+            }
+        }
+        return new FoodWeb(newNodeIds, newNodeTypes, linkCount, linkPrey, linkPredator);
     }
 
     /**
      * @return true if node IDs count contiguously from 0 to N-1
      */
     public boolean nodeIdsAreNormalized() {
-        return Collections.min(nodes()) == 0 && Collections.max(nodes()) == nodeCount() - 1;
+        int n = nodeIds.length;
+        return n == 0 || (nodeIds[0] == 0 && nodeIds[n - 1] == n - 1);
     }
 
     /**
@@ -250,75 +408,140 @@ public class FoodWeb {
      * @param other the other FoodWeb
      * @return true if the two food webs have the same nodes, links, and attributes
      */
+    @Override
     public boolean equals(Object other) {
+        if (!(other instanceof FoodWeb))
+            return false;
         FoodWeb otherWeb = (FoodWeb) other;
-        return otherWeb.nodeAttributes.equals(this.nodeAttributes)
-                && otherWeb.links.equals(this.links)
-                && otherWeb.reverseLinks.equals(this.reverseLinks);
+        return Arrays.equals(otherWeb.nodeIds, this.nodeIds)
+                && Arrays.equals(otherWeb.nodeTypes, this.nodeTypes)
+                && Arrays.equals(otherWeb.preyOffsets, this.preyOffsets)
+                && Arrays.equals(otherWeb.prey, this.prey);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(nodeIds) * 31 + Arrays.hashCode(prey);
     }
 
     /**
-     * Update `linkSet` (either `links` or `reverseLinks`) so that it contains all the same keys (nodeIds)
-     * as `nodeAttributes`.
+     * @return the offsets of the in-links of each node, shared rather than copied, so not to be changed
      */
-    private void initializeMissingLinks(HashMap<Integer, HashSet<Integer>> linkSet) {
-        for (int nodeId : nodeAttributes.keySet()) {
-            if (!linkSet.containsKey(nodeId)) {
-                linkSet.put(nodeId, new HashSet<>());
-            }
+    int[] getPreyOffsets() {
+        return preyOffsets;
+    }
+
+    /**
+     * @return the positions of the prey of the in-links, which are their node IDs in a food web with normalized
+     * node IDs, shared rather than copied, so not to be changed
+     */
+    int[] getPreyPositions() {
+        return prey;
+    }
+
+    /**
+     * @return the position of the given node
+     */
+    private int positionOf(int nodeId) {
+        int position = Arrays.binarySearch(nodeIds, nodeId);
+        if (position < 0) {
+            throw new FoodWebNodeAbsentException(nodeId);
         }
+        return position;
     }
 
     /**
-     * Populate `reverseLinks` based on `links`.
+     * Build the links in both directions, sorted and without duplicates,
+     * from the positions of the prey and predator of each link.
      */
-    private void populateReverseLinks() {
-        for (int preyNodeId : links.keySet()) {
-            for (int predatorNodeId : links.get(preyNodeId)) {
-                reverseLinks.get(predatorNodeId).add(preyNodeId);
+    private void setLinks(int linkCount, int[] linkPrey, int[] linkPredator) {
+        int n = nodeIds.length;
+
+        // Sorting stably by prey and then by predator orders the links by predator, then prey
+        int[] order = new int[linkCount];
+        for (int l = 0; l < linkCount; l++)
+            order[l] = l;
+        order = sortByKey(order, linkPrey, n);
+        order = sortByKey(order, linkPredator, n);
+
+        int[] newPrey = new int[linkCount];
+        int[] newPredator = new int[linkCount];
+        int m = 0;
+        for (int l : order) {
+            if (m > 0 && newPredator[m - 1] == linkPredator[l] && newPrey[m - 1] == linkPrey[l])
+                continue;  // Duplicate
+            newPrey[m] = linkPrey[l];
+            newPredator[m++] = linkPredator[l];
+        }
+
+        preyOffsets = offsets(newPredator, m, n);
+        prey = Arrays.copyOf(newPrey, m);
+
+        // Sorting by prey keeps the predators of each prey in order
+        int[] byPrey = new int[m];
+        for (int l = 0; l < m; l++)
+            byPrey[l] = l;
+        byPrey = sortByKey(byPrey, newPrey, n);
+        predatorOffsets = offsets(newPrey, m, n);
+        predators = new int[m];
+        for (int k = 0; k < m; k++)
+            predators[k] = newPredator[byPrey[k]];
+    }
+
+    /**
+     * Write the position of the prey and predator of each link into the given arrays.
+     */
+    private void getLinks(int[] linkPrey, int[] linkPredator) {
+        for (int i = 0; i < nodeIds.length; i++) {
+            for (int l = preyOffsets[i]; l < preyOffsets[i + 1]; l++) {
+                linkPrey[l] = prey[l];
+                linkPredator[l] = i;
             }
         }
     }
 
     /**
-     * @return the intersection of the two given sets.
+     * Counting sort.
+     * @return the indices in `order`, sorted stably by keys[index], which range from 0 to n-1
      */
-    private static HashSet<Integer> intersection(Set<Integer> s1, HashSet<Integer> s2) {
-        HashSet<Integer> intersection = new HashSet<>(s1);
-        intersection.retainAll(s2);
-        return intersection;
+    private static int[] sortByKey(int[] order, int[] keys, int n) {
+        int[] next = new int[n + 1];
+        for (int index : order)
+            next[keys[index] + 1]++;
+        for (int p = 0; p < n; p++)
+            next[p + 1] += next[p];
+        int[] sorted = new int[order.length];
+        for (int index : order)
+            sorted[next[keys[index]]++] = index;
+        return sorted;
     }
 
     /**
-     * Map the values in the given set to a set of new values,
-     * using the given map of existing values to new values.
-     * @param values the input set
-     * @param mapping the map with existing values as keys and new values as values
-     * @return the mapped set
+     * @return the CSR offsets of rows 0 to n-1 holding the first `count` of the given row numbers
      */
-    private static HashSet<Integer> mapSetValues(Set<Integer> values, Map<Integer, Integer> mapping) {
-        HashSet<Integer> mappedSet = values.stream()
-                .map(oldValue -> mapping.get(oldValue))
-                .collect(Collectors.toCollection(HashSet::new));
-        return mappedSet;
+    private static int[] offsets(int[] rows, int count, int n) {
+        int[] offsets = new int[n + 1];
+        for (int k = 0; k < count; k++)
+            offsets[rows[k] + 1]++;
+        for (int p = 0; p < n; p++)
+            offsets[p + 1] += offsets[p];
+        return offsets;
     }
 
-    private HashMap<Integer, Integer> normalizedNodeIdMap(int[] nodeIds) {
-        HashMap<Integer, Integer> map = new HashMap<>();
-        for (int newNodeId = 0; newNodeId < nodeIds.length; newNodeId++) {
-            int oldNodeId = nodeIds[newNodeId];
-            map.put(oldNodeId, newNodeId);
-        }
-        return map;
+    /**
+     * @return the node IDs at the positions in row `position` of the given CSR arrays
+     */
+    private int[] nodeIdsAt(int[] offsets, int[] positions, int position) {
+        int[] ids = new int[offsets[position + 1] - offsets[position]];
+        for (int k = 0; k < ids.length; k++)
+            ids[k] = nodeIds[positions[offsets[position] + k]];
+        return ids;
     }
 
-    private int[] sortedNodeIds() {
-        int[] sortedNodeIds = new int[nodeCount()];
-        int i = 0;
-        for (int nodeId : nodes()) {
-            sortedNodeIds[i++] = nodeId;
-        }
-        Arrays.sort(sortedNodeIds);
-        return sortedNodeIds;
+    private static Set<Integer> toSet(int[] values) {
+        Set<Integer> set = new HashSet<>();
+        for (int value : values)
+            set.add(value);
+        return set;
     }
 }
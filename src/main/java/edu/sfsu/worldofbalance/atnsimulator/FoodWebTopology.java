@@ -0,0 +1,95 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import java.util.Arrays;
+
+/**
+ * The structure of a subweb of a food web, compiled once into the forms that simulations of it use:
+ * the subweb itself, its normalized copy, the producers and consumers,
+ * and its links in the compressed sparse row (CSR) form described by LinkParameters.
+ * Node i of the normalized subweb is node nodeIds[i] of the subweb.
+ *
+ * A topology is never changed after it is created, so simulations on any number of threads can share it
+ * (see TopologyCache), as long as none of them changes the food webs it holds.
+ */
+public class FoodWebTopology {
+
+    public final int[] nodeIds;              // Original node ID of each normalized node ID
+    public final FoodWeb subweb;             // Subweb with the original node IDs
+    public final FoodWeb normalizedSubweb;   // Subweb with node IDs normalized to the order of nodeIds
+    public final int nodeCount;
+    public final int linkCount;
+    public final int[] producers;            // Normalized node IDs of producers
+    public final int[] consumers;            // Normalized node IDs of consumers
+
+    // Links grouped by predator, then by prey, numbered as in LinkParameters
+    public final int[] preyOffsets;
+    public final int[] prey;
+    public final int[] predatorOffsets;
+    public final int[] predators;
+    public final int[] predatorLinks;
+
+    /**
+     * Compile the subweb of the given nodes of a food web.
+     * @param foodWeb the food web of which to take the subweb
+     * @param nodeIds the node IDs of the subweb, in the order of their normalized node IDs
+     */
+    public FoodWebTopology(FoodWeb foodWeb, int[] nodeIds) {
+        this(nodeIds.clone(), foodWeb.subweb(nodeIds), null);
+    }
+
+    /**
+     * Compile a food web that already has normalized node IDs.
+     */
+    public FoodWebTopology(FoodWeb normalizedFoodWeb) {
+        this(null, normalizedFoodWeb, normalizedFoodWeb);
+    }
+
+    private FoodWebTopology(int[] nodeIds, FoodWeb subweb, FoodWeb normalizedSubweb) {
+        if (normalizedSubweb == null)
+            normalizedSubweb = subweb.normalizedCopy(nodeIds);
+        else if (!normalizedSubweb.nodeIdsAreNormalized())
+            throw new FoodWebNotNormalizedException();
+        nodeCount = normalizedSubweb.nodeCount();
+        linkCount = normalizedSubweb.linkCount();
+        if (nodeIds == null) {
+            nodeIds = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++)
+                nodeIds[i] = i;
+        }
+        this.nodeIds = nodeIds;
+        this.subweb = subweb;
+        this.normalizedSubweb = normalizedSubweb;
+
+        producers = getNodeIdsOfType(NodeAttributes.NodeType.PRODUCER);
+        consumers = getNodeIdsOfType(NodeAttributes.NodeType.CONSUMER);
+
+        // The food web already holds its links grouped by predator, in order of prey, and never changes its arrays
+        preyOffsets = normalizedSubweb.getPreyOffsets();
+        prey = normalizedSubweb.getPreyPositions();
+
+        predatorOffsets = new int[nodeCount + 1];
+        predators = new int[linkCount];
+        predatorLinks = new int[linkCount];
+        for (int l = 0; l < linkCount; l++)
+            predatorOffsets[prey[l] + 1]++;
+        for (int j = 0; j < nodeCount; j++)
+            predatorOffsets[j + 1] += predatorOffsets[j];
+        int[] next = Arrays.copyOf(predatorOffsets, nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            for (int l = preyOffsets[i]; l < preyOffsets[i + 1]; l++) {
+                int k = next[prey[l]]++;
+                predators[k] = i;
+                predatorLinks[k] = l;
+            }
+        }
+    }
+
+    private int[] getNodeIdsOfType(NodeAttributes.NodeType nodeType) {
+        int count = 0;
+        int[] nodeIdsOfType = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++)
+            if (normalizedSubweb.getNodeType(i) == nodeType)
+                nodeIdsOfType[count++] = i;
+        return Arrays.copyOf(nodeIdsOfType, count);
+    }
+}
@@ -0,0 +1,74 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Streams the recorded biomass into an extendable matrix dataset of an open HDF5 file,
+ * one row per recorded timestep, as 32-bit floats,
+ * and the recorded timesteps into an extendable array dataset alongside it.
+ * Rows are buffered and written a chunk at a time, so memory use does not depend on the number of timesteps.
+ */
+public class HDF5BiomassSink implements BiomassSink {
+
+    public static final int BLOCK_ROWS = 1024;  // Default rows per block written (and per chunk of the datasets)
+
+    private IHDF5Writer writer;
+    private String biomassPath;
+    private String timestepsPath;
+    private int nodeCount;
+    private int blockRows;     // Rows per block written, the chunk size of the output file format
+    private float[][] block;
+    private int[] blockTimesteps;
+    private int bufferedRows;  // Rows of block not yet written
+    private long writtenRows;  // Rows written to the datasets
+
+    /**
+     * Create empty datasets for the biomass and the recorded timesteps.
+     *
+     * @param writer the writer of the open output file
+     * @param biomassPath the path of the biomass dataset
+     * @param timestepsPath the path of the dataset of the timestep of each row of biomass
+     * @param nodeCount number of nodes
+     * @param format the chunk size and compression of the datasets
+     */
+    public HDF5BiomassSink(IHDF5Writer writer, String biomassPath, String timestepsPath, int nodeCount,
+                           OutputFileFormat format) {
+        this.writer = writer;
+        this.biomassPath = biomassPath;
+        this.timestepsPath = timestepsPath;
+        this.nodeCount = nodeCount;
+        blockRows = format.chunkRows;
+        block = new float[blockRows][nodeCount];
+        blockTimesteps = new int[blockRows];
+        writer.float32().createMatrix(biomassPath, 0, nodeCount, blockRows, nodeCount, format.floatFeatures());
+        writer.int32().createArray(timestepsPath, 0, blockRows, format.intFeatures());
+    }
+
+    @Override
+    public void record(int timestep, double[] biomass) {
+        // A full block is only written when another row arrives, so that rows discarded by finish() never are
+        if (bufferedRows == blockRows)
+            writeBlock(blockRows);
+        blockTimesteps[bufferedRows] = timestep;
+        float[] row = block[bufferedRows++];
+        for (int i = 0; i < nodeCount; i++)
+            row[i] = (float) biomass[i];
+    }
+
+    @Override
+    public void finish(int timesteps) {
+        int rows = bufferedRows;
+        while (rows > 0 && blockTimesteps[rows - 1] >= timesteps)
+            rows--;
+        if (rows > 0)
+            writeBlock(rows);
+        bufferedRows = 0;
+    }
+
+    private void writeBlock(int rows) {
+        writer.float32().writeMatrixBlockWithOffset(biomassPath, block, rows, nodeCount, writtenRows, 0);
+        writer.int32().writeArrayBlockWithOffset(timestepsPath, blockTimesteps, rows, writtenRows);
+        writtenRows += rows;
+        bufferedRows = 0;
+    }
+}
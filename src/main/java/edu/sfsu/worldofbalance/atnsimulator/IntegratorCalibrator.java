@@ -0,0 +1,171 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import java.util.List;
+
+/**
+ * Chooses the integrator for a batch of simulations by running a sample of its node configs with each integrator.
+ *
+ * The sample is first simulated with the Gragg-Bulirsch-Stoer integrator at tolerances tighter than those requested,
+ * as a reference. Each candidate integrator is then timed on the sample at the requested tolerances.
+ * The fastest candidate whose final biomass agrees with the reference within the agreement tolerance
+ * (and which stops on the same event) is chosen.
+ */
+public class IntegratorCalibrator {
+
+    public static final double REFERENCE_TOLERANCE_FACTOR = 0.01;  // Reference tolerances relative to requested
+    public static final double BIOMASS_FLOOR = 1e-6;  // Biomass below which agreement is judged by absolute error
+
+    /**
+     * Outcome of a calibration: timing and agreement of each candidate, indexed like `candidates`.
+     */
+    public static class Result {
+        public SimulationParameters.IntegratorType[] candidates;
+        public long[] elapsedNanoseconds;  // Total run time on the sample (Long.MAX_VALUE if abandoned)
+        public double[] maxError;          // Largest relative error in final biomass
+        public boolean[] agrees;           // True if the candidate agreed with the reference on every sample
+        public SimulationParameters.IntegratorType chosen;
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int c = 0; c < candidates.length; c++) {
+                builder.append(String.format("%-22s %10s  max error %.3g%s%n",
+                        candidates[c],
+                        elapsedNanoseconds[c] == Long.MAX_VALUE
+                                ? "abandoned" : String.format("%.1f ms", elapsedNanoseconds[c] / 1e6),
+                        maxError[c],
+                        agrees[c] ? "" : " (disagrees)"));
+            }
+            builder.append("Chosen: ").append(chosen);
+            return builder.toString();
+        }
+    }
+
+    private TopologyCache topologyCache;  // Each node config of the sample is simulated with every candidate
+    private SimulationParameters simulationParameters;
+    private int nodeConfigBiomassScale;
+    private double agreementTolerance;
+
+    /**
+     * @param fullFoodWeb the food web from which node configs select subwebs
+     * @param simulationParameters the parameters the batch will be run with (the integrator type is ignored)
+     * @param nodeConfigBiomassScale node config biomass scale
+     * @param agreementTolerance maximum relative error in final biomass for a candidate to be acceptable
+     */
+    public IntegratorCalibrator(
+            FoodWeb fullFoodWeb,
+            SimulationParameters simulationParameters,
+            int nodeConfigBiomassScale,
+            double agreementTolerance) {
+        topologyCache = new TopologyCache(fullFoodWeb, TopologyCache.DEFAULT_CAPACITY);
+        this.simulationParameters = simulationParameters;
+        this.nodeConfigBiomassScale = nodeConfigBiomassScale;
+        this.agreementTolerance = agreementTolerance;
+    }
+
+    /**
+     * Run the calibration on the given sample of node configs.
+     * If no candidate agrees with the reference, Gragg-Bulirsch-Stoer is chosen.
+     */
+    public Result calibrate(List<String> nodeConfigs) {
+        Result result = new Result();
+        result.candidates = SimulationParameters.IntegratorType.values();
+        int candidateCount = result.candidates.length;
+        result.elapsedNanoseconds = new long[candidateCount];
+        result.maxError = new double[candidateCount];
+        result.agrees = new boolean[candidateCount];
+        result.chosen = SimulationParameters.IntegratorType.GRAGG_BULIRSCH_STOER;
+
+        SimulationParameters referenceParameters = copyParameters(SimulationParameters.IntegratorType.GRAGG_BULIRSCH_STOER);
+        referenceParameters.absoluteTolerance *= REFERENCE_TOLERANCE_FACTOR;
+        referenceParameters.relativeTolerance *= REFERENCE_TOLERANCE_FACTOR;
+        SimulationResults[] reference = new SimulationResults[nodeConfigs.size()];
+        for (int s = 0; s < reference.length; s++)
+            reference[s] = simulate(nodeConfigs.get(s), referenceParameters);
+
+        long bestTime = Long.MAX_VALUE;
+        for (int c = 0; c < candidateCount; c++) {
+            SimulationParameters candidateParameters = copyParameters(result.candidates[c]);
+            result.agrees[c] = true;
+
+            // Warm up so that the first candidate isn't penalized for JIT compilation
+            if (!nodeConfigs.isEmpty())
+                tryToSimulate(nodeConfigs.get(0), candidateParameters);
+
+            for (int s = 0; s < nodeConfigs.size() && result.agrees[c]; s++) {
+                long start = System.nanoTime();
+                SimulationResults results = tryToSimulate(nodeConfigs.get(s), candidateParameters);
+                result.elapsedNanoseconds[c] += System.nanoTime() - start;
+
+                if (results == null) {
+                    result.agrees[c] = false;
+                    result.maxError[c] = Double.POSITIVE_INFINITY;
+                } else {
+                    double error = finalBiomassError(reference[s], results);
+                    result.maxError[c] = Math.max(result.maxError[c], error);
+                    result.agrees[c] = error <= agreementTolerance && results.stopEvent == reference[s].stopEvent;
+                }
+
+                // No point continuing with a candidate that can't win
+                if (result.elapsedNanoseconds[c] > bestTime) {
+                    result.elapsedNanoseconds[c] = Long.MAX_VALUE;
+                    result.agrees[c] = false;
+                }
+            }
+
+            if (result.agrees[c] && result.elapsedNanoseconds[c] < bestTime) {
+                bestTime = result.elapsedNanoseconds[c];
+                result.chosen = result.candidates[c];
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the largest relative difference between the final biomasses,
+     * using absolute difference for biomass below BIOMASS_FLOOR
+     */
+    static double finalBiomassError(SimulationResults reference, SimulationResults results) {
+        double maxError = 0;
+        for (int i = 0; i < reference.finalBiomass.length; i++) {
+            double scale = Math.max(Math.abs(reference.finalBiomass[i]), BIOMASS_FLOOR);
+            maxError = Math.max(maxError, Math.abs(results.finalBiomass[i] - reference.finalBiomass[i]) / scale);
+        }
+        return maxError;
+    }
+
+    private SimulationResults simulate(String nodeConfig, SimulationParameters parameters) {
+        NodeConfigParser.Result parseResult = new NodeConfigParser(nodeConfigBiomassScale).parse(nodeConfig);
+        FoodWebTopology topology = topologyCache.get(parseResult.nodeIds);
+        Simulation simulation = BatchSimulationTask.createSimulation(topology, parseResult, parameters);
+        simulation.run();
+        return simulation.getResults();
+    }
+
+    /**
+     * @return the results, or null if the integrator failed (e.g. by requiring a step smaller than its minimum)
+     */
+    private SimulationResults tryToSimulate(String nodeConfig, SimulationParameters parameters) {
+        try {
+            return simulate(nodeConfig, parameters);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private SimulationParameters copyParameters(SimulationParameters.IntegratorType integratorType) {
+        SimulationParameters parameters = new SimulationParameters();
+        parameters.timesteps = simulationParameters.timesteps;
+        parameters.stepSize = simulationParameters.stepSize;
+        parameters.stopOnSteadyState = simulationParameters.stopOnSteadyState;
+        parameters.recordBiomass = false;
+        parameters.removeExtinctNodes = simulationParameters.removeExtinctNodes;
+        parameters.solveForEquilibrium = simulationParameters.solveForEquilibrium;
+        parameters.analyzeStability = false;
+        parameters.integratorType = integratorType;
+        parameters.absoluteTolerance = simulationParameters.absoluteTolerance;
+        parameters.relativeTolerance = simulationParameters.relativeTolerance;
+        return parameters;
+    }
+}
@@ -0,0 +1,90 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+/**
+ * The link-level parameters of a ModelParameters object in compressed sparse row (CSR) form,
+ * holding values only for the links that exist in a food web.
+ * ModelParameters remains the dense, [predatorId][preyId]-indexed view of the parameters;
+ * this is the form used by ModelEquations.
+ *
+ * Links are numbered 0..(linkCount-1), grouped by predator and ordered by prey node ID within each predator.
+ * The links of predator i are numbered preyOffsets[i] until preyOffsets[i+1],
+ * and prey[l] is the prey node ID of link l.
+ * Each link-level parameter is an array indexed by link number.
+ *
+ * The same links grouped by prey are described by predatorOffsets, predators, and predatorLinks:
+ * for k from predatorOffsets[j] until predatorOffsets[j+1],
+ * predators[k] is a predator of node j, and predatorLinks[k] is the number of that link.
+ *
+ * The food web must have normalized node IDs.
+ * The arrays describing the links may be shared with other objects (see FoodWebTopology), and must not be changed.
+ */
+public class LinkParameters {
+
+    public final int nodeCount;
+    public final int linkCount;
+
+    // Links grouped by predator
+    public final int[] preyOffsets;
+    public final int[] prey;
+
+    // Links grouped by prey
+    public final int[] predatorOffsets;
+    public final int[] predators;
+    public final int[] predatorLinks;
+
+    // Link-level parameters, indexed by link number
+    public final double[] maximumIngestionRate;           // y: Maximum ingestion rate
+    public final double[] predatorInterference;           // d: Predator interference
+    public final double[] functionalResponseControl;      // q: Functional response control parameter
+    public final double[] relativeHalfSaturationDensity;  // alpha: Relative half saturation density
+    public final double[] halfSaturationDensity;          // B0: Half saturation density
+    public final double[] assimilationEfficiency;         // e: Assimilation efficiency
+
+    /**
+     * Extract the parameters of the links in `foodWeb` from `parameters`.
+     */
+    public LinkParameters(FoodWeb foodWeb, ModelParameters parameters) {
+        this(new FoodWebTopology(foodWeb), parameters);
+    }
+
+    /**
+     * Extract the parameters of the links of a compiled food web from `parameters`.
+     * The link arrays are those of the topology, shared rather than copied.
+     */
+    public LinkParameters(FoodWebTopology topology, ModelParameters parameters) {
+        nodeCount = topology.nodeCount;
+        linkCount = topology.linkCount;
+        preyOffsets = topology.preyOffsets;
+        prey = topology.prey;
+        predatorOffsets = topology.predatorOffsets;
+        predators = topology.predators;
+        predatorLinks = topology.predatorLinks;
+
+        maximumIngestionRate = gather(parameters.maximumIngestionRate);
+        predatorInterference = gather(parameters.predatorInterference);
+        functionalResponseControl = gather(parameters.functionalResponseControl);
+        relativeHalfSaturationDensity = gather(parameters.relativeHalfSaturationDensity);
+        halfSaturationDensity = gather(parameters.halfSaturationDensity);
+        assimilationEfficiency = gather(parameters.assimilationEfficiency);
+    }
+
+    /**
+     * Expand one of the link-level parameter arrays of this object into a dense [predatorId][preyId] matrix,
+     * with zeros for absent links.
+     */
+    public double[][] toDense(double[] values) {
+        double[][] matrix = new double[nodeCount][nodeCount];
+        for (int i = 0; i < nodeCount; i++)
+            for (int l = preyOffsets[i]; l < preyOffsets[i + 1]; l++)
+                matrix[i][prey[l]] = values[l];
+        return matrix;
+    }
+
+    private double[] gather(double[][] matrix) {
+        double[] values = new double[linkCount];
+        for (int i = 0; i < nodeCount; i++)
+            for (int l = preyOffsets[i]; l < preyOffsets[i + 1]; l++)
+                values[l] = matrix[i][prey[l]];
+        return values;
+    }
+}
@@ -1,9 +1,8 @@
 package edu.sfsu.worldofbalance.atnsimulator;
 
-import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.ode.MainStateJacobianProvider;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Implements the ATN model differential equations in a form usable by the Apache Commons Math integrators.
@@ -16,62 +15,106 @@ import java.util.List;
  *    (Boit et al. 2012)
  *    The competition coefficient c[i][j] is currently fixed at 1.
  *
+ * The Jacobian of the equations is also provided, for use by implicit integrators and stability analysis.
+ *
  * @author Ben Saylor
  * @see <a href="https://commons.apache.org/proper/commons-math/userguide/ode.html">The Apache Commons Math ode package documentation</a>
  */
-public class ModelEquations implements FirstOrderDifferentialEquations {
+public class ModelEquations implements MainStateJacobianProvider {
 
     public static final double EXTINCT = 1.0e-15;  // Extinction threshold
 
-    private FoodWeb foodWeb;
+    private FoodWebTopology topology;
     private ModelParameters p;
+    private LinkParameters links;           // Link-level parameters of p in sparse form
     private int nodeCount;
     private int[] producers;                // node IDs of producers
     private int[] consumers;                // node IDs of consumers
     private double[] biomass;               // Current biomass of each node
-    private int[][] predatorsOf;            // predatorsOf[i] contains the node IDs of the predators of node i
-    private int[][] preyOf;                 // preyOf[i] contains the node IDs of the prey of node i
     private double[] growthFunction;        // Computed values of growth function (G in the literature)
-    private double[][] functionalResponse;  // Computed values of functional response (F in the literature)
+    private double[] functionalResponse;    // Computed values of functional response (F in the literature) per link
+    private double[] preyBiomassTerm;       // B[j]^(1+q[i][j]) for each link from prey j to predator i
+    private double[] preySum;               // sum over prey j of alpha[i][j] * B[j]^(1+q[i][j]) for each consumer i
+
+    // Coefficients computed from the parameters by setParameters()
+    private double[] exponent;                  // 1 + q[i][j] for each link
+    private double[] halfSaturationTerm;        // B0[i][j]^(1+q[i][j]) for each link
+    private double[] ingestionCoefficient;      // x[i] * y[i][j] * alpha[i][j] for each link
+    private double[] lossCoefficient;           // x[i] * y[i][j] * alpha[i][j] / e[i][j] for each link
+    private double[] metabolicRate;             // x[i] for each node
+    private double[] growthRate;                // r[i] for each node
+    private double[] inverseCarryingCapacity;   // 1 / K[i] for each node
+    private boolean useSystemCarryingCapacity;
+    private double inverseSystemCarryingCapacity;  // 1 / Ks
 
-    private double[] currentDerivatives;    // Most recently computed derivatives for use by event handlers
+    // The most recently computed derivatives and the state they were computed at.
+    // Event handlers evaluate the derivatives at states the integrator (or another event handler)
+    // has often just evaluated, so these are returned rather than computed again.
+    // The intermediate values above (biomass, growthFunction, etc.) are always those of this state.
+    private double cachedTime;
+    private double[] cachedBiomass;
+    private double[] currentDerivatives;
+    private int evaluations;                // Number of times the derivatives have actually been computed
 
     public ModelEquations(FoodWeb foodWeb, ModelParameters parameters) {
-        nodeCount = foodWeb.nodeCount();
+        this(new FoodWebTopology(foodWeb), parameters);
+    }
+
+    /**
+     * Create the equations of a compiled food web, which may be shared with other equations.
+     */
+    public ModelEquations(FoodWebTopology topology, ModelParameters parameters) {
+        nodeCount = topology.nodeCount;
 
         if (nodeCount == 0)
             throw new EmptyFoodWebException();
-        if (!foodWeb.nodeIdsAreNormalized())
-            throw new FoodWebNotNormalizedException();
-
-        setParameters(parameters);
 
-        this.foodWeb = foodWeb;
-        producers = getNodeIdsOfType(NodeAttributes.NodeType.PRODUCER);
-        consumers = getNodeIdsOfType(NodeAttributes.NodeType.CONSUMER);
+        this.topology = topology;
+        producers = topology.producers;
+        consumers = topology.consumers;
         biomass = new double[nodeCount];
+        growthFunction = new double[nodeCount];
+        preySum = new double[nodeCount];
+        cachedBiomass = new double[nodeCount];
+        currentDerivatives = new double[nodeCount];
 
-        predatorsOf = new int[nodeCount][];
-        preyOf = new int[nodeCount][];
-        for (int i = 0; i < nodeCount; i++) {
-            predatorsOf[i] = foodWeb.getPredatorsOf(i).stream().mapToInt(j -> j).toArray();
-            preyOf[i] = foodWeb.getPreyOf(i).stream().mapToInt(j -> j).toArray();
-        }
+        setParameters(parameters);
 
-        growthFunction = new double[nodeCount];
-        functionalResponse = new double[nodeCount][nodeCount];
+        functionalResponse = new double[links.linkCount];
+        preyBiomassTerm = new double[links.linkCount];
     }
 
+    /**
+     * Set the model parameters.
+     * The coefficients used in computing the derivatives are computed from the parameters at this point,
+     * so later changes to the parameters require calling this method again to take effect.
+     */
     public void setParameters(ModelParameters parameters) {
         if (!parametersHaveCorrectDimensions(parameters))
             throw new IncorrectParameterDimensionsException();
         this.p = parameters;
+        this.links = new LinkParameters(topology, parameters);
+        computeCoefficients();
+        cachedTime = Double.NaN;  // Invalidate the cached derivatives
     }
 
     public ModelParameters getParameters() {
         return p;
     }
 
+    /**
+     * Return the equations of the subweb of the given nodes, with the same parameters,
+     * in which node i is node nodeIds[i] of these equations.
+     * If the nodes left out are extinct, the derivatives of the remaining nodes are unchanged,
+     * since extinct nodes have no effect on the others.
+     *
+     * @param nodeIds the node IDs to include
+     * @return the equations of the given nodes
+     */
+    public ModelEquations subsystem(int[] nodeIds) {
+        return new ModelEquations(new FoodWebTopology(topology.normalizedSubweb, nodeIds), p.subset(nodeIds));
+    }
+
     @Override
     public int getDimension() {
         return nodeCount;
@@ -79,6 +122,8 @@ public class ModelEquations implements FirstOrderDifferentialEquations {
 
     /**
      * Compute the derivatives of biomass of each node.
+     * If they were computed most recently for the same time and biomass,
+     * the stored result is copied instead of computing them again.
      *
      * @param t Time
      * @param Bt Biomass of each node at time t
@@ -86,25 +131,131 @@ public class ModelEquations implements FirstOrderDifferentialEquations {
      */
     @Override
     public void computeDerivatives(double t, double[] Bt, double[] BDot) {
+        if (!isCached(t, Bt))
+            evaluate(t, Bt);
+        System.arraycopy(currentDerivatives, 0, BDot, 0, nodeCount);
+    }
+
+    /**
+     * @return true if the most recently computed derivatives are those at time t and biomass Bt
+     */
+    private boolean isCached(double t, double[] Bt) {
+        return t == cachedTime && Arrays.equals(Bt, cachedBiomass);
+    }
+
+    /**
+     * Compute the derivatives at time t and biomass Bt into currentDerivatives,
+     * along with the intermediate values used by the Jacobian.
+     */
+    private void evaluate(double t, double[] Bt) {
         // Copy Bt to biomass, setting biomass below extinction threshold to 0
         // (Copying because API doesn't specify whether state vector Bt can be modified)
         for (int i = 0; i < nodeCount; i++) {
             biomass[i] = Bt[i] < EXTINCT ? 0.0 : Bt[i];
         }
 
-        computeFunctionalResponse();
+        double[] BDot = currentDerivatives;
         computeGrowthFunction();
-        computeProducerDerivatives(BDot);
-        computeConsumerDerivatives(BDot);
+        for (int i : producers) {
+            BDot[i] = growthRate[i] * biomass[i] * growthFunction[i];
+        }
+        for (int i : consumers) {
+            BDot[i] = -metabolicRate[i] * biomass[i];
+        }
+        computeFeeding(BDot);
 
-        // Save derivatives for use by event handlers
-        this.currentDerivatives = BDot;
+        cachedTime = t;
+        System.arraycopy(Bt, 0, cachedBiomass, 0, nodeCount);
+        evaluations++;
     }
 
+    /**
+     * Compute the Jacobian of the equations: dFdY[i][m] is the partial derivative of BDot[i] with respect to B[m].
+     * Only the nonzero entries are computed, so apart from clearing dFdY,
+     * the cost is proportional to the number of links plus the sum of the squared prey counts of the consumers
+     * (each prey of a consumer affects the functional response of every other prey of that consumer).
+     * Biomass below the extinction threshold is treated as constant at 0, so its column is 0.
+     *
+     * @param t Time
+     * @param Bt Biomass of each node at time t
+     * @param BDot Derivative of biomass of each node at time t (not used)
+     * @param dFdY Output: the Jacobian matrix, with dimensions nodeCount x nodeCount
+     */
+    @Override
+    public void computeMainStateJacobian(double t, double[] Bt, double[] BDot, double[][] dFdY) {
+        // Compute biomass, growth function, functional response, etc. at Bt
+        if (!isCached(t, Bt))
+            evaluate(t, Bt);
+
+        for (double[] row : dFdY)
+            Arrays.fill(row, 0);
+
+        // Producer growth: r[i] * B[i] * G[i]
+        for (int i : producers) {
+            if (useSystemCarryingCapacity) {
+                dFdY[i][i] += growthRate[i] * growthFunction[i];
+                for (int m : producers)
+                    dFdY[i][m] -= growthRate[i] * biomass[i] * inverseSystemCarryingCapacity;
+            } else {
+                dFdY[i][i] += growthRate[i] * (growthFunction[i] - biomass[i] * inverseCarryingCapacity[i]);
+            }
+        }
+
+        // Consumer metabolism: -x[i] * B[i]
+        for (int i : consumers)
+            dFdY[i][i] -= metabolicRate[i];
+
+        // Feeding: consumer i gains ingestionCoefficient[l] * F[l] * B[i] and prey j loses lossCoefficient[l] * F[l] * B[i]
+        // for each link l from j to i, where F[l] = W[l] / D[l], W[l] = B[j]^(1+q[l]), D[l] = B0[l]^(1+q[l]) + preySum[i].
+        // For prey m of i via link n, dF[l]/dB[m] = (l == n ? dW[n] / D[l] : 0) - W[l] * alpha[n] * dW[n] / D[l]^2.
+        int[] prey = links.prey;
+        double[] alpha = links.relativeHalfSaturationDensity;
+        for (int i : consumers) {
+            int start = links.preyOffsets[i];
+            int end = links.preyOffsets[i + 1];
+            double gainSum = 0;  // sum over l of ingestionCoefficient[l] * B[i] * W[l] / D[l]^2
+            for (int l = start; l < end; l++) {
+                double D = halfSaturationTerm[l] + preySum[i];
+                gainSum += ingestionCoefficient[l] * biomass[i] * preyBiomassTerm[l] / (D * D);
+                dFdY[i][i] += ingestionCoefficient[l] * functionalResponse[l];
+                dFdY[prey[l]][i] -= lossCoefficient[l] * functionalResponse[l];
+            }
+            for (int n = start; n < end; n++) {
+                int m = prey[n];
+                if (biomass[m] == 0)
+                    continue;  // Extinct
+                double dW = exponent[n] * Math.pow(biomass[m], exponent[n] - 1);
+                double Dn = halfSaturationTerm[n] + preySum[i];
+                dFdY[i][m] += dW * (ingestionCoefficient[n] * biomass[i] / Dn - alpha[n] * gainSum);
+                dFdY[m][m] -= lossCoefficient[n] * biomass[i] * dW / Dn;
+                for (int l = start; l < end; l++) {
+                    double D = halfSaturationTerm[l] + preySum[i];
+                    dFdY[prey[l]][m] += lossCoefficient[l] * biomass[i] * preyBiomassTerm[l] * alpha[n] * dW / (D * D);
+                }
+            }
+        }
+
+        // Extinct nodes have no effect on the derivatives
+        for (int m = 0; m < nodeCount; m++)
+            if (Bt[m] < EXTINCT)
+                for (double[] row : dFdY)
+                    row[m] = 0;
+    }
+
+    /**
+     * @return the most recently computed derivatives (owned by the equations and overwritten by the next computation)
+     */
     public double[] getCurrentDerivatives() {
         return currentDerivatives;
     }
 
+    /**
+     * @return the number of times the derivatives have been computed, not counting those returned from the cache
+     */
+    public int getEvaluations() {
+        return evaluations;
+    }
+
     public int[] getProducers() {
         return producers;
     }
@@ -113,79 +264,83 @@ public class ModelEquations implements FirstOrderDifferentialEquations {
         return consumers;
     }
 
-    private void computeFunctionalResponse() {
+    /**
+     * Add the biomass gained by each consumer from its prey to BDot, and subtract the biomass lost by each prey.
+     *
+     * The functional response is
+     * F[i][j] = B[j]^(1+q[i][j]) / (B0[i][j]^(1+q[i][j]) + sum over prey m of (alpha[i][m] * B[m]^(1+q[i][m]))).
+     * The sum in the denominator doesn't depend on j, so it is computed once per consumer,
+     * along with the B[m]^(1+q[i][m]) terms, which also appear in the numerators.
+     */
+    private void computeFeeding(double[] BDot) {
+        int[] prey = links.prey;
+        double[] alpha = links.relativeHalfSaturationDensity;
         for (int i : consumers) {
-            for (int j : preyOf[i]) {
-                double numerator = Math.pow(biomass[j], 1 + p.functionalResponseControl[i][j]);
-                double denominator = Math.pow(p.halfSaturationDensity[i][j], 1 + p.functionalResponseControl[i][j]);
-                for (int m : preyOf[i]) {
-                    denominator += p.relativeHalfSaturationDensity[i][m] *
-                            Math.pow(biomass[m], 1 + p.functionalResponseControl[i][m]);
-                }
-                functionalResponse[i][j] = numerator / denominator;
+            int start = links.preyOffsets[i];
+            int end = links.preyOffsets[i + 1];
+            double sum = 0;
+            for (int l = start; l < end; l++) {
+                preyBiomassTerm[l] = Math.pow(biomass[prey[l]], exponent[l]);
+                sum += alpha[l] * preyBiomassTerm[l];
             }
+            preySum[i] = sum;
+            double gain = 0;
+            for (int l = start; l < end; l++) {
+                double F = preyBiomassTerm[l] / (halfSaturationTerm[l] + sum);
+                functionalResponse[l] = F;
+                gain += ingestionCoefficient[l] * F;
+                BDot[prey[l]] -= lossCoefficient[l] * F * biomass[i];
+            }
+            BDot[i] += gain * biomass[i];
         }
     }
 
     private void computeGrowthFunction() {
-        if (p.useSystemCarryingCapacity) {
+        if (useSystemCarryingCapacity) {
             // Use system-wide carrying capacity
+            double numerator = 0;
+            for (int j : producers) {
+                numerator += biomass[j];  // Assumes producer competition coefficient c_ij is 1
+            }
             for (int i : producers) {
-                double numerator = 0;
-                for (int j : producers) {
-                    numerator += biomass[j];  // Assumes producer competition coefficient c_ij is 1
-                }
-                growthFunction[i] = 1 - numerator / p.systemCarryingCapacity;
+                growthFunction[i] = 1 - numerator * inverseSystemCarryingCapacity;
             }
         } else {
             // Use node-level carrying capacity
             for (int i : producers) {
-                growthFunction[i] = 1 - biomass[i] / p.carryingCapacity[i];
+                growthFunction[i] = 1 - biomass[i] * inverseCarryingCapacity[i];
             }
         }
     }
 
-    private void computeProducerDerivatives(double[] BDot) {
-        for (int i : producers) {
-            BDot[i] = p.growthRate[i] * biomass[i] * growthFunction[i];
-            for (int j : predatorsOf[i]) {
-                BDot[i] -= p.metabolicRate[j]
-                        * p.maximumIngestionRate[j][i]
-                        * p.relativeHalfSaturationDensity[j][i]
-                        * functionalResponse[j][i]
-                        * biomass[j]
-                        / p.assimilationEfficiency[j][i];
-            }
-        }
-    }
-
-    private void computeConsumerDerivatives(double[] BDot) {
-        for (int i : consumers) {
-            BDot[i] = -p.metabolicRate[i] * biomass[i];
-            for (int j : preyOf[i]) {
-                BDot[i] += p.metabolicRate[i]
-                        * p.maximumIngestionRate[i][j]
-                        * p.relativeHalfSaturationDensity[i][j]
-                        * functionalResponse[i][j]
-                        * biomass[i];
-            }
-            for (int j : predatorsOf[i]) {
-                BDot[i] -= p.metabolicRate[j]
-                        * p.maximumIngestionRate[j][i]
-                        * p.relativeHalfSaturationDensity[j][i]
-                        * functionalResponse[j][i]
-                        * biomass[j]
-                        / p.assimilationEfficiency[j][i];
+    /**
+     * Compute the parameter-dependent coefficients of the terms of the equations,
+     * which are constant until the parameters change.
+     */
+    private void computeCoefficients() {
+        int linkCount = links.linkCount;
+        exponent = new double[linkCount];
+        halfSaturationTerm = new double[linkCount];
+        ingestionCoefficient = new double[linkCount];
+        lossCoefficient = new double[linkCount];
+        for (int i = 0; i < nodeCount; i++) {
+            for (int l = links.preyOffsets[i]; l < links.preyOffsets[i + 1]; l++) {
+                exponent[l] = 1 + links.functionalResponseControl[l];
+                halfSaturationTerm[l] = Math.pow(links.halfSaturationDensity[l], exponent[l]);
+                ingestionCoefficient[l] = p.metabolicRate[i]
+                        * links.maximumIngestionRate[l]
+                        * links.relativeHalfSaturationDensity[l];
+                lossCoefficient[l] = ingestionCoefficient[l] / links.assimilationEfficiency[l];
             }
         }
-    }
 
-    private int[] getNodeIdsOfType(NodeAttributes.NodeType nodeType) {
-        List<Integer> nodeIds = new LinkedList<>();
+        metabolicRate = p.metabolicRate.clone();
+        growthRate = p.growthRate.clone();
+        inverseCarryingCapacity = new double[nodeCount];
         for (int i = 0; i < nodeCount; i++)
-            if (foodWeb.getNodeAttributes(i).nodeType == nodeType)
-                nodeIds.add(i);
-        return nodeIds.stream().mapToInt(i -> i).toArray();
+            inverseCarryingCapacity[i] = 1 / p.carryingCapacity[i];
+        useSystemCarryingCapacity = p.useSystemCarryingCapacity;
+        inverseSystemCarryingCapacity = 1 / p.systemCarryingCapacity;
     }
 
     private boolean parametersHaveCorrectDimensions(ModelParameters parameters) {
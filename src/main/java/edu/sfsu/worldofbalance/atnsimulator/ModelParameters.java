@@ -67,8 +67,8 @@ public class ModelParameters {
         if (!foodWeb.nodeIdsAreNormalized())
             throw new FoodWebNotNormalizedException();
 
-        for (int nodeId : foodWeb.nodes()) {
-            switch (foodWeb.getNodeAttributes(nodeId).nodeType) {
+        for (int nodeId = 0; nodeId < foodWeb.nodeCount(); nodeId++) {
+            switch (foodWeb.getNodeType(nodeId)) {
                 case PRODUCER:
                     fillColumn(assimilationEfficiency, nodeId, Defaults.assimilationEfficiencyPlant);
                     break;
@@ -79,6 +79,32 @@ public class ModelParameters {
         }
     }
 
+    /**
+     * Return the parameters of a subset of the nodes,
+     * with node i of the new parameters being node nodeIds[i] of these.
+     * The system-wide parameters are copied unchanged.
+     *
+     * @param nodeIds the node IDs to include
+     * @return the parameters of the given nodes
+     */
+    public ModelParameters subset(int[] nodeIds) {
+        ModelParameters subset = new ModelParameters(nodeIds.length);
+        subset.useSystemCarryingCapacity = useSystemCarryingCapacity;
+        subset.systemCarryingCapacity = systemCarryingCapacity;
+
+        subset.metabolicRate = subvector(metabolicRate, nodeIds);
+        subset.growthRate = subvector(growthRate, nodeIds);
+        subset.carryingCapacity = subvector(carryingCapacity, nodeIds);
+
+        subset.maximumIngestionRate = submatrix(maximumIngestionRate, nodeIds);
+        subset.predatorInterference = submatrix(predatorInterference, nodeIds);
+        subset.functionalResponseControl = submatrix(functionalResponseControl, nodeIds);
+        subset.relativeHalfSaturationDensity = submatrix(relativeHalfSaturationDensity, nodeIds);
+        subset.halfSaturationDensity = submatrix(halfSaturationDensity, nodeIds);
+        subset.assimilationEfficiency = submatrix(assimilationEfficiency, nodeIds);
+        return subset;
+    }
+
     /**
      * Set systemCarryingCapacity to the sum of node-level carryingCapacity
      */
@@ -121,6 +147,20 @@ public class ModelParameters {
         return matrix;
     }
 
+    private static double[] subvector(double[] vector, int[] indices) {
+        double[] subvector = new double[indices.length];
+        for (int i = 0; i < indices.length; i++)
+            subvector[i] = vector[indices[i]];
+        return subvector;
+    }
+
+    private static double[][] submatrix(double[][] matrix, int[] indices) {
+        double[][] submatrix = new double[indices.length][];
+        for (int i = 0; i < indices.length; i++)
+            submatrix[i] = subvector(matrix[indices[i]], indices);
+        return submatrix;
+    }
+
     private static void fillColumn(double[][] matrix, int column, double value) {
         for (int row = 0; row < matrix.length; row++)
             matrix[row][column]  = value;
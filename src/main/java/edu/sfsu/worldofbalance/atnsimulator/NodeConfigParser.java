@@ -24,9 +24,25 @@ import java.util.regex.Pattern;
  * 9. p=#, //p=link parameter ID (A, E, D, Q, Y)
  *  {repeat 8-9 based on number given in 7}
  *  {repeat 2-9 based on number given in 1}
+ *
+ * Node configs are first read by a scanner that makes a single pass over the characters,
+ * without regular expressions and, except for numbers with more digits than a double holds exactly,
+ * without allocating anything but the result.
+ * It accepts only plain integers and decimal numbers, and anything else it finds,
+ * including every syntax error, sends the node config to the original tokenizing parser (parseWithPatterns()),
+ * so that the results and the errors are always those of that parser.
  */
 public class NodeConfigParser {
 
+    private static final double[] POWERS_OF_TEN = new double[23];  // Exactly representable powers of 10
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
     private double biomassScale;
     private StringTokenizer tokenizer;
     private Result result;
@@ -35,6 +51,10 @@ public class NodeConfigParser {
     private String nodeConfig;
     private int currentNodeIndex;
 
+    // State of the scanner
+    private String text;
+    private int position;
+
     public NodeConfigParser() {
         this(1);
     }
@@ -55,6 +75,15 @@ public class NodeConfigParser {
      * Parse the given node config string.
      */
     public Result parse(String nodeConfig) {
+        Result result = scan(nodeConfig);
+        return result != null ? result : parseWithPatterns(nodeConfig);
+    }
+
+    /**
+     * Parse the given node config string with the tokenizer and regular expressions,
+     * throwing a NodeConfigSyntaxError if it is not valid.
+     */
+    Result parseWithPatterns(String nodeConfig) {
         try {
             return parseThrowingExceptions(nodeConfig);
         } catch(NodeConfigSyntaxError e) {
@@ -95,6 +124,197 @@ public class NodeConfigParser {
         }
     }
 
+    /**
+     * Parse the given node config string in a single pass over its characters.
+     * @return the result, or null if the node config is not one that the scanner accepts
+     */
+    Result scan(String nodeConfig) {
+        text = nodeConfig;
+        position = 0;
+        int nodeCount = scanInteger();
+        // Every node takes more than one character, so a larger count is an error, found by the parser
+        if (nodeCount < 0 || nodeCount > text.length())
+            return null;
+        Result result = new Result(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            if (!scanNodeSection(result, i))
+                return null;
+        }
+        skipDelimiters();
+        return position == text.length() ? result : null;
+    }
+
+    private boolean scanNodeSection(Result result, int nodeIndex) {
+        int nodeId = scanBracketedInteger();
+        if (nodeId < 0)
+            return false;
+        result.nodeIds[nodeIndex] = nodeId;
+
+        skipDelimiters();
+        double biomass = scanDecimal();
+        if (Double.isNaN(biomass))
+            return false;
+        result.initialBiomass[nodeIndex] = biomass / biomassScale;
+
+        // Skip per-unit biomass
+        skipDelimiters();
+        if (atTokenEnd())
+            return false;
+        while (!atTokenEnd())
+            position++;
+
+        int nodeParameterCount = scanInteger();
+        if (nodeParameterCount < 0)
+            return false;
+        for (int p = 0; p < nodeParameterCount; p++) {
+            skipDelimiters();
+            if (position + 2 > text.length() || text.charAt(position + 1) != '=')
+                return false;
+            char name = text.charAt(position);
+            position += 2;
+            double value = scanDecimal();
+            if (Double.isNaN(value))
+                return false;
+            switch (name) {
+                case 'X':
+                    result.parameters.metabolicRate[nodeIndex] = value;
+                    break;
+                case 'R':
+                    result.parameters.growthRate[nodeIndex] = value;
+                    break;
+                case 'K':
+                    result.parameters.carryingCapacity[nodeIndex] = value / biomassScale;
+                    break;
+                default:
+                    return false;
+            }
+        }
+
+        // Link parameters are not supported
+        return scanInteger() == 0;
+    }
+
+    /**
+     * Scan a token of at most 9 digits.
+     * @return its value, or -1 if it is not such a token
+     */
+    private int scanInteger() {
+        skipDelimiters();
+        int value = scanDigits();
+        return value >= 0 && atTokenEnd() ? value : -1;
+    }
+
+    /**
+     * Scan a token in the form [#], where # is at most 9 digits.
+     * @return the value of #, or -1 if it is not such a token
+     */
+    private int scanBracketedInteger() {
+        skipDelimiters();
+        if (position == text.length() || text.charAt(position) != '[')
+            return -1;
+        position++;
+        int value = scanDigits();
+        if (value < 0 || position == text.length() || text.charAt(position) != ']')
+            return -1;
+        position++;
+        return atTokenEnd() ? value : -1;
+    }
+
+    /**
+     * @return the value of the 1 to 9 digits at the current position, or -1 if there are none or more
+     */
+    private int scanDigits() {
+        int start = position;
+        int value = 0;
+        while (position < text.length() && isDigit(text.charAt(position)) && position - start < 9)
+            value = value * 10 + (text.charAt(position++) - '0');
+        if (position == start || (position < text.length() && isDigit(text.charAt(position))))
+            return -1;
+        return value;
+    }
+
+    /**
+     * Scan the rest of a token in the form [+-]digits[.digits][(e|E)[+-]digits], with at least one digit before
+     * the exponent, giving the same value as Double.parseDouble(). When the digits and the power of ten fit
+     * in a double exactly, a single correctly rounded multiplication or division gives that value
+     * (Clinger's fast path); otherwise the token is passed to Double.parseDouble().
+     * @return the value, or NaN if the token is not in that form
+     */
+    private double scanDecimal() {
+        int start = position;
+        boolean negative = false;
+        if (position < text.length() && (text.charAt(position) == '-' || text.charAt(position) == '+'))
+            negative = text.charAt(position++) == '-';
+
+        long mantissa = 0;
+        boolean exact = true;
+        int digits = 0;
+        int scale = 0;  // Power of ten by which to multiply the mantissa
+        boolean point = false;
+        for (; position < text.length(); position++) {
+            char c = text.charAt(position);
+            if (c == '.' && !point) {
+                point = true;
+            } else if (isDigit(c)) {
+                digits++;
+                if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (point)
+                        scale--;
+                } else {
+                    exact = false;
+                }
+            } else {
+                break;
+            }
+        }
+        if (digits == 0)
+            return Double.NaN;
+
+        if (position < text.length() && (text.charAt(position) == 'e' || text.charAt(position) == 'E')) {
+            position++;
+            boolean negativeExponent = false;
+            if (position < text.length() && (text.charAt(position) == '-' || text.charAt(position) == '+'))
+                negativeExponent = text.charAt(position++) == '-';
+            int exponentStart = position;
+            int exponent = 0;
+            while (position < text.length() && isDigit(text.charAt(position))) {
+                if (exponent < 100000)
+                    exponent = exponent * 10 + (text.charAt(position) - '0');
+                position++;
+            }
+            if (position == exponentStart)
+                return Double.NaN;
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        if (!atTokenEnd())
+            return Double.NaN;
+
+        if (exact && mantissa == 0)
+            return negative ? -0.0 : 0.0;
+        if (!exact || scale < -22 || scale > 22)
+            return Double.parseDouble(text.substring(start, position));
+        double value = scale < 0 ? mantissa / POWERS_OF_TEN[-scale] : mantissa * POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    private void skipDelimiters() {
+        while (position < text.length() && isDelimiter(text.charAt(position)))
+            position++;
+    }
+
+    private boolean atTokenEnd() {
+        return position == text.length() || isDelimiter(text.charAt(position));
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c == ',' || c == ' ';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
     private Result parseThrowingExceptions(String nodeConfig) {
         this.nodeConfig = nodeConfig;
         tokenizer = new StringTokenizer(nodeConfig, ", ");
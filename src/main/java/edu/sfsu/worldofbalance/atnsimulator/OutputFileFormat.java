@@ -0,0 +1,44 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+
+/**
+ * Storage layout of the larger datasets of HDF5 output files:
+ * the biomass series, the link-level parameters and the datasets of a batch output file.
+ *
+ * They are stored in chunks (of chunkRows rows, for the biomass series), and with a deflateLevel above 0,
+ * each chunk is compressed with the deflate filter after shuffling the bytes of its elements,
+ * so that the similar high-order bytes of neighbouring values are compressed together.
+ */
+public class OutputFileFormat {
+
+    public int chunkRows = HDF5BiomassSink.BLOCK_ROWS;  // Rows of the biomass series per chunk
+    public int deflateLevel = 0;                        // 1 (fastest) to 9 (smallest), or 0 for no compression
+
+    /**
+     * @return the storage features of floating-point datasets
+     */
+    public HDF5FloatStorageFeatures floatFeatures() {
+        if (deflateLevel == 0)
+            return HDF5FloatStorageFeatures.FLOAT_CHUNKED;
+        return HDF5FloatStorageFeatures.build()
+                .chunkedStorageLayout()
+                .deflateLevel((byte) deflateLevel)
+                .shuffleBeforeDeflate()
+                .features();
+    }
+
+    /**
+     * @return the storage features of integer datasets
+     */
+    public HDF5IntStorageFeatures intFeatures() {
+        if (deflateLevel == 0)
+            return HDF5IntStorageFeatures.INT_CHUNKED;
+        return HDF5IntStorageFeatures.build()
+                .chunkedStorageLayout()
+                .deflateLevel((byte) deflateLevel)
+                .shuffleBeforeDeflate()
+                .features();
+    }
+}
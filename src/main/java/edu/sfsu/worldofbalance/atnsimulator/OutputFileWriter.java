@@ -1,83 +1,232 @@
 package edu.sfsu.worldofbalance.atnsimulator;
 
+import ch.systemsx.cisd.base.mdarray.MDFloatArray;
 import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
 import ch.systemsx.cisd.hdf5.IHDF5Writer;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Writes data from a completed simulation to an HDF5 output file.
  * All files will be stored in the output directory supplied to the constructor.
+ *
+ * The biomass can instead be streamed into the file while the simulation runs,
+ * through the sink returned by openBiomassSink(), in which case the file stays open until write() is called.
+ * The files of several simulations can be open at once.
  */
-public class OutputFileWriter {
+public class OutputFileWriter implements OutputWriter {
 
     private File outputDirectory;
+    private OutputFileFormat format;
+    private Map<Integer, IHDF5Writer> openWriters = new HashMap<>();  // Files opened by openBiomassSink(), by ID
 
     public OutputFileWriter(File outputDirectory) {
+        this(outputDirectory, new OutputFileFormat());
+    }
+
+    public OutputFileWriter(File outputDirectory, OutputFileFormat format) {
         this.outputDirectory = outputDirectory;
+        this.format = format;
+    }
+
+    /**
+     * Open the output file of a simulation and return a sink that writes the biomass into it.
+     * The rest of the data is written by write() once the simulation completes.
+     * @param simulationId the ID of the simulation
+     * @param nodeCount the number of nodes in the simulation
+     * @return a sink for the biomass of the simulation
+     */
+    @Override
+    public BiomassSink openBiomassSink(int simulationId, int nodeCount) {
+        IHDF5Writer openWriter = HDF5Factory.configure(getOutputFile(simulationId)).writer();
+        openWriters.put(simulationId, openWriter);
+        return new HDF5BiomassSink(openWriter, "/biomass", "/biomass_timesteps", nodeCount, format);
     }
 
     /**
      * Write the given data to an output HDF5 file in `outputFileDirectory`.
      * The filename depends on data.simulationId.
+     * If the file was opened by openBiomassSink(), the biomass has already been written, and the file is closed.
+     * The file is closed in any case, and deleted if writing fails.
      * @param data the data from a completed simulation
      */
+    @Override
     public void write(OutputFileData data) {
-        File outputFile = getOutputFile(data.simulationId);
-        IHDF5Writer writer = HDF5Factory.configure(outputFile).writer();
+        IHDF5Writer openWriter = openWriters.remove(data.simulationId);
+        boolean biomassWritten = openWriter != null;
+        IHDF5Writer writer = biomassWritten
+                ? openWriter : HDF5Factory.configure(getOutputFile(data.simulationId)).writer();
+
+        boolean written = false;
+        try {
+            writeDetails(data, writer, "", !biomassWritten, format);
+
+            writer.writeInt("/timesteps_simulated", data.simulationResults.timestepsSimulated);
+            writer.writeDoubleArray("/final_biomass", data.simulationResults.finalBiomass);
+            writer.writeIntArray("/extinction_timesteps", data.simulationResults.extinctionTimesteps);
+            writer.writeString("/stop_event", data.simulationResults.stopEvent.toString());
+            writer.writeIntArray("/node_ids", data.originalNodeIds);
+            written = true;
+        } finally {
+            writer.close();
+            if (!written)
+                getOutputFile(data.simulationId).delete();
+        }
+    }
+
+    /**
+     * Close and delete the file opened by openBiomassSink().
+     * @param simulationId the ID of the simulation
+     */
+    @Override
+    public void discard(int simulationId) {
+        IHDF5Writer openWriter = openWriters.remove(simulationId);
+        if (openWriter != null) {
+            openWriter.close();
+            getOutputFile(simulationId).delete();
+        }
+    }
+
+    /**
+     * Close the files opened by openBiomassSink() for which write() has not been called.
+     */
+    @Override
+    public void close() {
+        for (IHDF5Writer openWriter : openWriters.values())
+            openWriter.close();
+        openWriters.clear();
+    }
 
+    /**
+     * Write everything about a simulation other than the summary datasets
+     * (timesteps simulated, final biomass, extinction timesteps, stop event and node IDs) to the given group.
+     * @param data the data from a completed simulation
+     * @param writer the writer of an open output file
+     * @param group the path of the group ("" for the root group)
+     * @param includeBiomass whether to write the biomass series (if recorded)
+     * @param format the storage layout of the biomass series and link-level parameters
+     */
+    static void writeDetails(
+            OutputFileData data, IHDF5Writer writer, String group, boolean includeBiomass, OutputFileFormat format) {
         // Simulation parameters
-        writer.writeDouble("/parameters/simulation/step_size",
+        writer.writeDouble(group + "/parameters/simulation/step_size",
                 data.simulationResults.simulationParameters.stepSize);
-        writer.writeBoolean("/parameters/simulation/stop_on_steady_state",
+        writer.writeString(group + "/parameters/simulation/recording_schedule",
+                data.simulationResults.simulationParameters.recordingSchedule.toString());
+        writer.writeDouble(group + "/parameters/simulation/recording_absolute_tolerance",
+                data.simulationResults.simulationParameters.recordingAbsoluteTolerance);
+        writer.writeDouble(group + "/parameters/simulation/recording_relative_tolerance",
+                data.simulationResults.simulationParameters.recordingRelativeTolerance);
+        writer.writeBoolean(group + "/parameters/simulation/stop_on_steady_state",
                 data.simulationResults.simulationParameters.stopOnSteadyState);
+        writer.writeBoolean(group + "/parameters/simulation/remove_extinct_nodes",
+                data.simulationResults.simulationParameters.removeExtinctNodes);
+        writer.writeBoolean(group + "/parameters/simulation/solve_for_equilibrium",
+                data.simulationResults.simulationParameters.solveForEquilibrium);
+        writer.writeBoolean(group + "/parameters/simulation/analyze_stability",
+                data.simulationResults.simulationParameters.analyzeStability);
+        writer.writeString(group + "/parameters/simulation/integrator",
+                data.simulationResults.simulationParameters.integratorType.toString());
+        writer.writeDouble(group + "/parameters/simulation/absolute_tolerance",
+                data.simulationResults.simulationParameters.absoluteTolerance);
+        writer.writeDouble(group + "/parameters/simulation/relative_tolerance",
+                data.simulationResults.simulationParameters.relativeTolerance);
 
         // System parameters
         ModelParameters p = data.simulationResults.modelParameters;
-        writer.writeBoolean("/parameters/system/use_system_carrying_capacity", p.useSystemCarryingCapacity);
-        writer.writeDouble("/parameters/system/system_carrying_capacity", p.systemCarryingCapacity);
+        writer.writeBoolean(group + "/parameters/system/use_system_carrying_capacity", p.useSystemCarryingCapacity);
+        writer.writeDouble(group + "/parameters/system/system_carrying_capacity", p.systemCarryingCapacity);
 
         // Node parameters
-        writer.writeDoubleArray("/parameters/node/metabolic_rate", p.metabolicRate);
-        writer.writeDoubleArray("/parameters/node/growth_rate", p.growthRate);
-        writer.writeDoubleArray("/parameters/node/carrying_capacity", p.carryingCapacity);
-
-        // Link parameters
-        writer.writeDoubleMatrix("/parameters/link/maximum_ingestion_rate", p.maximumIngestionRate);
-        writer.writeDoubleMatrix("/parameters/link/predator_interference", p.predatorInterference);
-        writer.writeDoubleMatrix("/parameters/link/functional_response_control", p.functionalResponseControl);
-        writer.writeDoubleMatrix("/parameters/link/relative_half_saturation_density", p.relativeHalfSaturationDensity);
-        writer.writeDoubleMatrix("/parameters/link/half_saturation_density", p.halfSaturationDensity);
-        writer.writeDoubleMatrix("/parameters/link/assimilation_efficiency", p.assimilationEfficiency);
-
-        if (data.simulationResults.simulationParameters.recordBiomass) {
-            writeBiomass(data, writer);
+        writer.writeDoubleArray(group + "/parameters/node/metabolic_rate", p.metabolicRate);
+        writer.writeDoubleArray(group + "/parameters/node/growth_rate", p.growthRate);
+        writer.writeDoubleArray(group + "/parameters/node/carrying_capacity", p.carryingCapacity);
+
+        writeLinkParameters(data, writer, group, format);
+
+        if (data.simulationResults.simulationParameters.recordBiomass && includeBiomass) {
+            writeBiomass(data, writer, group, format);
         }
 
-        writer.writeInt("/timesteps_simulated", data.simulationResults.timestepsSimulated);
-        writer.writeDoubleArray("/final_biomass", data.simulationResults.finalBiomass);
-        writer.writeIntArray("/extinction_timesteps", data.simulationResults.extinctionTimesteps);
-        writer.writeString("/stop_event", data.simulationResults.stopEvent.toString());
-        writer.writeString("/node_config", data.nodeConfig);
-        writer.writeDouble("/node_config_biomass_scale", data.nodeConfigBiomassScale);
-        writer.writeIntArray("/node_ids", data.originalNodeIds);
-        writer.writeString("/food_web_json", data.originalSubweb.toJson());
+        if (data.simulationResults.stability != null) {
+            writeStability(data.simulationResults.stability, writer, group);
+        }
 
-        writer.close();
+        writer.writeInt(group + "/derivative_evaluations", data.simulationResults.derivativeEvaluations);
+        writer.writeInt(group + "/constant_detector_evaluations", data.simulationResults.constantDetectorEvaluations);
+        writer.writeInt(group + "/oscillation_detector_evaluations",
+                data.simulationResults.oscillationDetectorEvaluations);
+        writer.writeString(group + "/node_config", data.nodeConfig);
+        writer.writeDouble(group + "/node_config_biomass_scale", data.nodeConfigBiomassScale);
+        writer.writeString(group + "/food_web_json", data.originalSubweb.toJson());
     }
 
-    private void writeBiomass(OutputFileData data, IHDF5Writer writer) {
-        // Convert to 32-bit float to save space
-        double[][] doubleBiomass = data.simulationResults.biomass;
-        int nodeCount = doubleBiomass[0].length;
-        int timesteps = data.simulationResults.timestepsSimulated;
-        float[][] floatBiomass = new float[timesteps][nodeCount];
-        for (int t = 0; t < timesteps; t++) {
-            for (int i = 0; i < nodeCount; i++) {
-                floatBiomass[t][i] = (float) doubleBiomass[t][i];
-            }
+    /**
+     * Write the link-level parameters of the links in the food web as a link list:
+     * link l is from prey node prey[l] to predator node predator[l], as indices into the node-level parameters,
+     * and the value of each parameter for link l is element l of its dataset.
+     * They are empty if there are no links, and then not written, like the spectrum of an extinct system.
+     */
+    private static void writeLinkParameters(
+            OutputFileData data, IHDF5Writer writer, String group, OutputFileFormat format) {
+        LinkParameters links = new LinkParameters(
+                data.originalSubweb.normalizedCopy(data.originalNodeIds), data.simulationResults.modelParameters);
+        int[] predator = new int[links.linkCount];
+        for (int i = 0; i < links.nodeCount; i++)
+            for (int l = links.preyOffsets[i]; l < links.preyOffsets[i + 1]; l++)
+                predator[l] = i;
+        if (links.linkCount == 0)
+            return;
+
+        HDF5FloatStorageFeatures features = format.floatFeatures();
+        writer.int32().writeArray(group + "/parameters/link/predator", predator, format.intFeatures());
+        writer.int32().writeArray(group + "/parameters/link/prey", links.prey, format.intFeatures());
+        writer.float64().writeArray(group + "/parameters/link/maximum_ingestion_rate",
+                links.maximumIngestionRate, features);
+        writer.float64().writeArray(group + "/parameters/link/predator_interference",
+                links.predatorInterference, features);
+        writer.float64().writeArray(group + "/parameters/link/functional_response_control",
+                links.functionalResponseControl, features);
+        writer.float64().writeArray(group + "/parameters/link/relative_half_saturation_density",
+                links.relativeHalfSaturationDensity, features);
+        writer.float64().writeArray(group + "/parameters/link/half_saturation_density",
+                links.halfSaturationDensity, features);
+        writer.float64().writeArray(group + "/parameters/link/assimilation_efficiency",
+                links.assimilationEfficiency, features);
+    }
+
+    private static void writeBiomass(OutputFileData data, IHDF5Writer writer, String group, OutputFileFormat format) {
+        // The series is stored as 32-bit floats, and its array is trimmed to the rows recorded when it is finished,
+        // so it is written without a copy
+        BiomassSeries biomass = data.simulationResults.biomass;
+        String biomassPath = group + "/biomass";
+        String timestepsPath = group + "/biomass_timesteps";
+        writer.float32().createMatrix(biomassPath, biomass.size(), biomass.getNodeCount(),
+                format.chunkRows, biomass.getNodeCount(), format.floatFeatures());
+        writer.int32().createArray(timestepsPath, biomass.size(), format.chunkRows, format.intFeatures());
+        if (biomass.size() > 0) {
+            writer.float32().writeMDArrayBlockWithOffset(biomassPath,
+                    new MDFloatArray(biomass.getData(), new int[] {biomass.size(), biomass.getNodeCount()}),
+                    new long[] {0, 0});
+            writer.int32().writeArrayBlockWithOffset(timestepsPath, biomass.getTimesteps(), biomass.size(), 0);
+        }
+    }
+
+    private static void writeStability(StabilityAnalyzer.Result stability, IHDF5Writer writer, String group) {
+        writer.writeString(group + "/stability/classification", stability.classification.toString());
+        writer.writeDouble(group + "/stability/leading_eigenvalue_real", stability.leadingEigenvalueRealPart);
+        writer.writeDouble(group + "/stability/leading_eigenvalue_imaginary", stability.leadingEigenvalueImaginaryPart);
+        writer.writeDouble(group + "/stability/equilibrium_distance", stability.equilibriumDistance);
+
+        // The spectrum is empty if all nodes are extinct
+        if (stability.nodeIds.length > 0) {
+            writer.writeIntArray(group + "/stability/node_ids", stability.nodeIds);
+            writer.writeDoubleArray(group + "/stability/eigenvalues_real", stability.eigenvalueRealParts);
+            writer.writeDoubleArray(group + "/stability/eigenvalues_imaginary", stability.eigenvalueImaginaryParts);
         }
-        writer.writeFloatMatrix("/biomass", floatBiomass);
     }
 
     private File getOutputFile(int simulationId) {
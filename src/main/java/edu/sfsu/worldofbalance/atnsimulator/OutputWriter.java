@@ -0,0 +1,39 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+/**
+ * Writes the data from completed simulations to output files.
+ * Implementations are not thread-safe: all calls should come from the same thread.
+ *
+ * The biomass of a simulation can be streamed into its output while the simulation runs,
+ * through the sink returned by openBiomassSink(), which is fed from the same thread.
+ * Any number of simulations may be open at once.
+ */
+public interface OutputWriter {
+
+    /**
+     * Start writing a simulation, returning a sink that writes its biomass as it is recorded.
+     * The rest of its data is written by write() once it completes, or its output discarded by discard().
+     * @param simulationId the ID of the simulation
+     * @param nodeCount the number of nodes in the simulation
+     * @return a sink for the biomass of the simulation
+     */
+    BiomassSink openBiomassSink(int simulationId, int nodeCount);
+
+    /**
+     * Write the data from a completed simulation.
+     * If it was opened by openBiomassSink(), its biomass has already been written.
+     * @param data the data from a completed simulation
+     */
+    void write(OutputFileData data);
+
+    /**
+     * Discard the output of a simulation opened by openBiomassSink() that did not complete.
+     * @param simulationId the ID of the simulation
+     */
+    void discard(int simulationId);
+
+    /**
+     * Finish writing, closing any file still open.
+     */
+    void close();
+}
@@ -0,0 +1,96 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import java.util.Arrays;
+
+/**
+ * The timesteps at which a simulation records the biomass,
+ * which need not be every timestep: long simulations can record every k-th timestep,
+ * at logarithmically spaced timesteps, or at an explicit list of timesteps.
+ */
+public abstract class RecordingSchedule {
+
+    /**
+     * @param timestep a timestep (not negative)
+     * @return the first recorded timestep at or after the given timestep (Integer.MAX_VALUE if there is none)
+     */
+    public abstract int next(int timestep);
+
+    /**
+     * @return a schedule recording every timestep
+     */
+    public static RecordingSchedule everyTimestep() {
+        return every(1);
+    }
+
+    /**
+     * @param interval the number of timesteps between recorded timesteps (positive)
+     * @return a schedule recording timesteps 0, interval, 2 * interval, ...
+     */
+    public static RecordingSchedule every(int interval) {
+        if (interval < 1)
+            throw new IllegalArgumentException("Recording interval must be positive");
+        return new RecordingSchedule() {
+            @Override
+            public int next(int timestep) {
+                long next = ((long) timestep + interval - 1) / interval * interval;
+                return next > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) next;
+            }
+
+            @Override
+            public String toString() {
+                return "every " + interval;
+            }
+        };
+    }
+
+    /**
+     * @param samplesPerDecade the number of recorded timesteps per factor of 10 in the timestep (positive)
+     * @return a schedule recording timestep 0 and the distinct timesteps round(10^(k / samplesPerDecade))
+     * for k = 0, 1, 2, ...
+     */
+    public static RecordingSchedule logSpaced(int samplesPerDecade) {
+        if (samplesPerDecade < 1)
+            throw new IllegalArgumentException("Samples per decade must be positive");
+        return new RecordingSchedule() {
+            @Override
+            public int next(int timestep) {
+                if (timestep == 0)
+                    return 0;
+                // Start just below the exponent of the timestep, in case of rounding error in the logarithm
+                int k = Math.max(0, (int) Math.floor(samplesPerDecade * Math.log10(timestep)) - 1);
+                long next;
+                while ((next = Math.round(Math.pow(10, (double) k / samplesPerDecade))) < timestep)
+                    k++;
+                return next > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) next;
+            }
+
+            @Override
+            public String toString() {
+                return "log-spaced " + samplesPerDecade;
+            }
+        };
+    }
+
+    /**
+     * @param timesteps the timesteps to record
+     * @return a schedule recording the given timesteps
+     */
+    public static RecordingSchedule at(int[] timesteps) {
+        int[] sorted = timesteps.clone();
+        Arrays.sort(sorted);
+        return new RecordingSchedule() {
+            @Override
+            public int next(int timestep) {
+                int index = Arrays.binarySearch(sorted, timestep);
+                if (index < 0)
+                    index = -index - 1;
+                return index < sorted.length ? sorted[index] : Integer.MAX_VALUE;
+            }
+
+            @Override
+            public String toString() {
+                return "at " + Arrays.toString(sorted);
+            }
+        };
+    }
+}
@@ -0,0 +1,339 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.ode.MainStateJacobianProvider;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * A linearly implicit (Rosenbrock) integrator for stiff systems.
+ * It is used like the Apache Commons Math integrators, with the same step handler and event handler support.
+ *
+ * This is the fourth-order, four-stage method of Shampine (1982) with an embedded third-order error estimate,
+ * as given in Numerical Recipes (section 16.6). Each step requires the Jacobian of the equations,
+ * one LU decomposition, and three evaluations of the derivatives (one of which is reused by the next step).
+ * The LU decomposition is done in place, with partial pivoting, in arrays allocated once per dimension,
+ * and the four linear solves back-substitute into the stage arrays, so that steps do not allocate memory.
+ * The Jacobian is obtained from the equations if they implement MainStateJacobianProvider
+ * (as ModelEquations does), and otherwise by finite differences.
+ * The equations are assumed to be autonomous, as ModelEquations is.
+ *
+ * Dense output for step handlers and event location is by cubic Hermite interpolation
+ * between the states and derivatives at the ends of each step.
+ */
+public class RosenbrockIntegrator extends SingleStepIntegrator {
+
+    private static final String NAME = "Rosenbrock (Shampine)";
+
+    // Method coefficients
+    private static final double GAM = 1.0 / 2.0;
+    private static final double A21 = 2.0;
+    private static final double A31 = 48.0 / 25.0;
+    private static final double A32 = 6.0 / 25.0;
+    private static final double C21 = -8.0;
+    private static final double C31 = 372.0 / 25.0;
+    private static final double C32 = 12.0 / 5.0;
+    private static final double C41 = -112.0 / 125.0;
+    private static final double C42 = -54.0 / 125.0;
+    private static final double C43 = -2.0 / 5.0;
+    private static final double B1 = 19.0 / 9.0;
+    private static final double B2 = 1.0 / 2.0;
+    private static final double B3 = 25.0 / 108.0;
+    private static final double B4 = 125.0 / 108.0;
+    private static final double E1 = 17.0 / 54.0;
+    private static final double E2 = 7.0 / 36.0;
+    private static final double E3 = 0.0;
+    private static final double E4 = 125.0 / 108.0;
+    private static final double A2X = 1.0;
+    private static final double A3X = 3.0 / 5.0;
+
+    // Largest absolute pivot at which the iteration matrix is taken to be singular
+    private static final double SINGULARITY_THRESHOLD = 1e-11;
+
+    protected double[][] jacobian;
+    private double[] yStage;
+    private double[] yDotStage;
+    private double[] g1;
+    private double[] g2;
+    private double[] g3;
+    private double[] g4;
+    private double[] errorEstimate;
+    private double[][] lu;      // LU decomposition of the iteration matrix (rows permuted by pivot)
+    private int[] pivot;        // Row of the iteration matrix in each row of lu
+    private double[] solution;  // Working array of the linear solves
+
+    /**
+     * @param minStep minimal step (sign is irrelevant, regardless of integration direction)
+     * @param maxStep maximal step (sign is irrelevant, regardless of integration direction)
+     * @param scalAbsoluteTolerance allowed absolute error
+     * @param scalRelativeTolerance allowed relative error
+     */
+    public RosenbrockIntegrator(double minStep, double maxStep,
+                                double scalAbsoluteTolerance, double scalRelativeTolerance) {
+        this(NAME, minStep, maxStep, scalAbsoluteTolerance, scalRelativeTolerance);
+    }
+
+    protected RosenbrockIntegrator(String name, double minStep, double maxStep,
+                                   double scalAbsoluteTolerance, double scalRelativeTolerance) {
+        super(name, minStep, maxStep, scalAbsoluteTolerance, scalRelativeTolerance);
+    }
+
+    @Override
+    protected int getOrder() {
+        return 4;
+    }
+
+    @Override
+    protected void allocate() {
+        jacobian = new double[n][n];
+        yStage = new double[n];
+        yDotStage = new double[n];
+        g1 = new double[n];
+        g2 = new double[n];
+        g3 = new double[n];
+        g4 = new double[n];
+        errorEstimate = new double[n];
+        lu = new double[n][n];
+        pivot = new int[n];
+        solution = new double[n];
+    }
+
+    @Override
+    protected BufferedStepInterpolator createInterpolator() {
+        return new HermiteStepInterpolator(yStart, yDot0, yDotEnd);
+    }
+
+    @Override
+    protected void beginStep() {
+        computeJacobian(stepStart, y, yDot0, jacobian);
+    }
+
+    @Override
+    protected double attemptStep() {
+        double h = stepSize;
+
+        // A singular matrix rejects the step; a shorter one makes the matrix diagonally dominant
+        if (!decompose(h))
+            return Double.NaN;
+
+        solve(yDot0, g1);
+
+        for (int i = 0; i < n; i++)
+            yStage[i] = y[i] + A21 * g1[i];
+        computeDerivatives(stepStart + A2X * h, yStage, yDotStage);
+        for (int i = 0; i < n; i++)
+            g2[i] = yDotStage[i] + C21 * g1[i] / h;
+        solve(g2, g2);
+
+        for (int i = 0; i < n; i++)
+            yStage[i] = y[i] + A31 * g1[i] + A32 * g2[i];
+        computeDerivatives(stepStart + A3X * h, yStage, yDotStage);
+        for (int i = 0; i < n; i++)
+            g3[i] = yDotStage[i] + (C31 * g1[i] + C32 * g2[i]) / h;
+        solve(g3, g3);
+
+        for (int i = 0; i < n; i++)
+            g4[i] = yDotStage[i] + (C41 * g1[i] + C42 * g2[i] + C43 * g3[i]) / h;
+        solve(g4, g4);
+
+        for (int i = 0; i < n; i++) {
+            yEnd[i] = y[i] + B1 * g1[i] + B2 * g2[i] + B3 * g3[i] + B4 * g4[i];
+            errorEstimate[i] = E1 * g1[i] + E2 * g2[i] + E3 * g3[i] + E4 * g4[i];
+        }
+        double error = normalizedError(errorEstimate);
+
+        if (error < 1.0)
+            computeDerivatives(stepStart + h, yEnd, yDotEnd);
+        return error;
+    }
+
+    /**
+     * Compute the Jacobian using the equations' own implementation if available,
+     * otherwise using forward differences.
+     */
+    protected void computeJacobian(double t, double[] y, double[] yDot, double[][] jacobian) {
+        FirstOrderDifferentialEquations primary = getExpandable().getPrimary();
+        if (primary instanceof MainStateJacobianProvider) {
+            ((MainStateJacobianProvider) primary).computeMainStateJacobian(t, y, yDot, jacobian);
+            return;
+        }
+        double[] yPerturbed = y.clone();
+        double[] yDotPerturbed = new double[n];
+        for (int j = 0; j < n; j++) {
+            double delta = Math.sqrt(Math.ulp(1.0)) * Math.max(Math.abs(y[j]), 1e-5);
+            yPerturbed[j] = y[j] + delta;
+            computeDerivatives(t, yPerturbed, yDotPerturbed);
+            for (int i = 0; i < n; i++)
+                jacobian[i][j] = (yDotPerturbed[i] - yDot[i]) / delta;
+            yPerturbed[j] = y[j];
+        }
+    }
+
+    /**
+     * Decompose the iteration matrix (1 / (GAM * h)) * I - J into lu, with partial pivoting.
+     * Rows are exchanged by swapping the row arrays, and eliminations by zero multipliers
+     * (which are common, since the Jacobian of a food web is sparse) are skipped.
+     * @return false if the matrix is singular
+     */
+    private boolean decompose(double h) {
+        double diagonal = 1.0 / (GAM * h);
+        for (int i = 0; i < n; i++) {
+            double[] luRow = lu[i];
+            double[] jacobianRow = jacobian[i];
+            for (int j = 0; j < n; j++)
+                luRow[j] = -jacobianRow[j];
+            luRow[i] += diagonal;
+            pivot[i] = i;
+        }
+
+        for (int k = 0; k < n; k++) {
+            int maxRow = k;
+            double max = Math.abs(lu[k][k]);
+            for (int i = k + 1; i < n; i++) {
+                double abs = Math.abs(lu[i][k]);
+                if (abs > max) {
+                    max = abs;
+                    maxRow = i;
+                }
+            }
+            if (!(max > SINGULARITY_THRESHOLD))
+                return false;
+            if (maxRow != k) {
+                double[] row = lu[k];
+                lu[k] = lu[maxRow];
+                lu[maxRow] = row;
+                int p = pivot[k];
+                pivot[k] = pivot[maxRow];
+                pivot[maxRow] = p;
+            }
+
+            double[] pivotRow = lu[k];
+            double inversePivot = 1.0 / pivotRow[k];
+            for (int i = k + 1; i < n; i++) {
+                double[] row = lu[i];
+                double multiplier = row[k] * inversePivot;
+                row[k] = multiplier;
+                if (multiplier != 0)
+                    for (int j = k + 1; j < n; j++)
+                        row[j] -= multiplier * pivotRow[j];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Solve the decomposed system for right-hand side b, storing the solution in x (which may be b).
+     */
+    private void solve(double[] b, double[] x) {
+        for (int i = 0; i < n; i++) {
+            double[] row = lu[i];
+            double sum = b[pivot[i]];
+            for (int j = 0; j < i; j++)
+                sum -= row[j] * solution[j];
+            solution[i] = sum;
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double[] row = lu[i];
+            double sum = solution[i];
+            for (int j = i + 1; j < n; j++)
+                sum -= row[j] * solution[j];
+            solution[i] = sum / row[i];
+        }
+        System.arraycopy(solution, 0, x, 0, n);
+    }
+
+    /**
+     * Cubic Hermite interpolation over a step, given the states and derivatives at the start and end of the step.
+     */
+    static class HermiteStepInterpolator extends BufferedStepInterpolator {
+
+        private double[] previousState;
+        private double[] previousDerivatives;
+        private double[] currentDerivatives;
+
+        /**
+         * The arrays are shared with the integrator, which updates them in place.
+         */
+        HermiteStepInterpolator(double[] previousState, double[] previousDerivatives, double[] currentDerivatives) {
+            super();
+            this.previousState = previousState;
+            this.previousDerivatives = previousDerivatives;
+            this.currentDerivatives = currentDerivatives;
+        }
+
+        public HermiteStepInterpolator() {
+            super();
+        }
+
+        private HermiteStepInterpolator(HermiteStepInterpolator interpolator) {
+            super(interpolator);
+            if (interpolator.previousState != null) {
+                previousState = interpolator.previousState.clone();
+                previousDerivatives = interpolator.previousDerivatives.clone();
+                currentDerivatives = interpolator.currentDerivatives.clone();
+            }
+        }
+
+        @Override
+        protected StepInterpolator doCopy() {
+            return new HermiteStepInterpolator(this);
+        }
+        @Override
+        protected void computeInterpolatedStateAndDerivatives(double theta, double oneMinusThetaH) {
+            if (theta == 1.0) {
+                // Exactly the end of the step
+                System.arraycopy(currentState, 0, interpolatedState, 0, interpolatedState.length);
+                System.arraycopy(currentDerivatives, 0, interpolatedDerivatives, 0, interpolatedDerivatives.length);
+                return;
+            }
+            double theta2 = theta * theta;
+            double theta3 = theta2 * theta;
+            double h00 = 2 * theta3 - 3 * theta2 + 1;
+            double h10 = (theta3 - 2 * theta2 + theta) * h;
+            double h01 = -2 * theta3 + 3 * theta2;
+            double h11 = (theta3 - theta2) * h;
+            double d00 = (6 * theta2 - 6 * theta) / h;
+            double d10 = 3 * theta2 - 4 * theta + 1;
+            double d11 = 3 * theta2 - 2 * theta;
+            for (int i = 0; i < interpolatedState.length; i++) {
+                double y0 = previousState[i];
+                double y1 = currentState[i];
+                double f0 = previousDerivatives[i];
+                double f1 = currentDerivatives[i];
+                interpolatedState[i] = h00 * y0 + h10 * f0 + h01 * y1 + h11 * f1;
+                interpolatedDerivatives[i] = d00 * (y0 - y1) + d10 * f0 + d11 * f1;
+            }
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            writeBaseExternal(out);
+            int n = currentState == null ? -1 : currentState.length;
+            for (int i = 0; i < n; i++) {
+                out.writeDouble(previousState[i]);
+                out.writeDouble(previousDerivatives[i]);
+                out.writeDouble(currentDerivatives[i]);
+            }
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            double t = readBaseExternal(in);
+            int n = currentState == null ? -1 : currentState.length;
+            if (n >= 0) {
+                previousState = new double[n];
+                previousDerivatives = new double[n];
+                currentDerivatives = new double[n];
+                for (int i = 0; i < n; i++) {
+                    previousState[i] = in.readDouble();
+                    previousDerivatives[i] = in.readDouble();
+                    currentDerivatives[i] = in.readDouble();
+                }
+            }
+            setInterpolatedTime(t);
+        }
+    }
+}
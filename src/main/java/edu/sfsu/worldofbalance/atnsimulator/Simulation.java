@@ -1,17 +1,13 @@
 package edu.sfsu.worldofbalance.atnsimulator;
 
-import org.apache.commons.math3.analysis.solvers.BisectionSolver;
+import org.apache.commons.math3.analysis.solvers.BracketingNthOrderBrentSolver;
 import org.apache.commons.math3.exception.NoBracketingException;
 import org.apache.commons.math3.ode.FirstOrderIntegrator;
 import org.apache.commons.math3.ode.events.EventFilter;
 import org.apache.commons.math3.ode.events.FilterType;
-import org.apache.commons.math3.ode.nonstiff.GraggBulirschStoerIntegrator;
-import org.apache.commons.math3.ode.sampling.StepHandler;
-import org.apache.commons.math3.ode.sampling.StepNormalizer;
-import org.apache.commons.math3.ode.sampling.StepNormalizerBounds;
-import org.apache.commons.math3.ode.sampling.StepNormalizerMode;
 
 import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * Runs a simulation using a given model. Basic usage consists of
@@ -19,17 +15,53 @@ import java.util.Arrays;
  */
 public class Simulation implements Runnable {
 
+    public static final double MIN_STEP = 1.0e-8;  // Minimal integration step
+    public static final double MAX_STEP = 100.0;   // Maximal integration step
+
+    // Timestep of the oscillation detector's first biomass snapshot (later snapshots are at doubling times)
+    public static final int FIRST_SNAPSHOT_TIMESTEP = 1000;
+
+    // Event location
+    private static final double EVENT_CONVERGENCE = 0.0001;      // Convergence threshold in the event time search
+    private static final double EVENT_ABSOLUTE_ACCURACY = 1e-6;  // Absolute accuracy of the event time solver
+    private static final int EVENT_MAX_ITERATIONS = 100;         // Upper limit of the iteration count in the search
+
+    // The steady-state detectors' switching functions are checked at most CHECK_TIMESTEPS apart within long
+    // integration steps, but only evaluated about CHECKS_PER_STEP times per step of the length of the last one,
+    // so that their cost follows the integrator's step size (see SimulationSteadyStateDetector)
+    private static final int CHECK_TIMESTEPS = 10;
+    private static final int CHECKS_PER_STEP = 2;
+
+    // Fraction of the surviving nodes that must go extinct before the integration restarts without them.
+    // Each restart costs a new initial step, so removing extinct nodes one at a time costs more than it saves.
+    private static final double MIN_EXTINCT_FRACTION = 0.25;
+
+    // Solving for an equilibrium: the minimum timesteps between attempts, the maximum time between attempts
+    // as a fraction of the time simulated (so that failed attempts cost little in long simulations),
+    // the maximum |B'[i] / B[i]| at which to attempt one,
+    // and the maximum relative distance of an accepted equilibrium from the current biomass of each node
+    private static final int EQUILIBRIUM_CHECK_TIMESTEPS = 100;
+    private static final double EQUILIBRIUM_CHECK_FRACTION = 0.25;
+    private static final double EQUILIBRIUM_MAX_RELATIVE_DERIVATIVE = 1e-3;
+    private static final double EQUILIBRIUM_MAX_DISTANCE = 0.01;
+
     private int nodeCount;
     private SimulationParameters simulationParameters;
     private int timesteps;
     private double stepSize;
     private boolean stopOnSteadyState;
+    private boolean removeExtinctNodes;
+    private boolean solveForEquilibrium;
     private ModelEquations equations;
     private double[] initialBiomass;
     private FirstOrderIntegrator integrator;
     private SimulationStepHandler stepHandler;
     private SimulationConstantSteadyStateDetector constantDetector;
     private SimulationOscillatingSteadyStateDetector oscillationDetector;
+    private SimulationExtinctionDetector extinctionDetector;
+    private SimulationEquilibriumDetector equilibriumDetector;
+    private BiomassSink outputSink;   // Receives the recorded biomass (if null, it is kept in results.biomass)
+    private BiomassSink biomassSink;  // The sink recorded into by the current run (null if not recording)
     private SimulationResults results;
 
     /**
@@ -45,10 +77,21 @@ public class Simulation implements Runnable {
         this.timesteps = simulationParameters.timesteps;
         this.stepSize = simulationParameters.stepSize;
         this.stopOnSteadyState = simulationParameters.stopOnSteadyState;
+        this.removeExtinctNodes = simulationParameters.removeExtinctNodes;
+        this.solveForEquilibrium = simulationParameters.stopOnSteadyState && simulationParameters.solveForEquilibrium;
         this.equations = equations;
         this.initialBiomass = initialBiomass;
     }
 
+    /**
+     * Record the biomass into the given sink during the simulation, rather than in results.biomass,
+     * if simulationParameters.recordBiomass is set.
+     * @param outputSink the sink, which is finished at the end of the simulation
+     */
+    public void setBiomassSink(BiomassSink outputSink) {
+        this.outputSink = outputSink;
+    }
+
     /**
      * Run the simulation and store the results.
      */
@@ -57,10 +100,22 @@ public class Simulation implements Runnable {
         initializeIntegrator();
         if (stopOnSteadyState) {
             constantDetector = new SimulationConstantSteadyStateDetector(equations);
-            oscillationDetector = new SimulationOscillatingSteadyStateDetector(equations);
-            addConstantSteadyStateDetector();
-            // Oscillating steady state detector will be added after the simulation runs a while
+            oscillationDetector = new SimulationOscillatingSteadyStateDetector(
+                    equations, FIRST_SNAPSHOT_TIMESTEP * stepSize);
+            constantDetector.setChecksPerStep(CHECKS_PER_STEP);
+            oscillationDetector.setChecksPerStep(CHECKS_PER_STEP);
+            integrator.addStepHandler(constantDetector);
+            integrator.addStepHandler(oscillationDetector);
         }
+        if (solveForEquilibrium) {
+            equilibriumDetector = new SimulationEquilibriumDetector(
+                    equations, EQUILIBRIUM_CHECK_TIMESTEPS * stepSize, EQUILIBRIUM_CHECK_FRACTION,
+                    EQUILIBRIUM_MAX_RELATIVE_DERIVATIVE, EQUILIBRIUM_MAX_DISTANCE, stepSize);
+            integrator.addStepHandler(equilibriumDetector);
+        }
+        if (removeExtinctNodes)
+            extinctionDetector = new SimulationExtinctionDetector(MIN_EXTINCT_FRACTION);
+        addEventHandlers();
         doIntegration();
     }
 
@@ -73,96 +128,231 @@ public class Simulation implements Runnable {
     }
 
     private void initializeIntegrator() {
-        integrator = new GraggBulirschStoerIntegrator(
-                1.0e-8,    // minimal step
-                100.0,     // maximal step
-                equations.EXTINCT,  // allowed absolute error
-                1.0e-10);  // allowed relative error
-
-        // Set up the StepHandler, which is triggered at each time step by the integrator,
-        // and copies the current biomass of each species into calcBiomass[timestep].
+        integrator = simulationParameters.integratorType.create(
+                MIN_STEP,
+                MAX_STEP,
+                simulationParameters.absoluteTolerance,
+                simulationParameters.relativeTolerance);
+
+        // Set up the StepHandler, which is triggered at the end of each integration step,
+        // and passes the biomass of each species at the recorded timesteps within the step to the biomass sink,
+        // interpolating it from the integrator's dense output.
         // See the "Continuous Output" section of https://commons.apache.org/proper/commons-math/userguide/ode.html
-        stepHandler = new SimulationStepHandler(nodeCount, results.biomass, stepSize);
-        StepHandler stepNormalizer = new StepNormalizer(
-                stepSize, stepHandler,
-                StepNormalizerMode.MULTIPLES,  // step at multiples of stepSize
-                StepNormalizerBounds.FIRST);   // ensure the first time step is handled
-        integrator.addStepHandler(stepNormalizer);
+        biomassSink = null;
+        if (simulationParameters.recordBiomass)
+            biomassSink = outputSink != null ? outputSink : new BiomassSeries(nodeCount);
+        stepHandler = new SimulationStepHandler(
+                nodeCount, biomassSink, stepSize, simulationParameters.recordingSchedule,
+                simulationParameters.recordingAbsoluteTolerance, simulationParameters.recordingRelativeTolerance);
+        integrator.addStepHandler(stepHandler);
+    }
+
+    // The detectors' switching functions are checked at the end of each integration step,
+    // and within it at most the maximal check interval apart,
+    // and the event times are then located on the integrator's dense output.
+
+    /**
+     * Add the event handlers of the detectors in use to the integrator.
+     */
+    private void addEventHandlers() {
+        if (stopOnSteadyState) {
+            addConstantSteadyStateDetector();
+            addOscillatingSteadyStateDetector();
+        }
+        if (solveForEquilibrium)
+            addEquilibriumDetector();
+        if (removeExtinctNodes)
+            addExtinctionDetector();
     }
 
     private void addConstantSteadyStateDetector() {
-        // TODO: Choose best parameter values
         integrator.addEventHandler(new EventFilter(constantDetector, FilterType.TRIGGER_ONLY_DECREASING_EVENTS),
-                1,  // maximal time interval between switching function checks (this interval prevents missing sign changes in case the integration steps becomes very large)
-                0.0001,  // convergence threshold in the event time search
-                1000,  // upper limit of the iteration count in the event time search
-                new BisectionSolver()
-        );
+                CHECK_TIMESTEPS * stepSize, EVENT_CONVERGENCE, EVENT_MAX_ITERATIONS, createEventSolver());
     }
 
     private void addOscillatingSteadyStateDetector() {
-        integrator.addEventHandler(oscillationDetector, stepSize, 0.0001, 1000, new BisectionSolver());
+        // The snapshot schedule's switching function changes sign once per snapshot,
+        // and snapshots are at least FIRST_SNAPSHOT_TIMESTEP apart, so checking twice as often can't miss one
+        integrator.addEventHandler(oscillationDetector.getSnapshotSchedule(),
+                FIRST_SNAPSHOT_TIMESTEP * stepSize / 2, EVENT_CONVERGENCE, EVENT_MAX_ITERATIONS, createEventSolver());
+        integrator.addEventHandler(oscillationDetector,
+                CHECK_TIMESTEPS * stepSize, EVENT_CONVERGENCE, EVENT_MAX_ITERATIONS, createEventSolver());
+    }
+
+    private void addEquilibriumDetector() {
+        // The detector checks for an equilibrium at the end of integration steps,
+        // and its switching function only changes sign once, at the time at which to stop
+        integrator.addEventHandler(equilibriumDetector,
+                MAX_STEP, EVENT_CONVERGENCE, EVENT_MAX_ITERATIONS, createEventSolver());
+    }
+
+    private void addExtinctionDetector() {
+        // Extinctions are permanent, so a sign change can't be missed between checks
+        integrator.addEventHandler(extinctionDetector,
+                MAX_STEP, EVENT_CONVERGENCE, EVENT_MAX_ITERATIONS, createEventSolver());
+    }
+
+    /**
+     * @return a solver for locating events, which brackets the root so that the integrator
+     * can choose the side of the root where the switching function has changed sign
+     */
+    private static BracketingNthOrderBrentSolver createEventSolver() {
+        return new BracketingNthOrderBrentSolver(EVENT_ABSOLUTE_ACCURACY, 5);
     }
 
     private void doIntegration() {
 
-        // Initialize biomass data for timestep 0
-        if (simulationParameters.recordBiomass)
-            System.arraycopy(initialBiomass, 0, results.biomass[0], 0, initialBiomass.length);
+        // The biomass at timestep 0 is recorded by the step handler at the start of the integration
         double[] currentBiomass = Arrays.copyOf(initialBiomass, initialBiomass.length);
 
-        // Run the integrator to compute the biomass time series.
-        // The integration is run in chunks to facilitate the use of the oscillation detection event handler.
-        // Because the period of an oscillating state could be of any length,
-        // we double the chunk length each time.
-        int prevStartTimestep = -1;
-        for (int i = 0, startTimestep = 0, endTimestep = Math.min(1000, timesteps);
-
-             startTimestep < timesteps && startTimestep > prevStartTimestep;
-
-             prevStartTimestep = startTimestep,
-                     startTimestep = stepHandler.getLastHandledTimestep(),
-                     endTimestep = Math.min(timesteps, endTimestep * 2),
-                     i++) {
-
-            // Only start checking for oscillations starting with the second integration
-            if (stopOnSteadyState && i == 1) {
-                addOscillatingSteadyStateDetector();
-            }
-
-            try {
-                integrator.integrate(equations,
-                        startTimestep * stepSize,
-                        currentBiomass,
-                        endTimestep * stepSize,
-                        currentBiomass);
-            } catch (NoBracketingException e) {
-                System.err.println();
-                System.err.println(e);
-                System.err.println("\n*** NoBracketingException caught; removing event handlers\n");
-                integrator.clearEventHandlers();
-            }
-
-            if (stopOnSteadyState
-                    && (constantDetector.integrationWasStopped() || oscillationDetector.integrationWasStopped())) {
+        // Run the integrator to compute the biomass time series in a single pass,
+        // so that the step size history is kept for the whole simulation.
+        // If extinct nodes are removed, the integration instead restarts after extinctions
+        // with a reduced system of the surviving nodes, which is cheaper to integrate.
+        ModelEquations integratedEquations = equations;
+        int[] nodeIds = null;  // Original node ID of each node of integratedEquations (null if all nodes)
+        double[] y = currentBiomass.clone();
+        int[] survivors = getSurvivors(y);
+        if (removeExtinctNodes && survivors.length > 0 && survivors.length < nodeCount) {
+            nodeIds = survivors;
+            integratedEquations = reduceEquations(nodeIds, survivors, currentBiomass);
+            y = getState(currentBiomass, nodeIds);
+        }
+        double t = 0;
+        while (true) {
+            t = integrate(integratedEquations, t, y, nodeIds);
+            setState(y, nodeIds, currentBiomass);
+            if (t >= timesteps * stepSize)
                 break;
-            }
+            if (!removeExtinctNodes || !extinctionDetector.integrationWasStopped())
+                break;
+
+            // Continue from the extinctions with the surviving nodes
+            survivors = getSurvivors(y);
+            nodeIds = nodeIds == null ? survivors : select(nodeIds, survivors);
+            integratedEquations = reduceEquations(nodeIds, survivors, currentBiomass);
+            y = getState(currentBiomass, nodeIds);
         }
 
         if (stopOnSteadyState && constantDetector.integrationWasStopped()) {
             results.timestepsSimulated = (int) (constantDetector.getTimeStopped() / stepSize);
             results.stopEvent = constantDetector.getStopEvent();
-        } else if (stopOnSteadyState && oscillationDetector != null && oscillationDetector.integrationWasStopped()) {
+        } else if (stopOnSteadyState && oscillationDetector.integrationWasStopped()) {
             results.timestepsSimulated = (int) (oscillationDetector.getTimeStopped() / stepSize);
             results.stopEvent = oscillationDetector.getStopEvent();
+        } else if (solveForEquilibrium && equilibriumDetector.integrationWasStopped()) {
+            results.timestepsSimulated = (int) (equilibriumDetector.getTimeStopped() / stepSize);
+            results.stopEvent = equilibriumDetector.getStopEvent();
+            setState(equilibriumDetector.getEquilibrium(), nodeIds, currentBiomass);
         } else {
             results.timestepsSimulated = timesteps;
             results.stopEvent = SimulationEventHandler.EventType.NONE;
         }
-        if (simulationParameters.recordBiomass)
-            results.timestepsSimulated = Math.min(results.timestepsSimulated, results.biomass.length);
+        if (stopOnSteadyState) {
+            results.constantDetectorEvaluations = constantDetector.getEvaluations();
+            results.oscillationDetectorEvaluations = oscillationDetector.getEvaluations();
+        }
+        results.timestepsSimulated = Math.min(results.timestepsSimulated, timesteps);
+        if (simulationParameters.recordBiomass) {
+            biomassSink.finish(results.timestepsSimulated);
+            if (outputSink == null)
+                results.biomass = (BiomassSeries) biomassSink;
+        }
         results.extinctionTimesteps = getExtinctionTimesteps(currentBiomass, results.timestepsSimulated - 1);
         System.arraycopy(currentBiomass, 0, results.finalBiomass, 0, nodeCount);
+        if (simulationParameters.analyzeStability)
+            results.stability = new StabilityAnalyzer(equations).analyze(results.finalBiomass, results.stopEvent);
+    }
+
+    /**
+     * Integrate the given system from time t0 to the end of the simulation or until an event stops it.
+     * @param y the state at time t0 on entry, and at the end of the integration on return
+     * @param nodeIds the original node ID of each node of the system (null if all nodes)
+     * @return the time at which the integration ended
+     */
+    private double integrate(ModelEquations integratedEquations, double t0, double[] y, int[] nodeIds) {
+        double[] y0 = y.clone();
+        try {
+            double t = integrator.integrate(integratedEquations, t0, y0, timesteps * stepSize, y);
+            results.derivativeEvaluations += integrator.getEvaluations();
+            return t;
+        } catch (NoBracketingException e) {
+            System.err.println();
+            System.err.println(e);
+            System.err.println("\n*** NoBracketingException caught; removing event handlers\n");
+            results.derivativeEvaluations += integrator.getEvaluations();
+            integrator.clearEventHandlers();
+
+            // Resume from the end of the last integration step that was handled, if it is within this integration
+            double resumeTime = stepHandler.getLastHandledTime();
+            if (resumeTime > t0)
+                y0 = getState(stepHandler.getLastHandledState(), nodeIds);
+            else
+                resumeTime = t0;
+            double t = integrator.integrate(integratedEquations, resumeTime, y0, timesteps * stepSize, y);
+            results.derivativeEvaluations += integrator.getEvaluations();
+            return t;
+        }
+    }
+
+    /**
+     * Create the equations of a reduced system of the given nodes,
+     * and pass them to the step handler and detectors.
+     * @param nodeIds the original node IDs of the surviving nodes
+     * @param survivors the index of each surviving node in the system integrated so far
+     * @param currentBiomass the biomass of each original node at the start of the reduced system's integration
+     */
+    private ModelEquations reduceEquations(int[] nodeIds, int[] survivors, double[] currentBiomass) {
+        ModelEquations reducedEquations = equations.subsystem(nodeIds);
+        stepHandler.setNodeIds(nodeIds, currentBiomass);
+        if (stopOnSteadyState) {
+            constantDetector.reduce(reducedEquations, survivors);
+            oscillationDetector.reduce(reducedEquations, survivors);
+        }
+        if (solveForEquilibrium)
+            equilibriumDetector.reduce(reducedEquations, survivors);
+        return reducedEquations;
+    }
+
+    /**
+     * @return the indices of the nodes that are not extinct
+     */
+    private static int[] getSurvivors(double[] biomass) {
+        return IntStream.range(0, biomass.length).filter(i -> biomass[i] >= ModelEquations.EXTINCT).toArray();
+    }
+
+    /**
+     * @return the biomass of the given nodes (all nodes if nodeIds is null)
+     */
+    private static double[] getState(double[] biomass, int[] nodeIds) {
+        if (nodeIds == null)
+            return biomass.clone();
+        double[] state = new double[nodeIds.length];
+        for (int i = 0; i < nodeIds.length; i++)
+            state[i] = biomass[nodeIds[i]];
+        return state;
+    }
+
+    /**
+     * @return the elements of array at the given indices
+     */
+    private static int[] select(int[] array, int[] indices) {
+        int[] elements = new int[indices.length];
+        for (int i = 0; i < indices.length; i++)
+            elements[i] = array[indices[i]];
+        return elements;
+    }
+
+    /**
+     * Copy the state of a system of the given nodes (all nodes if nodeIds is null) into biomass.
+     */
+    private static void setState(double[] state, int[] nodeIds, double[] biomass) {
+        if (nodeIds == null) {
+            System.arraycopy(state, 0, biomass, 0, biomass.length);
+        } else {
+            for (int i = 0; i < nodeIds.length; i++)
+                biomass[nodeIds[i]] = state[i];
+        }
     }
 
     private int[] getExtinctionTimesteps(double[] finalBiomass, int finalTimestep) {
@@ -177,4 +367,4 @@ public class Simulation implements Runnable {
                 extinctionTimesteps[i] = finalTimestep;
         return extinctionTimesteps;
     }
-}
\ No newline at end of file
+}
@@ -9,7 +9,7 @@ import org.apache.commons.math3.ode.events.EventHandler;
  * - Consumers are extinct and producers have reached carrying capacity
  * - All derivatives are effectively 0
  */
-public class SimulationConstantSteadyStateDetector extends SimulationEventHandler {
+public class SimulationConstantSteadyStateDetector extends SimulationSteadyStateDetector {
 
     public final double ABS_RELATIVE_DERIVATIVE_THRESHOLD = 1e-10;
 
@@ -27,8 +27,17 @@ public class SimulationConstantSteadyStateDetector extends SimulationEventHandle
         BDot = new double[equations.getDimension()];
     }
 
+    @Override
+    public void reduce(ModelEquations reducedEquations, int[] retainedNodes) {
+        super.reduce(reducedEquations, retainedNodes);
+        producers = reducedEquations.getProducers();
+        consumers = reducedEquations.getConsumers();
+        BDot = new double[reducedEquations.getDimension()];
+    }
+
     @Override
     public void init(double t0, double[] y0, double t) {
+        super.init(t0, y0, t);
         timeStopped = -1;
     }
 
@@ -42,13 +51,12 @@ public class SimulationConstantSteadyStateDetector extends SimulationEventHandle
      * @return the value of the switching function
      */
     @Override
-    public double g(double t, double[] Bt) {
-
+    protected double evaluate(double t, double[] Bt) {
         // When maxBiomass goes below extinction threshold, all nodes are extinct
         // When the derivatives are effectively 0, the system is in a steady state
         maxBiomass = 0;
         maxAbsRelDerivative = 0;
-        equations.computeDerivatives(t, Bt, BDot);  // FIXME: This must be a recomputation - how to avoid?
+        equations.computeDerivatives(t, Bt, BDot);  // Not recomputed if the integrator has just evaluated this state
         for (int i = 0; i < Bt.length; i++) {
             maxBiomass = Math.max(maxBiomass, Bt[i]);
             double absRelDerivative = Bt[i] == 0 ? 0 : Math.abs(BDot[i] / Bt[i]);
@@ -0,0 +1,187 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.ode.events.EventHandler;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Stops the integration when the system is approaching a stable equilibrium,
+ * rather than integrating until the derivatives are effectively 0.
+ *
+ * At the end of integration steps, at intervals that grow with the time simulated,
+ * once the biomass of every surviving node is changing slowly,
+ * it solves directly for an equilibrium of the surviving nodes near the current state (see EquilibriumSolver).
+ * If the equilibrium is locally stable and close to the current state,
+ * the integration is stopped shortly afterwards, and the equilibrium is taken to be the final biomass.
+ * Otherwise, the integration continues until the next check.
+ *
+ * The checks are done by the step handler rather than the switching function,
+ * so that they cost nothing between checks; the switching function only locates the stop.
+ */
+public class SimulationEquilibriumDetector extends SimulationEventHandler implements StepHandler {
+
+    private double checkInterval;           // Minimum time between attempts to solve for an equilibrium
+    private double checkFraction;           // Maximum time between attempts as a fraction of the time simulated
+    private double maxRelativeDerivative;   // Maximum |B'[i] / B[i]| of a surviving node at which to attempt a solve
+    private double maxDistance;             // Maximum relative distance of an accepted equilibrium from the current state
+    private double stopDelay;               // Time after finding an equilibrium at which to stop the integration
+    private double[] BDot;                  // Derivative of biomass of each node at the time of a check
+
+    // The derivatives at a check are computed by separate equations of the same system (null until a check),
+    // so that they do not disturb the derivatives cached by the equations being integrated
+    private ModelEquations checkEquations;
+
+    // The solver has its own equations of the surviving nodes,
+    // so that it does not disturb the derivatives cached by the equations being integrated
+    private EquilibriumSolver solver;
+    private ModelEquations solverEquations;  // Equations of the system for which the solver was created
+    private int[] survivors;                 // Nodes of that system included in the solver's equations
+
+    private double nextCheckTime;
+    private double stopTime;       // Time at which to stop the integration (NaN until an equilibrium is found)
+    private double[] equilibrium;  // Biomass of each node at the equilibrium found
+
+    /**
+     * @param equations the equations of the system being integrated
+     * @param checkInterval the time of the first attempt to solve for an equilibrium,
+     *                      and the minimum time between attempts
+     * @param checkFraction the time between attempts as a fraction of the time simulated,
+     *                      if that is longer than checkInterval
+     * @param maxRelativeDerivative the maximum absolute derivative of a surviving node relative to its biomass
+     *                              at which to attempt a solve (far from an equilibrium, the solver rarely succeeds)
+     * @param maxDistance the maximum relative difference between the biomass of a node at an accepted equilibrium
+     *                    and its current biomass
+     * @param stopDelay the time after finding an equilibrium at which to stop the integration
+     *                  (positive, so that the stop can be located as an event)
+     */
+    public SimulationEquilibriumDetector(ModelEquations equations, double checkInterval, double checkFraction,
+                                         double maxRelativeDerivative, double maxDistance, double stopDelay) {
+        super(equations);
+        this.checkInterval = checkInterval;
+        this.checkFraction = checkFraction;
+        this.maxRelativeDerivative = maxRelativeDerivative;
+        this.maxDistance = maxDistance;
+        this.stopDelay = stopDelay;
+        BDot = new double[equations.getDimension()];
+        nextCheckTime = checkInterval;
+    }
+
+    @Override
+    public void reduce(ModelEquations reducedEquations, int[] retainedNodes) {
+        super.reduce(reducedEquations, retainedNodes);
+        BDot = new double[reducedEquations.getDimension()];
+        checkEquations = null;
+    }
+
+    /**
+     * Called at the start of each integration, both as an event handler and as a step handler.
+     */
+    @Override
+    public void init(double t0, double[] y0, double t) {
+        timeStopped = -1;
+        stopTime = Double.NaN;
+    }
+
+    /**
+     * Compute the switching function, which is positive until an equilibrium has been found,
+     * and then crosses zero at the time at which to stop.
+     *
+     * @param t Time
+     * @param Bt Biomass of each node at time t
+     * @return the value of the switching function
+     */
+    @Override
+    public double g(double t, double[] Bt) {
+        evaluations++;
+        return Double.isNaN(stopTime) ? 1 : stopTime - t;
+    }
+
+    @Override
+    public EventHandler.Action eventOccurred(double t, double[] Bt, boolean increasing) {
+        if (Double.isNaN(stopTime))
+            return Action.CONTINUE;
+        timeStopped = t;
+        return Action.STOP;
+    }
+
+    /**
+     * At the end of a step, if a check is due and the biomass is changing slowly,
+     * solve for an equilibrium of the surviving nodes, and stop the integration
+     * if it is stable and close to the current state.
+     */
+    @Override
+    public void handleStep(StepInterpolator interpolator, boolean isLast) {
+        double t = interpolator.getCurrentTime();
+        if (t < nextCheckTime || !Double.isNaN(stopTime))
+            return;
+        nextCheckTime = t + Math.max(checkInterval, checkFraction * t);
+
+        interpolator.setInterpolatedTime(t);
+        double[] Bt = interpolator.getInterpolatedState();
+        int[] survivors = IntStream.range(0, Bt.length).filter(i -> Bt[i] >= ModelEquations.EXTINCT).toArray();
+        if (survivors.length == 0)
+            return;  // The constant steady state detector stops the integration
+        getCheckEquations().computeDerivatives(t, Bt, BDot);
+        for (int i : survivors)
+            if (!(Math.abs(BDot[i] / Bt[i]) <= maxRelativeDerivative))
+                return;
+
+        double[] survivorBiomass = new double[survivors.length];
+        for (int i = 0; i < survivors.length; i++)
+            survivorBiomass[i] = Bt[survivors[i]];
+        EquilibriumSolver solver = getSolver(survivors);
+        double[] solution = solver.solve(survivorBiomass);
+        if (solution == null || !isClose(solution, survivorBiomass) || !solver.isStable(solution))
+            return;
+
+        equilibrium = Bt.clone();
+        for (int i = 0; i < survivors.length; i++)
+            equilibrium[survivors[i]] = solution[i];
+        stopTime = t + stopDelay;
+        stopEvent = EventType.CONSTANT_BIOMASS_PRODUCERS_ONLY;
+        for (int i : equations.getConsumers()) {
+            if (equilibrium[i] > ModelEquations.EXTINCT) {
+                stopEvent = EventType.CONSTANT_BIOMASS_WITH_CONSUMERS;
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the biomass of each node at the equilibrium at which the integration was stopped
+     */
+    public double[] getEquilibrium() {
+        return equilibrium;
+    }
+
+    /**
+     * @return equations of the system being integrated, separate from the ones the integrator uses
+     */
+    private ModelEquations getCheckEquations() {
+        if (checkEquations == null)
+            checkEquations = equations.subsystem(IntStream.range(0, equations.getDimension()).toArray());
+        return checkEquations;
+    }
+
+    /**
+     * @return a solver for the system of the given nodes, reusing the last one if the nodes are the same
+     */
+    private EquilibriumSolver getSolver(int[] survivors) {
+        if (solver == null || solverEquations != equations || !Arrays.equals(survivors, this.survivors)) {
+            this.survivors = survivors;
+            solverEquations = equations;
+            solver = new EquilibriumSolver(equations.subsystem(survivors));
+        }
+        return solver;
+    }
+
+    private boolean isClose(double[] solution, double[] biomass) {
+        for (int i = 0; i < solution.length; i++)
+            if (!(Math.abs(solution[i] - biomass[i]) <= maxDistance * solution[i]))
+                return false;
+        return true;
+    }
+}
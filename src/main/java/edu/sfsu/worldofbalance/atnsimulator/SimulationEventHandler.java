@@ -18,11 +18,22 @@ public abstract class SimulationEventHandler implements EventHandler {
     protected ModelEquations equations;
     protected EventType stopEvent = EventType.NONE;
     protected double timeStopped = -1;  // Time at which the integration was stopped
+    protected int evaluations;          // Number of evaluations of the switching function g()
 
     public SimulationEventHandler(ModelEquations equations) {
         this.equations = equations;
     }
 
+    /**
+     * Continue with a reduced system of some of the nodes, starting with the next integration.
+     *
+     * @param reducedEquations the equations of the reduced system
+     * @param retainedNodes the index in the current system of each node of the reduced system
+     */
+    public void reduce(ModelEquations reducedEquations, int[] retainedNodes) {
+        this.equations = reducedEquations;
+    }
+
     /**
      * @return the time at which the integration was stopped due to detection of a steady state
      */
@@ -41,6 +52,13 @@ public abstract class SimulationEventHandler implements EventHandler {
         return stopEvent;
     }
 
+    /**
+     * @return the number of times the switching function g() has been evaluated
+     */
+    public int getEvaluations() {
+        return evaluations;
+    }
+
     @Override
     public void resetState(double t, double[] y) { }
 }
@@ -0,0 +1,91 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.ode.events.EventHandler;
+
+import java.util.Arrays;
+
+/**
+ * Stops the integration when the biomass of some fraction of the surviving nodes
+ * has fallen below the extinction threshold,
+ * so that the simulation can continue with a reduced system of the nodes that are left.
+ * Nodes that are already extinct at the start of the integration are ignored.
+ * Extinctions are permanent, since extinct nodes have zero derivatives.
+ */
+public class SimulationExtinctionDetector implements EventHandler {
+
+    private double minExtinctFraction;  // Fraction of the surviving nodes that must go extinct to stop
+    private boolean[] extinct;          // Whether each node was extinct at the start of the integration
+    private int extinctionsToStop;      // Number of extinctions at which to stop the integration
+    private double[] survivorBiomass;   // Biomass of the nodes not extinct at the start, in increasing order
+    private boolean integrationWasStopped;
+
+    /**
+     * @param minExtinctFraction the fraction of the nodes surviving at the start of an integration
+     *                           that must go extinct (rounded up, but at least one) to stop it
+     */
+    public SimulationExtinctionDetector(double minExtinctFraction) {
+        this.minExtinctFraction = minExtinctFraction;
+    }
+
+    @Override
+    public void init(double t0, double[] B0, double t) {
+        extinct = new boolean[B0.length];
+        int survivors = 0;
+        for (int i = 0; i < B0.length; i++) {
+            extinct[i] = B0[i] < ModelEquations.EXTINCT;
+            if (!extinct[i])
+                survivors++;
+        }
+        extinctionsToStop = Math.max(1, (int) Math.ceil(survivors * minExtinctFraction));
+        survivorBiomass = new double[survivors];
+        integrationWasStopped = false;
+    }
+
+    /**
+     * Compute the switching function, which crosses zero when the biomass of the
+     * extinctionsToStop-th lowest surviving node reaches the extinction threshold.
+     *
+     * @param t Time
+     * @param Bt Biomass of each node at time t
+     * @return the value of the switching function
+     */
+    @Override
+    public double g(double t, double[] Bt) {
+        if (survivorBiomass.length == 0)
+            return 1;
+        int n = 0;
+        for (int i = 0; i < Bt.length; i++)
+            if (!extinct[i])
+                survivorBiomass[n++] = Bt[i];
+        Arrays.sort(survivorBiomass);
+        return survivorBiomass[Math.min(extinctionsToStop, n) - 1] - ModelEquations.EXTINCT;
+    }
+
+    /**
+     * Stop the integration when the nodes go extinct, unless all nodes are extinct,
+     * in which case there is nothing left to remove (and the steady state detector stops the integration).
+     */
+    @Override
+    public Action eventOccurred(double t, double[] Bt, boolean increasing) {
+        if (increasing)
+            return Action.CONTINUE;
+        for (double b : Bt) {
+            if (b >= ModelEquations.EXTINCT) {
+                integrationWasStopped = true;
+                return Action.STOP;
+            }
+        }
+        return Action.CONTINUE;
+    }
+
+    @Override
+    public void resetState(double t, double[] Bt) {
+    }
+
+    /**
+     * @return true if the last integration was stopped by extinctions
+     */
+    public boolean integrationWasStopped() {
+        return integrationWasStopped;
+    }
+}
@@ -1,5 +1,7 @@
 package edu.sfsu.worldofbalance.atnsimulator;
 
+import org.apache.commons.math3.ode.events.EventHandler;
+
 import java.util.Arrays;
 
 /**
@@ -8,64 +10,157 @@ import java.util.Arrays;
  * if the biomass state vector returns a value it held previously,
  * then it will return to that state again and again in a periodic pattern.
  *
- * At the start of integration, we take a snapshot of the state vector.
+ * At scheduled times during the integration, we take a snapshot of the state vector.
  * If the current biomass repeatedly reaches that state again (some minimum number of times),
  * and the biomasses are exhibiting an oscillating pattern,
  * then an oscillating steady state has been reached and we stop the integration.
+ *
+ * Because the period of an oscillating state could be of any length,
+ * the interval between snapshots doubles each time.
+ * The snapshots are triggered by a separate event handler, returned by getSnapshotSchedule(),
+ * which must be added to the integrator before this one.
  */
-public class SimulationOscillatingSteadyStateDetector extends SimulationEventHandler {
+public class SimulationOscillatingSteadyStateDetector extends SimulationSteadyStateDetector {
 
     public final double RELATIVE_ERROR_TOLERANCE = 0.01;    // Maximum relative error to accept matching biomass state
     public final double REQUIRED_MATCHING_STATE_COUNT = 3;  // Number of state matches required before stopping integration
 
-    private double[] biomassSnapshot;   // Snapshot of biomass state at start of current integration
+    private double firstSnapshotTime;   // Time of the first snapshot; each later snapshot is at twice the time
+    private SnapshotSchedule snapshotSchedule;
+
+    private double[] biomassSnapshot;   // Snapshot of biomass state (null until the first snapshot is taken)
     private double biomassSnapshotSum;  // Sum of the biomass snapshot
+    private double snapshotTime;        // Time at which the snapshot was taken
+    private double[] snapshotDerivatives;  // Derivatives at the time of the snapshot
+    private double snapshotSumDerivative;  // Derivative of the biomass sum at the time of the snapshot
     private double biomassSum;          // Sum of the current biomass state
 
     private double[] absoluteError;  // Error between current state and snapshot state
     private double[] relativeError;  // Relative error between current state and snapshot state
 
-    private double[] minDerivative;  // Minimum derivatives computed since start of current integration
-    private double[] maxDerivative;  // Maximum derivatives computed since start of current integration
+    private double[] minDerivative;  // Minimum derivatives computed since the snapshot
+    private double[] maxDerivative;  // Maximum derivatives computed since the snapshot
 
     private int numOscillating;  // Number of nodes with oscillating biomass
 
     private int matchingStateCount = 0;  // Number of times the current biomass state has matched the snapshot
 
-    public SimulationOscillatingSteadyStateDetector(ModelEquations equations) {
+    /**
+     * @param equations the equations being integrated
+     * @param firstSnapshotTime the time of the first snapshot
+     */
+    public SimulationOscillatingSteadyStateDetector(ModelEquations equations, double firstSnapshotTime) {
         super(equations);
+        this.firstSnapshotTime = firstSnapshotTime;
+        this.snapshotSchedule = new SnapshotSchedule();
+    }
+
+    /**
+     * @return the event handler that triggers the snapshots, to be added to the integrator before this one
+     */
+    public EventHandler getSnapshotSchedule() {
+        return snapshotSchedule;
     }
 
     /**
      * Called at the start of an integration.
-     * Note that this is not necessarily the start of a simulation.
+     * No snapshot is taken until the first scheduled snapshot time.
+     * If the simulation continues from an earlier integration (see reduce()),
+     * the snapshot and the watch for oscillations carry over.
      *
-     * @param t0 Integration start time (not 0 unless this is the start of the simulation)
+     * @param t0 Integration start time
      * @param B0 Biomass of each node at time t0
      * @param t Target time for the integration
      */
     @Override
     public void init(double t0, double[] B0, double t) {
+        super.init(t0, B0, t);
+        if (absoluteError != null && absoluteError.length == B0.length)
+            return;
+        biomassSnapshot = null;
+        allocate(B0.length);
+        numOscillating = 0;
+        matchingStateCount = 0;
+    }
+
+    private void allocate(int nodeCount) {
+        snapshotDerivatives = new double[nodeCount];
+        absoluteError = new double[nodeCount];
+        relativeError = new double[nodeCount];
+        minDerivative = new double[nodeCount];
+        maxDerivative = new double[nodeCount];
+    }
 
-        // Take a snapshot of the biomass at the start of integration
-        biomassSnapshot = Arrays.copyOf(B0, B0.length);
+    /**
+     * Continue with a reduced system, keeping the snapshot for the retained nodes
+     * if the nodes left out were already extinct when it was taken (and so are unchanged since).
+     * Otherwise the current state can no longer match the snapshot, so it is discarded until the next one.
+     */
+    @Override
+    public void reduce(ModelEquations reducedEquations, int[] retainedNodes) {
+        super.reduce(reducedEquations, retainedNodes);
+        double[] oldSnapshot = biomassSnapshot;
+        double[] oldSnapshotDerivatives = snapshotDerivatives;
+        double[] oldMinDerivative = minDerivative;
+        double[] oldMaxDerivative = maxDerivative;
+        allocate(retainedNodes.length);
+        if (oldSnapshot == null)
+            return;
+
+        boolean[] retained = new boolean[oldSnapshot.length];
+        for (int i : retainedNodes)
+            retained[i] = true;
+        for (int i = 0; i < oldSnapshot.length; i++) {
+            if (!retained[i] && oldSnapshot[i] >= ModelEquations.EXTINCT) {
+                biomassSnapshot = null;
+                numOscillating = 0;
+                matchingStateCount = 0;
+                return;
+            }
+        }
+
+        biomassSnapshot = new double[retainedNodes.length];
         biomassSnapshotSum = 0;
-        for (double b : B0) {
-            biomassSnapshotSum += b;
+        snapshotSumDerivative = 0;
+        for (int i = 0; i < retainedNodes.length; i++) {
+            int old = retainedNodes[i];
+            biomassSnapshot[i] = oldSnapshot[old];
+            snapshotDerivatives[i] = oldSnapshotDerivatives[old];
+            minDerivative[i] = oldMinDerivative[old];
+            maxDerivative[i] = oldMaxDerivative[old];
+            biomassSnapshotSum += biomassSnapshot[i];
+            snapshotSumDerivative += snapshotDerivatives[i];
         }
+    }
 
-        absoluteError = new double[B0.length];
-        relativeError = new double[B0.length];
+    /**
+     * Take a snapshot of the biomass, against which later states are compared,
+     * and start watching for oscillations afresh.
+     *
+     * @param t Time
+     * @param Bt Biomass of each node at time t
+     */
+    void takeSnapshot(double t, double[] Bt) {
+        if (biomassSnapshot == null)
+            biomassSnapshot = new double[Bt.length];
+        System.arraycopy(Bt, 0, biomassSnapshot, 0, Bt.length);
+        snapshotTime = t;
 
-        minDerivative = new double[B0.length];
-        maxDerivative = new double[B0.length];
-        for (int i = 0; i < B0.length; i++) {
-            minDerivative[i] = Double.POSITIVE_INFINITY;
-            maxDerivative[i] = Double.NEGATIVE_INFINITY;
+        // g() is zero at the snapshot time, so we give it the sign it will have immediately afterward,
+        // which prevents the snapshot itself from being detected as an event
+        equations.computeDerivatives(t, Bt, snapshotDerivatives);
+        biomassSnapshotSum = 0;
+        snapshotSumDerivative = 0;
+        for (int i = 0; i < Bt.length; i++) {
+            biomassSnapshotSum += Bt[i];
+            snapshotSumDerivative += snapshotDerivatives[i];
         }
 
+        Arrays.fill(minDerivative, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxDerivative, Double.NEGATIVE_INFINITY);
         numOscillating = 0;
         matchingStateCount = 0;
+        forgetChecks();
     }
 
     /**
@@ -74,7 +169,7 @@ public class SimulationOscillatingSteadyStateDetector extends SimulationEventHan
      * an event is triggered and handled by eventOccurred().
      *
      * This switching function crosses zero when the current total biomass
-     * equals the total biomass at the start of integration (the biomass "snapshot").
+     * equals the total biomass at the time of the biomass "snapshot".
      * g() always crosses zero where the current biomass state equals the snapshot;
      * however, it can cross zero at other times, too,
      * so we check for a true match in eventOccurred().
@@ -84,10 +179,16 @@ public class SimulationOscillatingSteadyStateDetector extends SimulationEventHan
      * @return the value of the switching function
      */
     @Override
-    public double g(double t, double[] Bt) {
+    protected double evaluate(double t, double[] Bt) {
+        if (biomassSnapshot == null)
+            return 1;
+        if (t == snapshotTime)
+            return -snapshotSumDerivative;
 
         // Compute the current total biomass
-        // and the min and max derivatives since the start of the integration, which we'll use later.
+        // and the min and max derivatives since the snapshot, which we'll use later.
+        // The derivatives are the most recently computed ones, which are not necessarily at time t,
+        // but computing them here would cost an evaluation for every check of the switching function.
         double[] currentDerivatives = equations.getCurrentDerivatives();
         biomassSum = 0;
         for (int i = 0; i < Bt.length; i++) {
@@ -104,7 +205,7 @@ public class SimulationOscillatingSteadyStateDetector extends SimulationEventHan
      * Stops the integration if:
      * - the current biomass state equals the snapshot within a tolerance, and
      * - at least one node is oscillating, and
-     * - those two conditions have been met a minimum number of times since the start of the integration.
+     * - those two conditions have been met a minimum number of times since the snapshot.
      *
      * @param t Time
      * @param Bt Biomass of each node at time t
@@ -128,7 +229,7 @@ public class SimulationOscillatingSteadyStateDetector extends SimulationEventHan
 
             // Count the number of oscillating node,
             // "oscillating" defined very generally as having had both a negative and a positive derivative
-            // since the start of the current integration.
+            // since the snapshot.
             if (minDerivative[i] < 0 && maxDerivative[i] > 0) {
                 numOscillating++;
             }
@@ -158,7 +259,7 @@ public class SimulationOscillatingSteadyStateDetector extends SimulationEventHan
 
     /**
      * Get the number of nodes that have had both positive and negative derivatives
-     * since the start of the integration. The value is only meaningful
+     * since the snapshot. The value is only meaningful
      * if this event handler has just stopped the integration.
      *
      * @return the number of nodes with oscillating biomass
@@ -166,4 +267,43 @@ public class SimulationOscillatingSteadyStateDetector extends SimulationEventHan
     public int getNumOscillating() {
         return numOscillating;
     }
+
+    /**
+     * Event handler that takes the snapshots.
+     * Its switching function changes sign at each snapshot time, and nowhere else.
+     */
+    private class SnapshotSchedule implements EventHandler {
+
+        @Override
+        public void init(double t0, double[] y0, double t) {
+        }
+
+        @Override
+        public double g(double t, double[] y) {
+            // Find the snapshot times before and after t,
+            // and whether an even number of snapshot times precede t
+            double previous = 0;
+            double next = firstSnapshotTime;
+            boolean even = true;
+            while (next <= t) {
+                previous = next;
+                next *= 2;
+                even = !even;
+            }
+
+            // A triangle wave, so that the root solver sees a linear function near each snapshot time
+            double distance = previous == 0 ? next - t : Math.min(t - previous, next - t);
+            return even ? distance : -distance;
+        }
+
+        @Override
+        public Action eventOccurred(double t, double[] y, boolean increasing) {
+            takeSnapshot(t, y);
+            return Action.CONTINUE;
+        }
+
+        @Override
+        public void resetState(double t, double[] y) {
+        }
+    }
 }
\ No newline at end of file
@@ -1,12 +1,86 @@
 package edu.sfsu.worldofbalance.atnsimulator;
 
+import org.apache.commons.math3.ode.FirstOrderIntegrator;
+import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator;
+import org.apache.commons.math3.ode.nonstiff.GraggBulirschStoerIntegrator;
+
 /**
  * Parameters of a Simulation,
  * as distinct from the parameters of the model equations.
  */
 public class SimulationParameters {
+
+    /**
+     * The available integration methods, each of which knows how to construct its integrator.
+     */
+    public enum IntegratorType {
+        // Explicit extrapolation method; fast for non-stiff systems at tight tolerances
+        GRAGG_BULIRSCH_STOER {
+            @Override
+            public FirstOrderIntegrator create(double minStep, double maxStep,
+                                               double absoluteTolerance, double relativeTolerance) {
+                return new GraggBulirschStoerIntegrator(minStep, maxStep, absoluteTolerance, relativeTolerance);
+            }
+        },
+
+        // Explicit Runge-Kutta method of order 8 with embedded 5th and 3rd order error estimates
+        DORMAND_PRINCE_853 {
+            @Override
+            public FirstOrderIntegrator create(double minStep, double maxStep,
+                                               double absoluteTolerance, double relativeTolerance) {
+                return new DormandPrince853Integrator(minStep, maxStep, absoluteTolerance, relativeTolerance);
+            }
+        },
+
+        // Explicit adaptive Runge-Kutta method of order 5(4), implemented in-house without per-step allocation
+        DORMAND_PRINCE_54 {
+            @Override
+            public FirstOrderIntegrator create(double minStep, double maxStep,
+                                               double absoluteTolerance, double relativeTolerance) {
+                return new DormandPrinceIntegrator(minStep, maxStep, absoluteTolerance, relativeTolerance);
+            }
+        },
+
+        // Linearly implicit method using the model Jacobian; for stiff systems
+        ROSENBROCK {
+            @Override
+            public FirstOrderIntegrator create(double minStep, double maxStep,
+                                               double absoluteTolerance, double relativeTolerance) {
+                return new RosenbrockIntegrator(minStep, maxStep, absoluteTolerance, relativeTolerance);
+            }
+        },
+
+        // Switches between explicit and Rosenbrock methods as stiffness is detected
+        STIFFNESS_SWITCHING {
+            @Override
+            public FirstOrderIntegrator create(double minStep, double maxStep,
+                                               double absoluteTolerance, double relativeTolerance) {
+                return new StiffnessSwitchingIntegrator(minStep, maxStep, absoluteTolerance, relativeTolerance);
+            }
+        };
+
+        /**
+         * @param minStep minimal step
+         * @param maxStep maximal step
+         * @param absoluteTolerance allowed absolute error
+         * @param relativeTolerance allowed relative error
+         * @return a new integrator of this type
+         */
+        public abstract FirstOrderIntegrator create(double minStep, double maxStep,
+                                                    double absoluteTolerance, double relativeTolerance);
+    }
+
     public int timesteps = 100;                // Number of timesteps to simulate
     public double stepSize = 0.1;              // Time increment per timestep
     public boolean stopOnSteadyState = false;  // Stop simulation when a steady state is detected
     public boolean recordBiomass = true;       // Include biomass in SimulationResults
-}
\ No newline at end of file
+    public RecordingSchedule recordingSchedule = RecordingSchedule.everyTimestep();  // Timesteps at which to record it
+    public double recordingAbsoluteTolerance = 0;  // Skip scheduled timesteps at which no biomass has changed by more
+    public double recordingRelativeTolerance = 0;  // than abs + rel * |b| since the last recorded one (0, 0: none)
+    public boolean removeExtinctNodes = false;  // Continue with a reduced system of the survivors after extinctions
+    public boolean solveForEquilibrium = false;  // Stop at a stable equilibrium found by solving for it directly
+    public boolean analyzeStability = false;    // Classify the final state by the eigenvalues of the Jacobian
+    public IntegratorType integratorType = IntegratorType.GRAGG_BULIRSCH_STOER;  // Integration method
+    public double absoluteTolerance = ModelEquations.EXTINCT;  // Allowed absolute error per integration step
+    public double relativeTolerance = 1.0e-10;                 // Allowed relative error per integration step
+}
@@ -10,7 +10,14 @@ import java.util.Arrays;
 public class SimulationResults {
     public SimulationParameters simulationParameters;
     public ModelParameters modelParameters;
-    public double[][] biomass;
+
+    /**
+     * Biomass of each node at each timestep simulated
+     * (null if not recorded, or if recorded into a BiomassSink given to the Simulation).
+     * It is stored as 32-bit floats, as in the output files, so it keeps only about 7 significant digits
+     * of the integrated biomass; finalBiomass keeps full double precision.
+     */
+    public BiomassSeries biomass;
 
     /** Timestep at which each node went extinct (-1 for nodes that did not go extinct) */
     public int[] extinctionTimesteps;
@@ -19,18 +26,28 @@ public class SimulationResults {
     public double[] finalBiomass;
     public int timestepsSimulated;
 
+    /** Number of evaluations of the model equations by the integrator */
+    public int derivativeEvaluations;
+
+    /** Number of evaluations of the switching functions of the steady state detectors */
+    public int constantDetectorEvaluations;
+    public int oscillationDetectorEvaluations;
+
+    /** Stability analysis of the final biomass (null if not analyzed or if the analysis failed) */
+    public StabilityAnalyzer.Result stability;
+
     public SimulationResults(SimulationParameters sp, ModelParameters mp) {
         simulationParameters = sp;
         modelParameters = mp;
         int nodeCount = mp.metabolicRate.length;
-        if (sp.recordBiomass)
-            biomass = new double[sp.timesteps][nodeCount];
-        else
-            biomass = null;
+        biomass = null;
         extinctionTimesteps = new int[nodeCount];
         Arrays.fill(extinctionTimesteps, -1);
         stopEvent = SimulationEventHandler.EventType.NONE;
         finalBiomass = new double[nodeCount];
         timestepsSimulated = 0;
+        derivativeEvaluations = 0;
+        constantDetectorEvaluations = 0;
+        oscillationDetectorEvaluations = 0;
     }
 }
@@ -0,0 +1,133 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.ode.sampling.AbstractStepInterpolator;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+/**
+ * Base class for the constant and oscillating steady state detectors,
+ * whose switching functions are checked many times within long integration steps.
+ *
+ * The detector is also added to the integrator as a step handler, from which it takes the length of each step.
+ * A check closer than (length of the last step / checksPerStep) to the last evaluation of the switching function
+ * skips the evaluation and returns the value of the previous check,
+ * so that the cost of the checks follows the integrator's step size.
+ *
+ * When the integrator locates a sign change between two checks, it gets the values these checks returned,
+ * so the change is always bracketed; all other times are evaluated.
+ * A sign change that happened before a skipped check is therefore located at that check.
+ */
+public abstract class SimulationSteadyStateDetector extends SimulationEventHandler implements StepHandler {
+
+    private int checksPerStep;          // Evaluations per integration step (0 to evaluate at every check)
+    private double minInterval;         // Minimum time between evaluations in successive checks
+    private double lastEvaluationTime;  // Time of the last evaluation in successive checks
+
+    // The last two checks, whose values the integrator may ask for again when locating a sign change
+    private double checkTime;
+    private double checkValue;
+    private double previousCheckTime;
+    private double previousCheckValue;
+
+    public SimulationSteadyStateDetector(ModelEquations equations) {
+        super(equations);
+        forgetChecks();
+    }
+
+    /**
+     * @param checksPerStep the number of evaluations of the switching function per integration step,
+     *                      or 0 to evaluate it at every check
+     */
+    public void setChecksPerStep(int checksPerStep) {
+        this.checksPerStep = checksPerStep;
+        minInterval = 0;
+    }
+
+    /**
+     * Evaluate the switching function.
+     *
+     * @param t Time
+     * @param Bt Biomass of each node at time t
+     * @return the value of the switching function
+     */
+    protected abstract double evaluate(double t, double[] Bt);
+
+    /**
+     * Check the switching function, evaluating it unless the last evaluation was too recent (see above).
+     *
+     * @param t Time
+     * @param Bt Biomass of each node at time t
+     * @return the value of the switching function
+     */
+    @Override
+    public final double g(double t, double[] Bt) {
+        if (checksPerStep == 0)
+            return evaluateCounted(t, Bt);
+        if (t == checkTime)
+            return checkValue;
+        if (t == previousCheckTime)
+            return previousCheckValue;
+        if (t < checkTime)
+            return evaluateCounted(t, Bt);  // Locating a sign change
+
+        double value;
+        if (t - lastEvaluationTime < minInterval) {
+            value = checkValue;
+        } else {
+            value = evaluateCounted(t, Bt);
+            lastEvaluationTime = t;
+        }
+        previousCheckTime = checkTime;
+        previousCheckValue = checkValue;
+        checkTime = t;
+        checkValue = value;
+        return value;
+    }
+
+    private double evaluateCounted(double t, double[] Bt) {
+        evaluations++;
+        return evaluate(t, Bt);
+    }
+
+    /**
+     * Evaluate the switching function at the next check,
+     * after a change that makes the values of the earlier checks invalid.
+     */
+    protected void forgetChecks() {
+        lastEvaluationTime = Double.NEGATIVE_INFINITY;
+        checkTime = Double.NEGATIVE_INFINITY;
+        previousCheckTime = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Called at the start of an integration, as an event handler and as a step handler.
+     */
+    @Override
+    public void init(double t0, double[] B0, double t) {
+        forgetChecks();
+    }
+
+    @Override
+    public void reduce(ModelEquations reducedEquations, int[] retainedNodes) {
+        super.reduce(reducedEquations, retainedNodes);
+        forgetChecks();
+    }
+
+    /**
+     * Take the minimum interval between evaluations from the length of the step.
+     * A step truncated by an event is handled in parts, so the length of the whole step is taken if available.
+     */
+    @Override
+    public void handleStep(StepInterpolator interpolator, boolean isLast) {
+        if (checksPerStep == 0)
+            return;
+        double stepLength;
+        if (interpolator instanceof AbstractStepInterpolator) {
+            AbstractStepInterpolator stepInterpolator = (AbstractStepInterpolator) interpolator;
+            stepLength = stepInterpolator.getGlobalCurrentTime() - stepInterpolator.getGlobalPreviousTime();
+        } else {
+            stepLength = interpolator.getCurrentTime() - interpolator.getPreviousTime();
+        }
+        minInterval = Math.abs(stepLength) / checksPerStep;
+    }
+}
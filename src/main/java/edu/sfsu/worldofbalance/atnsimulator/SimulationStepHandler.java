@@ -1,51 +1,194 @@
 package edu.sfsu.worldofbalance.atnsimulator;
 
-import org.apache.commons.math3.ode.sampling.FixedStepHandler;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
 
 import java.util.Arrays;
 
 /**
- * Fixed step handler for integrating ModelEquations.
- * Copies the integrator output into the biomass output array (if not null) at a fixed time step.
- * Records timesteps of extinction events.
+ * Step handler for integrating ModelEquations.
+ * Passes the biomass at the timesteps of a recording schedule to a biomass sink (if not null),
+ * taking it from the integrator's dense output within each integration step,
+ * so that the cost of the handler depends on the number of integration steps and recorded timesteps
+ * rather than on the number of timesteps simulated.
+ * Records the timesteps of extinction events: the first timestep at which a node's biomass is below
+ * the extinction threshold, whether or not that timestep is recorded.
+ *
+ * Optionally, a scheduled timestep is only recorded if the biomass of some node has changed
+ * by more than absoluteTolerance + relativeTolerance * |b| since the last recorded timestep, where b is its biomass
+ * at that timestep. Holding the biomass of each recorded timestep until the next then reproduces the biomass
+ * at every scheduled timestep within that tolerance.
+ *
+ * The equations being integrated may be a reduced system of some of the nodes (see setNodeIds()),
+ * but the output is always in terms of the original nodes.
  */
-public class SimulationStepHandler implements FixedStepHandler {
-    private int timestep;        // Current time step
-    private double[][] biomass;  // Biomass output array
-    private double stepSize;     // Step size
+public class SimulationStepHandler implements StepHandler {
+
+    // Fraction of a timestep by which a time may fall short of it due to rounding error and still reach it
+    private static final double TIMESTEP_ROUNDING = 1e-9;
+
+    private double stepSize;            // Time between timesteps
+    private BiomassSink sink;           // Receives the biomass at recorded timesteps (null if not recorded)
+    private RecordingSchedule schedule;
+    private int nextRecordedTimestep;   // Next scheduled timestep (Integer.MAX_VALUE if none)
+    private double absoluteTolerance;   // Change in biomass below which a scheduled timestep is not recorded
+    private double relativeTolerance;   // The same, relative to the biomass at the last recorded timestep
+    private double[] recordedState;     // Biomass of each original node at the last recorded timestep (null if none)
+    private int checkedTimestep;        // Last timestep checked for extinctions (-1 before the integration starts)
     private int[] extinctionTimesteps;
-    private boolean recordBiomass;
+    private double lastHandledTime;     // Time at the end of the last integration step handled
+    private double[] lastHandledState;  // Biomass of each original node at lastHandledTime (or in between, briefly)
+    private int[] nodeIds;              // Original node ID of each node of the integrated system (null if all)
 
     /**
      * @param nodeCount number of nodes
-*      @param biomass biomass output array (null if biomass series should not be stored)
+     * @param sink receives the biomass at each recorded timestep (null if biomass series should not be stored)
      * @param stepSize interval between timesteps
+     * @param schedule the timesteps at which to record the biomass
+     * @param absoluteTolerance the absolute change in biomass since the last recorded timestep
+     *                          below which a scheduled timestep is not recorded (0 to record every one)
+     * @param relativeTolerance the relative change in biomass below which it is not recorded
      */
-    public SimulationStepHandler(int nodeCount, double[][] biomass, double stepSize) {
-        timestep = -1;
-        this.biomass = biomass;
+    public SimulationStepHandler(int nodeCount, BiomassSink sink, double stepSize, RecordingSchedule schedule,
+                                 double absoluteTolerance, double relativeTolerance) {
         this.stepSize = stepSize;
-        this.extinctionTimesteps = new int[nodeCount];
+        this.sink = sink;
+        this.schedule = schedule;
+        this.absoluteTolerance = absoluteTolerance;
+        this.relativeTolerance = relativeTolerance;
+        nextRecordedTimestep = sink == null ? Integer.MAX_VALUE : schedule.next(0);
+        checkedTimestep = -1;
+        extinctionTimesteps = new int[nodeCount];
         Arrays.fill(extinctionTimesteps, -1);
-        this.recordBiomass = biomass != null;
+        lastHandledState = new double[nodeCount];
     }
 
+    /**
+     * Called at the start of each integration.
+     * At the start of the simulation, timestep 0 is handled;
+     * later integrations start at a time that has already been handled.
+     */
     @Override
     public void init(double t0, double[] y0, double t) {
+        copyState(y0);
+        lastHandledTime = t0;
+        if (checkedTimestep == -1) {
+            if (nextRecordedTimestep == 0) {
+                record(0);
+                nextRecordedTimestep = schedule.next(1);
+            }
+            for (int i = 0; i < lastHandledState.length; i++)
+                if (lastHandledState[i] < ModelEquations.EXTINCT)
+                    extinctionTimesteps[i] = 0;
+            checkedTimestep = 0;
+        }
+    }
+
+    /**
+     * Continue with a reduced system of the given nodes.
+     * The biomass of the nodes left out is held at its value in the given state.
+     *
+     * @param nodeIds the original node ID of each node of the reduced system
+     * @param state the biomass of each original node at the start of the reduced system's integration
+     */
+    public void setNodeIds(int[] nodeIds, double[] state) {
+        this.nodeIds = nodeIds;
+        System.arraycopy(state, 0, lastHandledState, 0, lastHandledState.length);
     }
 
     @Override
-    public void handleStep (double t, double[] y, double[] yDot, boolean isLast) {
-        timestep = (int) Math.round(t / stepSize);
-        // Ensure we don't go past the last time step due to rounding error
-        if (recordBiomass && timestep < biomass.length) {
-            System.arraycopy(y, 0, biomass[timestep], 0, biomass[timestep].length);
+    public void handleStep(StepInterpolator interpolator, boolean isLast) {
+        double t = interpolator.getCurrentTime();
+        int lastTimestep = (int) Math.floor(t / stepSize + TIMESTEP_ROUNDING);
+
+        // Record the scheduled timesteps within the step
+        while (nextRecordedTimestep <= lastTimestep) {
+            interpolate(interpolator, nextRecordedTimestep * stepSize);
+            record(nextRecordedTimestep);
+            nextRecordedTimestep = schedule.next(nextRecordedTimestep + 1);
+        }
+
+        // Find the first timestep within the step at which each node that has gone extinct was below the threshold.
+        // Extinctions are permanent, so it can be found by bisection.
+        interpolate(interpolator, t);
+        if (lastTimestep > checkedTimestep) {
+            boolean interpolated = false;
+            for (int i = 0; i < lastHandledState.length; i++) {
+                if (extinctionTimesteps[i] == -1 && lastHandledState[i] < ModelEquations.EXTINCT) {
+                    extinctionTimesteps[i] = findExtinctionTimestep(interpolator, i, checkedTimestep + 1, lastTimestep);
+                    interpolated = true;
+                }
+            }
+            if (interpolated)
+                interpolate(interpolator, t);
+            checkedTimestep = lastTimestep;
+        }
+        lastHandledTime = t;
+    }
+
+    /**
+     * Pass lastHandledState to the sink as the biomass at the given scheduled timestep,
+     * unless it is within the tolerance of the last recorded biomass.
+     */
+    private void record(int timestep) {
+        if (absoluteTolerance > 0 || relativeTolerance > 0) {
+            if (recordedState != null && !hasChanged())
+                return;
+            if (recordedState == null)
+                recordedState = new double[lastHandledState.length];
+            System.arraycopy(lastHandledState, 0, recordedState, 0, recordedState.length);
+        }
+        sink.record(timestep, lastHandledState);
+    }
+
+    /**
+     * @return true if the biomass of some node in lastHandledState is outside the tolerance of its recorded biomass
+     */
+    private boolean hasChanged() {
+        for (int i = 0; i < recordedState.length; i++)
+            if (!(Math.abs(lastHandledState[i] - recordedState[i])
+                    <= absoluteTolerance + relativeTolerance * Math.abs(recordedState[i])))
+                return true;
+        return false;
+    }
+
+    /**
+     * @return the first timestep from first to last at which node i is below the extinction threshold,
+     * or -1 if it is not below it at the last (it went extinct after the last timestep of the step)
+     */
+    private int findExtinctionTimestep(StepInterpolator interpolator, int i, int first, int last) {
+        interpolate(interpolator, last * stepSize);
+        if (lastHandledState[i] >= ModelEquations.EXTINCT)
+            return -1;
+        while (first < last) {
+            int middle = (first + last) >>> 1;
+            interpolate(interpolator, middle * stepSize);
+            if (lastHandledState[i] < ModelEquations.EXTINCT)
+                last = middle;
+            else
+                first = middle + 1;
         }
+        return first;
+    }
 
-        // Record any extinctions that occurred this timestep
-        for (int i = 0; i < y.length; i++)
-            if (extinctionTimesteps[i] == -1 && y[i] < ModelEquations.EXTINCT)
-                extinctionTimesteps[i] = timestep;
+    /**
+     * Copy the state of the integrated system at time t within the current step into lastHandledState.
+     */
+    private void interpolate(StepInterpolator interpolator, double t) {
+        interpolator.setInterpolatedTime(t);
+        copyState(interpolator.getInterpolatedState());
+    }
+
+    /**
+     * Copy the state of the integrated system into lastHandledState.
+     */
+    private void copyState(double[] y) {
+        if (nodeIds == null) {
+            System.arraycopy(y, 0, lastHandledState, 0, lastHandledState.length);
+        } else {
+            for (int i = 0; i < nodeIds.length; i++)
+                lastHandledState[nodeIds[i]] = y[i];
+        }
     }
 
     /**
@@ -56,9 +199,17 @@ public class SimulationStepHandler implements FixedStepHandler {
     }
 
     /**
-     * @return the last time step for which handleStep() was called.
+     * @return the time at the end of the last integration step handled
+     * (or at the start of the integration if no step has been handled)
+     */
+    public double getLastHandledTime() {
+        return lastHandledTime;
+    }
+
+    /**
+     * @return the biomass of each original node at getLastHandledTime()
      */
-    public int getLastHandledTimestep() {
-        return timestep;
+    public double[] getLastHandledState() {
+        return lastHandledState;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,218 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.MaxCountExceededException;
+import org.apache.commons.math3.exception.NoBracketingException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.ode.ExpandableStatefulODE;
+import org.apache.commons.math3.ode.nonstiff.AdaptiveStepsizeIntegrator;
+import org.apache.commons.math3.ode.sampling.AbstractStepInterpolator;
+
+/**
+ * Base class for the in-house adaptive single-step integrators.
+ * It implements the step size control loop and the hand-off of accepted steps to event and step handlers;
+ * subclasses implement the steps themselves and the dense output.
+ *
+ * The working arrays and the step interpolator are allocated on the first call to integrate()
+ * and reused by later calls with the same dimension.
+ */
+public abstract class SingleStepIntegrator extends AdaptiveStepsizeIntegrator {
+
+    // Step size control
+    private static final double SAFETY = 0.9;
+    private static final double MIN_REDUCTION = 0.2;
+    private static final double MAX_GROWTH = 5.0;
+
+    // Working arrays
+    protected int n = -1;
+    protected double[] y;        // State at the start of the current step
+    protected double[] yStart;   // Copy of the state at the start of the current step, kept for the interpolator
+    protected double[] yDot0;    // Derivatives at the start of the current step
+    protected double[] yEnd;     // State at the end of the step being attempted
+    protected double[] yDotEnd;  // Derivatives at the end of the step being attempted
+    private double[] scale;
+    private BufferedStepInterpolator interpolator;
+
+    protected SingleStepIntegrator(String name, double minStep, double maxStep,
+                                   double scalAbsoluteTolerance, double scalRelativeTolerance) {
+        super(name, minStep, maxStep, scalAbsoluteTolerance, scalRelativeTolerance);
+    }
+
+    @Override
+    public void integrate(ExpandableStatefulODE equations, double t)
+            throws NumberIsTooSmallException, DimensionMismatchException,
+            MaxCountExceededException, NoBracketingException {
+
+        sanityChecks(equations, t);
+        setEquations(equations);
+        boolean forward = t > equations.getTime();
+
+        double[] y0 = equations.getCompleteState();
+        if (y0.length != n) {
+            n = y0.length;
+            y = new double[n];
+            yStart = new double[n];
+            yDot0 = new double[n];
+            yEnd = new double[n];
+            yDotEnd = new double[n];
+            scale = new double[n];
+            allocate();
+            interpolator = createInterpolator();
+        }
+        System.arraycopy(y0, 0, y, 0, n);
+
+        interpolator.reinitialize(y, forward, equations);
+        interpolator.storeTime(equations.getTime());
+
+        stepStart = equations.getTime();
+        initIntegration(equations.getTime(), y0, t);
+        computeDerivatives(stepStart, y, yDot0);
+        startIntegration();
+
+        for (int i = 0; i < mainSetDimension; i++)
+            scale[i] = tolerance(i, y, y);
+        double hNew = initializeStep(forward, getOrder(), scale, stepStart, y, yDot0, yEnd, yDotEnd);
+
+        isLastStep = false;
+        do {
+            interpolator.shift();
+            System.arraycopy(y, 0, yStart, 0, n);
+            beginStep();
+
+            // Iterate over step size, ensuring local normalized error is smaller than 1
+            double error = 10;
+            while (error >= 1.0) {
+                stepSize = hNew;
+                if (forward ? stepStart + stepSize >= t : stepStart + stepSize <= t)
+                    stepSize = t - stepStart;
+
+                error = attemptStep();
+                if (Double.isNaN(error))
+                    error = 10;
+                if (error >= 1.0) {
+                    // Reject the step and reduce the step size
+                    double factor = Math.max(MIN_REDUCTION, SAFETY * Math.pow(error, -1.0 / (getOrder() - 1)));
+                    hNew = filterStep(stepSize * factor, forward, false);
+                }
+            }
+
+            // Accept the step, trigger events and step handlers
+            // (acceptStep() recomputes yDotEnd if an event handler resets the state)
+            System.arraycopy(yEnd, 0, y, 0, n);
+            interpolator.storeTime(stepStart + stepSize);
+            interpolator.stepAccepted();
+            double stepEnd = stepStart + stepSize;
+            stepStart = acceptStep(interpolator, y, yDotEnd, t);
+            System.arraycopy(yDotEnd, 0, yDot0, 0, n);
+
+            if (!isLastStep) {
+                interpolator.storeTime(stepStart);
+                endStep(stepStart == stepEnd);
+
+                double factor = Math.min(MAX_GROWTH, SAFETY * Math.pow(error, -1.0 / getOrder()));
+                double scaledH = stepSize * factor;
+                double nextT = stepStart + scaledH;
+                boolean nextIsLast = forward ? nextT >= t : nextT <= t;
+                hNew = filterStep(scaledH, forward, nextIsLast);
+                double filteredNextT = stepStart + hNew;
+                if (forward ? filteredNextT >= t : filteredNextT <= t)
+                    hNew = t - stepStart;
+            }
+        } while (!isLastStep);
+
+        equations.setTime(stepStart);
+        equations.setCompleteState(y);
+
+        resetInternalState();
+    }
+
+    /**
+     * @return the order of the method used for the current step, which determines the step size control exponents
+     */
+    protected abstract int getOrder();
+
+    /**
+     * Allocate the subclass's working arrays for dimension n.
+     */
+    protected abstract void allocate();
+
+    /**
+     * @return a new interpolator for the steps of this integrator, which may share its working arrays
+     */
+    protected abstract BufferedStepInterpolator createInterpolator();
+
+    /**
+     * Attempt a step of size stepSize from stepStart, storing the resulting state in yEnd.
+     * If the step is acceptable, also store the derivatives at the end of the step in yDotEnd.
+     *
+     * @return the normalized local error estimate; the step is acceptable if it is less than 1
+     */
+    protected abstract double attemptStep();
+
+    /**
+     * Called once at the start of an integration, after the initial derivatives are computed.
+     */
+    protected void startIntegration() {
+    }
+
+    /**
+     * Prepare for a new step from stepStart with state y and derivatives yDot0.
+     */
+    protected void beginStep() {
+    }
+
+    /**
+     * Called after a step has been accepted and integration continues.
+     * @param completed false if an event handler truncated the step
+     */
+    protected void endStep(boolean completed) {
+    }
+
+    /**
+     * @return the error tolerance for component i of a step between states y0 and y1
+     */
+    protected double tolerance(int i, double[] y0, double[] y1) {
+        double yMax = Math.max(Math.abs(y0[i]), Math.abs(y1[i]));
+        if (vecAbsoluteTolerance == null)
+            return scalAbsoluteTolerance + scalRelativeTolerance * yMax;
+        else
+            return vecAbsoluteTolerance[i] + vecRelativeTolerance[i] * yMax;
+    }
+
+    /**
+     * @return the normalized RMS error of the given local error estimate for a step from y to yEnd
+     */
+    protected double normalizedError(double[] errorEstimate) {
+        double error = 0;
+        for (int i = 0; i < mainSetDimension; i++) {
+            double errorI = errorEstimate[i] / tolerance(i, y, yEnd);
+            error += errorI * errorI;
+        }
+        return Math.sqrt(error / mainSetDimension);
+    }
+
+    /**
+     * A step interpolator that reads the integrator's working arrays rather than keeping its own copies.
+     * Copies made with copy() are independent of the integrator.
+     */
+    protected static abstract class BufferedStepInterpolator extends AbstractStepInterpolator {
+
+        protected BufferedStepInterpolator() {
+            super();
+        }
+
+        protected BufferedStepInterpolator(BufferedStepInterpolator interpolator) {
+            super(interpolator);
+        }
+
+        void reinitialize(double[] y, boolean forward, ExpandableStatefulODE equations) {
+            reinitialize(y, forward, equations.getPrimaryMapper(), equations.getSecondaryMappers());
+        }
+
+        /**
+         * Called when a step has been accepted, before it is handed to the event and step handlers.
+         */
+        protected void stepAccepted() {
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Classifies the final state of a simulation from the eigenvalues of the Jacobian of ModelEquations there,
+ * over the nodes that have not gone extinct.
+ *
+ * The state is a stable equilibrium if it is close to an equilibrium (see EquilibriumSolver)
+ * and all eigenvalues have negative real parts.
+ * Close to an unstable equilibrium whose leading eigenvalues are a complex pair,
+ * the state spirals away from the equilibrium towards a limit cycle;
+ * if the leading eigenvalue is real, the state is passing a saddle, and is transient.
+ * Away from any equilibrium, the state is on a limit cycle if the oscillating steady state detector
+ * stopped the simulation, and is transient otherwise.
+ *
+ * The eigenvalues are computed one strongly connected component of the Jacobian's nonzero pattern at a time:
+ * ordering the nodes by component makes the Jacobian block triangular, so its eigenvalues are those of the blocks.
+ * Disconnected parts of the food web and nodes on which no other node depends in return
+ * (such as producers whose consumers have gone extinct) are separate blocks, and single-node blocks need no
+ * decomposition, so the cost is the sum of the cubes of the block sizes rather than the cube of the node count.
+ */
+public class StabilityAnalyzer {
+
+    public enum Classification {
+        STABLE_EQUILIBRIUM,
+        LIMIT_CYCLE,
+        TRANSIENT
+    }
+
+    // Maximum relative distance of each node from an equilibrium for the state to be considered at the equilibrium
+    public static final double MAX_EQUILIBRIUM_DISTANCE = 0.01;
+
+    /**
+     * The spectrum of the Jacobian at a state and the classification of the state.
+     */
+    public static class Result {
+        public int[] nodeIds;                      // Nodes included in the Jacobian (those not extinct)
+        public double[] eigenvalueRealParts;       // In decreasing order of real part
+        public double[] eigenvalueImaginaryParts;  // Imaginary part of each eigenvalue in eigenvalueRealParts
+        public double leadingEigenvalueRealPart;   // Eigenvalue with the largest real part (NaN if no nodes)
+        public double leadingEigenvalueImaginaryPart;
+        public double equilibriumDistance;         // Maximum relative distance of a node from the nearby equilibrium
+                                                   // (infinite if none was found)
+        public Classification classification;
+    }
+
+    private ModelEquations equations;
+
+    /**
+     * @param equations the equations of all nodes of the simulation
+     */
+    public StabilityAnalyzer(ModelEquations equations) {
+        this.equations = equations;
+    }
+
+    /**
+     * Compute the eigenvalues of the Jacobian at the given state over the nodes that are not extinct,
+     * and classify the state.
+     *
+     * @param biomass the biomass of each node
+     * @param stopEvent the event that stopped the simulation
+     * @return the spectrum and classification, or null if the eigenvalue computation did not converge
+     */
+    public Result analyze(double[] biomass, SimulationEventHandler.EventType stopEvent) {
+        Result result = new Result();
+        result.nodeIds = IntStream.range(0, biomass.length)
+                .filter(i -> biomass[i] >= ModelEquations.EXTINCT).toArray();
+        int nodeCount = result.nodeIds.length;
+        if (nodeCount == 0) {
+            // Nothing is left to change
+            result.eigenvalueRealParts = new double[0];
+            result.eigenvalueImaginaryParts = new double[0];
+            result.leadingEigenvalueRealPart = Double.NaN;
+            result.leadingEigenvalueImaginaryPart = Double.NaN;
+            result.equilibriumDistance = 0;
+            result.classification = Classification.STABLE_EQUILIBRIUM;
+            return result;
+        }
+
+        ModelEquations survivorEquations = nodeCount == biomass.length
+                ? equations : equations.subsystem(result.nodeIds);
+        double[] B = new double[nodeCount];
+        for (int i = 0; i < nodeCount; i++)
+            B[i] = biomass[result.nodeIds[i]];
+        double[] BDot = new double[nodeCount];
+        double[][] jacobian = new double[nodeCount][nodeCount];
+        survivorEquations.computeDerivatives(0, B, BDot);
+        survivorEquations.computeMainStateJacobian(0, B, BDot, jacobian);
+
+        try {
+            computeEigenvalues(jacobian, result);
+        } catch (MathIllegalStateException e) {
+            return null;  // The eigenvalue iteration did not converge
+        }
+
+        double[] equilibrium = new EquilibriumSolver(survivorEquations).solve(B);
+        result.equilibriumDistance = Double.POSITIVE_INFINITY;
+        if (equilibrium != null) {
+            result.equilibriumDistance = 0;
+            for (int i = 0; i < nodeCount; i++)
+                result.equilibriumDistance = Math.max(result.equilibriumDistance,
+                        Math.abs(equilibrium[i] - B[i]) / B[i]);
+        }
+
+        if (result.equilibriumDistance <= MAX_EQUILIBRIUM_DISTANCE) {
+            if (result.leadingEigenvalueRealPart < 0)
+                result.classification = Classification.STABLE_EQUILIBRIUM;
+            else if (result.leadingEigenvalueImaginaryPart != 0)
+                result.classification = Classification.LIMIT_CYCLE;
+            else
+                result.classification = Classification.TRANSIENT;
+        } else if (stopEvent == SimulationEventHandler.EventType.OSCILLATING_STEADY_STATE) {
+            result.classification = Classification.LIMIT_CYCLE;
+        } else {
+            result.classification = Classification.TRANSIENT;
+        }
+        return result;
+    }
+
+    /**
+     * Compute the eigenvalues of the Jacobian block by block,
+     * and store them in the result in decreasing order of real part.
+     * Of a complex conjugate pair, the one with the positive imaginary part comes first.
+     */
+    private static void computeEigenvalues(double[][] jacobian, Result result) {
+        int nodeCount = jacobian.length;
+        double[] realParts = new double[nodeCount];
+        double[] imaginaryParts = new double[nodeCount];
+        int count = 0;
+        for (int[] component : new ComponentFinder(jacobian).find()) {
+            if (component.length == 1) {
+                realParts[count++] = jacobian[component[0]][component[0]];
+                continue;
+            }
+            double[][] block = new double[component.length][component.length];
+            for (int a = 0; a < component.length; a++)
+                for (int b = 0; b < component.length; b++)
+                    block[a][b] = jacobian[component[a]][component[b]];
+            EigenDecomposition decomposition = new EigenDecomposition(new Array2DRowRealMatrix(block, false));
+            System.arraycopy(decomposition.getRealEigenvalues(), 0, realParts, count, component.length);
+            System.arraycopy(decomposition.getImagEigenvalues(), 0, imaginaryParts, count, component.length);
+            count += component.length;
+        }
+
+        Integer[] order = new Integer[nodeCount];
+        for (int k = 0; k < nodeCount; k++)
+            order[k] = k;
+        Arrays.sort(order, Comparator.<Integer>comparingDouble(k -> -realParts[k])
+                .thenComparingDouble(k -> -imaginaryParts[k]));
+        result.eigenvalueRealParts = new double[nodeCount];
+        result.eigenvalueImaginaryParts = new double[nodeCount];
+        for (int k = 0; k < nodeCount; k++) {
+            result.eigenvalueRealParts[k] = realParts[order[k]];
+            result.eigenvalueImaginaryParts[k] = imaginaryParts[order[k]];
+        }
+        result.leadingEigenvalueRealPart = result.eigenvalueRealParts[0];
+        result.leadingEigenvalueImaginaryPart = result.eigenvalueImaginaryParts[0];
+    }
+
+    /**
+     * Finds the strongly connected components of the graph with an edge from node i to node m
+     * wherever jacobian[i][m] is nonzero, by Tarjan's algorithm.
+     */
+    private static class ComponentFinder {
+        private double[][] jacobian;
+        private int[] index;     // Order in which each node was visited (-1 if not yet visited)
+        private int[] lowLink;   // Smallest index of a node reachable from each node on the stack
+        private boolean[] onStack;
+        private int[] stack;
+        private int stackSize;
+        private int nextIndex;
+        private List<int[]> components;
+
+        ComponentFinder(double[][] jacobian) {
+            this.jacobian = jacobian;
+            int nodeCount = jacobian.length;
+            index = new int[nodeCount];
+            Arrays.fill(index, -1);
+            lowLink = new int[nodeCount];
+            onStack = new boolean[nodeCount];
+            stack = new int[nodeCount];
+            components = new ArrayList<>();
+        }
+
+        List<int[]> find() {
+            for (int i = 0; i < jacobian.length; i++)
+                if (index[i] == -1)
+                    visit(i);
+            return components;
+        }
+
+        private void visit(int i) {
+            index[i] = lowLink[i] = nextIndex++;
+            stack[stackSize++] = i;
+            onStack[i] = true;
+            for (int m = 0; m < jacobian.length; m++) {
+                if (m == i || jacobian[i][m] == 0)
+                    continue;
+                if (index[m] == -1) {
+                    visit(m);
+                    lowLink[i] = Math.min(lowLink[i], lowLink[m]);
+                } else if (onStack[m]) {
+                    lowLink[i] = Math.min(lowLink[i], index[m]);
+                }
+            }
+            if (lowLink[i] == index[i]) {
+                int start = stackSize;
+                do {
+                    start--;
+                    onStack[stack[start]] = false;
+                } while (stack[start] != i);
+                components.add(Arrays.copyOfRange(stack, start, stackSize));
+                stackSize = start;
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+/**
+ * An integrator that detects stiffness as it goes and switches between an explicit and an implicit method,
+ * in the manner of LSODA.
+ *
+ * Non-stiff stretches are integrated with the explicit Dormand-Prince 5(4) method.
+ * While doing so, the dominant eigenvalue of the Jacobian is estimated from the last two stages of each step
+ * (Hairer and Wanner, Solving Ordinary Differential Equations II, section IV.2);
+ * when the step size is repeatedly limited by stability rather than accuracy,
+ * integration switches to the Rosenbrock method.
+ * While the Rosenbrock method is in use, the infinity norm of the Jacobian bounds the spectral radius,
+ * and integration switches back once the explicit method would be stable at the current step size.
+ *
+ * The explicit steps are taken by DormandPrinceStepper, and interpolated with its continuous extension;
+ * the Rosenbrock steps are interpolated with the cubic Hermite interpolant (which is the same extension
+ * without its last term), so one interpolator serves both.
+ * Because the switching happens within a single call to integrate(),
+ * step handlers and event handlers are unaffected by it.
+ */
+public class StiffnessSwitchingIntegrator extends RosenbrockIntegrator {
+
+    private static final String NAME = "Stiffness switching (Dormand-Prince 5(4) / Rosenbrock)";
+
+    // Stiffness detection
+    public static final double STABILITY_LIMIT = 3.25;  // Approximate |h * lambda| on the boundary of the DP5 stability region
+    public static final int CONSECUTIVE_STEPS_TO_SWITCH = 15;
+    public static final int NON_STIFF_STEPS_TO_RESET = 6;
+
+    private boolean stiff;
+    private int stiffStepCount;     // Explicit steps limited by stability
+    private int nonStiffStepCount;  // Consecutive steps at which the explicit method would be stable
+    private double stiffnessEstimate;  // |h * lambda| estimated in the last attempted explicit step
+    private int switchCount;
+
+    private DormandPrinceStepper stepper;
+    private DormandPrinceStepper.DormandPrinceStepInterpolator interpolator;
+    private double[] errorEstimate;
+
+    /**
+     * @param minStep minimal step (sign is irrelevant, regardless of integration direction)
+     * @param maxStep maximal step (sign is irrelevant, regardless of integration direction)
+     * @param scalAbsoluteTolerance allowed absolute error
+     * @param scalRelativeTolerance allowed relative error
+     */
+    public StiffnessSwitchingIntegrator(double minStep, double maxStep,
+                                        double scalAbsoluteTolerance, double scalRelativeTolerance) {
+        super(NAME, minStep, maxStep, scalAbsoluteTolerance, scalRelativeTolerance);
+    }
+
+    /**
+     * @return the number of times the method was switched during the last integration
+     */
+    public int getSwitchCount() {
+        return switchCount;
+    }
+
+    /**
+     * @return true if the implicit method was in use at the end of the last integration
+     */
+    public boolean isStiff() {
+        return stiff;
+    }
+
+    @Override
+    protected int getOrder() {
+        return stiff ? super.getOrder() : 5;
+    }
+
+    @Override
+    protected void allocate() {
+        super.allocate();
+        stepper = new DormandPrinceStepper(this, n);
+        errorEstimate = new double[n];
+    }
+
+    @Override
+    protected BufferedStepInterpolator createInterpolator() {
+        interpolator = new DormandPrinceStepper.DormandPrinceStepInterpolator(this, stepper);
+        return interpolator;
+    }
+
+    @Override
+    protected void startIntegration() {
+        stiff = false;
+        stiffStepCount = 0;
+        nonStiffStepCount = 0;
+        switchCount = 0;
+    }
+
+    @Override
+    protected void beginStep() {
+        interpolator.setHermite(stiff);
+        if (stiff)
+            super.beginStep();
+    }
+
+    @Override
+    protected double attemptStep() {
+        return stiff ? super.attemptStep() : attemptExplicitStep();
+    }
+
+    @Override
+    protected void endStep(boolean completed) {
+        if (!completed)
+            return;
+        if (stiff) {
+            if (Math.abs(stepSize) * jacobianNorm() < STABILITY_LIMIT) {
+                nonStiffStepCount++;
+                if (nonStiffStepCount == CONSECUTIVE_STEPS_TO_SWITCH)
+                    switchMethod();
+            } else {
+                nonStiffStepCount = 0;
+            }
+        } else {
+            // As in Hairer's DOPRI5, isolated non-stiff steps don't reset the count of stiff steps,
+            // since the step size oscillates around the stability limit once stiffness sets in
+            if (stiffnessEstimate > STABILITY_LIMIT) {
+                nonStiffStepCount = 0;
+                stiffStepCount++;
+                if (stiffStepCount == CONSECUTIVE_STEPS_TO_SWITCH)
+                    switchMethod();
+            } else {
+                nonStiffStepCount++;
+                if (nonStiffStepCount == NON_STIFF_STEPS_TO_RESET)
+                    stiffStepCount = 0;
+            }
+        }
+    }
+
+    private void switchMethod() {
+        stiff = !stiff;
+        stiffStepCount = 0;
+        nonStiffStepCount = 0;
+        switchCount++;
+    }
+
+    private double jacobianNorm() {
+        double norm = 0;
+        for (int i = 0; i < n; i++) {
+            double rowSum = 0;
+            for (int j = 0; j < n; j++)
+                rowSum += Math.abs(jacobian[i][j]);
+            norm = Math.max(norm, rowSum);
+        }
+        return norm;
+    }
+
+    /**
+     * Attempt a Dormand-Prince 5(4) step, using yDot0 as the first stage,
+     * and estimate the stiffness from it.
+     * The last stage is the derivative at the end of the step, so yDotEnd is always set.
+     */
+    private double attemptExplicitStep() {
+        stepper.step(stepStart, stepSize, y, yDot0, yEnd, yDotEnd);
+        stiffnessEstimate = stepper.estimateStiffness(stepSize, yEnd, yDotEnd);
+        stepper.estimateError(stepSize, yDot0, yDotEnd, errorEstimate);
+        return normalizedError(errorEstimate);
+    }
+}
@@ -0,0 +1,151 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of the compiled subwebs (FoodWebTopology objects) of a food web, keyed by the ordered list of node IDs,
+ * so that the many simulations of a batch that have the same nodes with different parameters
+ * extract, normalize and compile their subweb only once.
+ *
+ * It can be shared by any number of threads. Lookups do not lock: a hit only reads the map and stamps the entry
+ * with the time it was used. A miss compiles the subweb outside of the map, so that other threads are not held up
+ * by it, and if two threads compile the same subweb at once, the first to store it wins.
+ *
+ * The cache holds at most about `capacity` subwebs. When it grows beyond that, the least recently used eighth
+ * is evicted at once by whichever thread finds it too large, while the others carry on,
+ * so it can briefly exceed its capacity by the number of threads inserting into it.
+ */
+public class TopologyCache {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private FoodWeb fullFoodWeb;
+    private int capacity;
+    private ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private AtomicBoolean evicting = new AtomicBoolean();
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+
+    /**
+     * An ordered list of node IDs, compared by value
+     */
+    private static class Key {
+        final int[] nodeIds;
+        final int hash;
+
+        Key(int[] nodeIds) {
+            this.nodeIds = nodeIds;
+            hash = Arrays.hashCode(nodeIds);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(nodeIds, ((Key) other).nodeIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Entry {
+        final FoodWebTopology topology;
+        volatile long lastUsed;  // System.nanoTime() of the last lookup
+
+        Entry(FoodWebTopology topology) {
+            this.topology = topology;
+            lastUsed = System.nanoTime();
+        }
+    }
+
+    /**
+     * @param fullFoodWeb the food web of which to cache subwebs, which must not be changed while the cache is used
+     * @param capacity the number of subwebs to hold (0 to compile every subweb without caching it)
+     */
+    public TopologyCache(FoodWeb fullFoodWeb, int capacity) {
+        this.fullFoodWeb = fullFoodWeb;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Return the compiled subweb of the given nodes, compiling it if it is not in the cache.
+     * @param nodeIds the node IDs of the subweb, in the order of their normalized node IDs
+     * @return the compiled subweb, which may be shared with other threads and must not be changed
+     */
+    public FoodWebTopology get(int[] nodeIds) {
+        Entry entry = entries.get(new Key(nodeIds));
+        if (entry != null) {
+            hits.increment();
+            entry.lastUsed = System.nanoTime();
+            return entry.topology;
+        }
+
+        misses.increment();
+        FoodWebTopology topology = new FoodWebTopology(fullFoodWeb, nodeIds);
+        if (capacity == 0)
+            return topology;
+
+        // The key holds the topology's own copy of the node IDs, which the caller cannot change
+        Entry existing = entries.putIfAbsent(new Key(topology.nodeIds), new Entry(topology));
+        if (existing != null)
+            return existing.topology;
+        if (entries.size() > capacity)
+            evict();
+        return topology;
+    }
+
+    /**
+     * @return the number of lookups that found their subweb in the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups that compiled their subweb
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of subwebs in the cache
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove the least recently used entries, down to 7/8 of the capacity,
+     * unless another thread is already doing so.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true))
+            return;
+        try {
+            // The times of last use are copied first, since other threads keep updating them
+            List<Map.Entry<Key, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+            long[] lastUsed = new long[snapshot.size()];
+            for (int i = 0; i < lastUsed.length; i++)
+                lastUsed[i] = snapshot.get(i).getValue().lastUsed;
+            int excess = lastUsed.length - (capacity - capacity / 8);
+            if (excess <= 0)
+                return;
+            long[] sorted = lastUsed.clone();
+            Arrays.sort(sorted);
+            long newestEvicted = sorted[excess - 1];
+            for (int i = 0; i < lastUsed.length; i++)
+                if (lastUsed[i] <= newestEvicted)
+                    entries.remove(snapshot.get(i).getKey(), snapshot.get(i).getValue());
+        } finally {
+            evicting.set(false);
+        }
+    }
+}
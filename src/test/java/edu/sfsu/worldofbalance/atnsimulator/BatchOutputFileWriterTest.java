@@ -0,0 +1,98 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5SimpleReader;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BatchOutputFileWriterTest {
+
+    private static FoodWeb serengeti;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUp() {
+        Reader reader = new InputStreamReader(
+                BatchOutputFileWriterTest.class.getResourceAsStream("/foodwebs/serengeti.json"));
+        serengeti = FoodWeb.createFromJson(reader);
+    }
+
+    @Test
+    public void testSimulationsAreStackedBySimulationId() throws IOException {
+        File outputDirectory = tempFolder.newFolder();
+        String[] nodeConfigs = {
+                "2,[3],2000,20.0,1,K=3000,0,[55],1000,0.1,1,X=0.3,0",
+                "5,[3],4112.19,20.0,2,K=3134.36,R=1.0,0,[55],3975.08,0.213,1,X=0.54461,0,[71],216.842,4.99,1,"
+                        + "X=0.233554,0,[74],1438.01,23.8,1,X=0.642048,0,[80],128.628,41.5,1,X=0.501792,0"
+        };
+        int nodeConfigBiomassScale = 1000;
+
+        // Simulation 1 is written before simulation 0
+        BatchOutputFileWriter batchWriter = new BatchOutputFileWriter(outputDirectory);
+        SimulationResults[] results = new SimulationResults[nodeConfigs.length];
+        for (int id = nodeConfigs.length - 1; id >= 0; id--) {
+            SimulationParameters parameters = new SimulationParameters();
+            parameters.stepSize = 0.1;
+            parameters.timesteps = 100;
+            NodeConfigParser.Result parseResult = new NodeConfigParser(nodeConfigBiomassScale).parse(nodeConfigs[id]);
+            FoodWebTopology topology = new FoodWebTopology(serengeti, parseResult.nodeIds);
+            Simulation simulation = BatchSimulationTask.createSimulation(topology, parseResult, parameters);
+            simulation.run();
+            results[id] = simulation.getResults();
+
+            OutputFileData data = new OutputFileData();
+            data.simulationId = id;
+            data.simulationResults = results[id];
+            data.nodeConfig = nodeConfigs[id];
+            data.nodeConfigBiomassScale = nodeConfigBiomassScale;
+            data.originalNodeIds = parseResult.nodeIds;
+            data.originalSubweb = topology.subweb;
+            batchWriter.write(data);
+        }
+        batchWriter.close();
+
+        File outputFile = new File(outputDirectory, BatchOutputFileWriter.FILENAME);
+        assertTrue(outputFile.isFile());
+        IHDF5SimpleReader reader = HDF5Factory.openForReading(outputFile);
+
+        int[] timestepsSimulated = reader.readIntArray("/timesteps_simulated");
+        int[] stopEvents = reader.readIntArray("/stop_event");
+        String[] stopEventNames = reader.readStringArray("/stop_event_names");
+        long[] nodeOffsets = reader.readLongArray("/node_offset");
+        int[] nodeCounts = reader.readIntArray("/node_count");
+        double[] finalBiomass = reader.readDoubleArray("/final_biomass");
+        int[] extinctionTimesteps = reader.readIntArray("/extinction_timesteps");
+        assertEquals(2, timestepsSimulated.length);
+        assertEquals(2, nodeCounts[0]);
+        assertEquals(5, nodeCounts[1]);
+        assertEquals(0, nodeOffsets[1]);
+        assertEquals(5, nodeOffsets[0]);
+        assertEquals(7, finalBiomass.length);
+
+        for (int id = 0; id < nodeConfigs.length; id++) {
+            int from = (int) nodeOffsets[id];
+            int to = from + nodeCounts[id];
+            assertEquals(results[id].timestepsSimulated, timestepsSimulated[id]);
+            assertEquals(results[id].stopEvent.toString(), stopEventNames[stopEvents[id]]);
+            assertArrayEquals(results[id].finalBiomass, Arrays.copyOfRange(finalBiomass, from, to), 0);
+            assertArrayEquals(results[id].extinctionTimesteps, Arrays.copyOfRange(extinctionTimesteps, from, to));
+            assertEquals(nodeConfigs[id], reader.readString("/simulations/" + id + "/node_config"));
+            assertEquals(results[id].biomass.size(),
+                    reader.readIntArray("/simulations/" + id + "/biomass_timesteps").length);
+        }
+
+        reader.close();
+    }
+}
@@ -0,0 +1,221 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5SimpleReader;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BatchPipelineTest {
+
+    private static final String[] NODE_CONFIGS = {
+            "5,[3],4112.19,20.0,2,K=3134.36,R=1.0,0,[55],3975.08,0.213,1,X=0.54461,0,[71],216.842,4.99,1,"
+                    + "X=0.233554,0,[74],1438.01,23.8,1,X=0.642048,0,[80],128.628,41.5,1,X=0.501792,0",
+            "2,[3],2000,20.0,1,K=3000,0,[55],1000,0.1,1,X=0.3,0"
+    };
+
+    private static FoodWeb serengeti;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUp() {
+        Reader reader = new InputStreamReader(
+                BatchPipelineTest.class.getResourceAsStream("/foodwebs/serengeti.json"));
+        serengeti = FoodWeb.createFromJson(reader);
+    }
+
+    @Test
+    public void testEverySimulationIsWritten() throws InterruptedException {
+        // Checked once the pipeline has finished, since failures in the writer thread would not fail the test
+        List<OutputFileData> written = new ArrayList<>();
+        Map<Integer, BiomassSeries> streamed = new HashMap<>();
+        List<Integer> discarded = new ArrayList<>();
+        boolean[] closed = {false};
+        OutputWriter outputWriter = new OutputWriter() {
+            @Override
+            public BiomassSink openBiomassSink(int simulationId, int nodeCount) {
+                BiomassSeries series = new BiomassSeries(nodeCount);
+                streamed.put(simulationId, series);
+                return series;
+            }
+
+            @Override
+            public void write(OutputFileData data) {
+                written.add(data);
+            }
+
+            @Override
+            public void discard(int simulationId) {
+                discarded.add(simulationId);
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+
+        // More simulations than the queues hold, so that submit() has to wait
+        int simulations = 20;
+        BatchPipeline pipeline = new BatchPipeline(serengeti, 1000, 3, 2, 2, outputWriter);
+        pipeline.start(0);
+        for (int id = 0; id < simulations; id++)
+            pipeline.submit(id, createSimulationParameters(), NODE_CONFIGS[id % NODE_CONFIGS.length]);
+        pipeline.finish();
+
+        assertTrue(closed[0]);
+        assertTrue(discarded.isEmpty());
+        assertEquals(simulations, written.size());
+        boolean[] found = new boolean[simulations];
+        for (OutputFileData data : written) {
+            assertEquals(NODE_CONFIGS[data.simulationId % NODE_CONFIGS.length], data.nodeConfig);
+            assertNotNull(data.simulationResults.finalBiomass);
+            assertNull(data.simulationResults.biomass);
+            assertEquals(data.simulationResults.timestepsSimulated, streamed.get(data.simulationId).size());
+            found[data.simulationId] = true;
+        }
+        for (boolean f : found)
+            assertTrue(f);
+        assertTrue(pipeline.getMetrics().contains("simulate " + simulations + " done, 0 failed"));
+    }
+
+    @Test
+    public void testFailedSimulationIsSkipped() throws InterruptedException {
+        List<Integer> written = new ArrayList<>();
+        OutputWriter outputWriter = new OutputWriter() {
+            @Override
+            public BiomassSink openBiomassSink(int simulationId, int nodeCount) {
+                return new BiomassSeries(nodeCount);
+            }
+
+            @Override
+            public void write(OutputFileData data) {
+                written.add(data.simulationId);
+            }
+
+            @Override
+            public void discard(int simulationId) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        BatchPipeline pipeline = new BatchPipeline(serengeti, 1000, 2, 4, 4, outputWriter);
+        pipeline.start(0);
+        pipeline.submit(0, createSimulationParameters(), NODE_CONFIGS[0]);
+        pipeline.submit(1, createSimulationParameters(), "not a node config");
+        pipeline.submit(2, createSimulationParameters(), NODE_CONFIGS[1]);
+        pipeline.finish();
+
+        assertEquals(2, written.size());
+        assertFalse(written.contains(1));
+        assertTrue(pipeline.getMetrics().contains("parse 2 done, 1 failed"));
+    }
+
+    @Test
+    public void testBiomassIsStreamedInChunks() throws InterruptedException {
+        SimulationParameters parameters = createSimulationParameters();
+        parameters.timesteps = 3 * BatchPipeline.CHUNK_ROWS + 10;
+
+        // The same simulation, holding its biomass in memory
+        NodeConfigParser.Result parseResult = new NodeConfigParser(1000).parse(NODE_CONFIGS[0]);
+        Simulation reference = BatchSimulationTask.createSimulation(
+                new FoodWebTopology(serengeti, parseResult.nodeIds), parseResult, parameters);
+        reference.run();
+        BiomassSeries expected = reference.getResults().biomass;
+
+        BiomassSeries[] streamed = new BiomassSeries[1];
+        OutputWriter outputWriter = new OutputWriter() {
+            @Override
+            public BiomassSink openBiomassSink(int simulationId, int nodeCount) {
+                streamed[0] = new BiomassSeries(nodeCount);
+                return streamed[0];
+            }
+
+            @Override
+            public void write(OutputFileData data) {
+                assertNotNull(streamed[0]);
+            }
+
+            @Override
+            public void discard(int simulationId) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        // A queue that holds fewer chunks than the simulation records
+        BatchPipeline pipeline = new BatchPipeline(serengeti, 1000, 1, 1, 1, outputWriter);
+        pipeline.start(0);
+        pipeline.submit(0, parameters, NODE_CONFIGS[0]);
+        pipeline.finish();
+
+        assertTrue(pipeline.getMetrics().contains("write 1 done, 0 failed"));
+        assertEquals(expected.size(), streamed[0].size());
+        for (int row = 0; row < expected.size(); row++) {
+            assertEquals(expected.getTimestep(row), streamed[0].getTimestep(row));
+            assertArrayEquals(expected.getRow(row), streamed[0].getRow(row), 0);
+        }
+    }
+
+    @Test
+    public void testOutputFiles() throws IOException, InterruptedException {
+        File outputDirectory = tempFolder.newFolder();
+        BatchPipeline pipeline = new BatchPipeline(
+                serengeti, 1000, 2, 4, 4, new OutputFileWriter(outputDirectory));
+        pipeline.start(0);
+        pipeline.submit(123, createSimulationParameters(), NODE_CONFIGS[0]);
+        pipeline.finish();
+
+        File outputFile = new File(outputDirectory, "ATN_123.h5");
+        assertTrue(outputFile.isFile());
+        IHDF5SimpleReader reader = HDF5Factory.openForReading(outputFile);
+        assertEquals(reader.readInt("/timesteps_simulated"), reader.readFloatMatrix("/biomass").length);
+        reader.close();
+    }
+
+    @Test
+    public void testBatchOutputFile() throws IOException, InterruptedException {
+        File outputDirectory = tempFolder.newFolder();
+        BatchPipeline pipeline = new BatchPipeline(
+                serengeti, 1000, 2, 4, 4, new BatchOutputFileWriter(outputDirectory));
+        pipeline.start(0);
+        pipeline.submit(3, createSimulationParameters(), NODE_CONFIGS[1]);
+        pipeline.finish();
+
+        assertFalse(new File(outputDirectory, "ATN_3.h5").exists());
+        IHDF5SimpleReader reader = HDF5Factory.openForReading(
+                new File(outputDirectory, BatchOutputFileWriter.FILENAME));
+        assertArrayEquals(new int[] {0, 0, 0, 2}, reader.readIntArray("/node_count"));
+        assertArrayEquals(new int[] {3, 55}, reader.readIntArray("/node_ids"));
+        assertEquals(reader.readIntArray("/timesteps_simulated")[3],
+                reader.readFloatMatrix("/simulations/3/biomass").length);
+        reader.close();
+    }
+
+    private SimulationParameters createSimulationParameters() {
+        SimulationParameters parameters = new SimulationParameters();
+        parameters.stepSize = 0.1;
+        parameters.stopOnSteadyState = false;
+        parameters.timesteps = 100;
+        return parameters;
+    }
+}
@@ -0,0 +1,45 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BiomassSeriesTest {
+
+    @Test
+    public void testGrowsBeyondInitialCapacity() {
+        int timesteps = 3 * BiomassSeries.INITIAL_CAPACITY + 1;
+        BiomassSeries series = new BiomassSeries(2);
+        for (int t = 0; t < timesteps; t++)
+            series.record(t, new double[] {t, -t});
+        assertEquals(timesteps, series.size());
+        for (int t = 0; t < timesteps; t++) {
+            assertEquals(t, series.get(t, 0), 0);
+            assertArrayEquals(new double[] {t, -t}, series.getRow(t), 0);
+        }
+    }
+
+    @Test
+    public void testFinishTrimsToTimestepsSimulated() {
+        BiomassSeries series = new BiomassSeries(3);
+        for (int t = 0; t < 11; t++)
+            series.record(t, new double[] {1, 2, 3});
+        series.finish(10);
+        assertEquals(10, series.size());
+        assertEquals(10 * 3, series.getData().length);
+    }
+
+    @Test
+    public void testStoredAsFloat() {
+        BiomassSeries series = new BiomassSeries(1);
+        series.record(0, new double[] {0.1});
+        assertEquals((float) 0.1, series.get(0, 0), 0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testTimestepNotRecorded() {
+        BiomassSeries series = new BiomassSeries(1);
+        series.record(0, new double[] {1});
+        series.get(1, 0);
+    }
+}
@@ -0,0 +1,80 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CostAwareSchedulerTest {
+
+    @Test
+    public void testMostExpensiveFirst() throws InterruptedException {
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CostAwareScheduler scheduler = new CostAwareScheduler(1, 10);
+
+        // Keep the only worker busy while the other tasks are submitted
+        scheduler.submit(0, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        started.await();
+        int[] costs = {1, 5, 3, 5, 2};
+        for (int i = 0; i < costs.length; i++) {
+            int task = i;
+            scheduler.submit(costs[i], () -> order.add(task));
+        }
+        assertEquals(costs.length, scheduler.getWaitingCount());
+        release.countDown();
+        scheduler.shutdown();
+
+        // Decreasing cost, and submission order among equal costs
+        assertEquals(Arrays.asList(1, 3, 2, 4, 0), order);
+    }
+
+    @Test
+    public void testAllTasksRun() throws InterruptedException {
+        AtomicInteger count = new AtomicInteger();
+        CostAwareScheduler scheduler = new CostAwareScheduler(4, 3);
+        for (int i = 0; i < 100; i++)
+            scheduler.submit(i % 7, count::incrementAndGet);
+        scheduler.shutdown();
+        assertEquals(100, count.get());
+        assertEquals(0, scheduler.getWaitingCount());
+    }
+
+    @Test
+    public void testFailedTaskKeepsWorker() throws InterruptedException {
+        AtomicInteger count = new AtomicInteger();
+        CostAwareScheduler scheduler = new CostAwareScheduler(1, 10);
+        scheduler.submit(1, () -> {
+            throw new IllegalStateException("failed");
+        });
+        scheduler.submit(0, count::incrementAndGet);
+        scheduler.shutdown();
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void testErrorEndsOnlyItsWorker() throws InterruptedException {
+        AtomicInteger count = new AtomicInteger();
+        CostAwareScheduler scheduler = new CostAwareScheduler(2, 10);
+        scheduler.submit(1, () -> {
+            throw new AssertionError("failed");
+        });
+        scheduler.submit(0, count::incrementAndGet);
+        scheduler.shutdown();
+        assertEquals(1, count.get());
+    }
+}
@@ -0,0 +1,108 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DormandPrinceIntegratorTest {
+
+    /**
+     * Harmonic oscillator: y0' = y1, y1' = -y0, with solution (sin t, cos t) from (0, 1).
+     */
+    private static class Oscillator implements FirstOrderDifferentialEquations {
+        @Override
+        public int getDimension() {
+            return 2;
+        }
+
+        @Override
+        public void computeDerivatives(double t, double[] y, double[] yDot) {
+            yDot[0] = y[1];
+            yDot[1] = -y[0];
+        }
+    }
+
+    @Test
+    public void testAccuracy() {
+        DormandPrinceIntegrator integrator = new DormandPrinceIntegrator(1e-8, 100, 1e-12, 1e-10);
+        double[] y = new double[2];
+        integrator.integrate(new Oscillator(), 0, new double[] {0, 1}, 10, y);
+        assertArrayEquals(new double[] {Math.sin(10), Math.cos(10)}, y, 1e-8);
+    }
+
+    @Test
+    public void testMatchesCommonsMath() {
+        // Same method, so the same accuracy at the same tolerance
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addConsumerNode(2);
+        web.addLink(0, 1);
+        web.addLink(1, 2);
+        ModelEquations equations = new ModelEquations(web, new ModelParameters(web));
+        double[] y0 = {1, 0.5, 0.1};
+        double[] y = new double[3];
+        double[] yCommons = new double[3];
+        new DormandPrinceIntegrator(1e-8, 100, 1e-15, 1e-10).integrate(equations, 0, y0, 50, y);
+        new DormandPrince54Integrator(1e-8, 100, 1e-15, 1e-10).integrate(equations, 0, y0, 50, yCommons);
+        assertArrayEquals(yCommons, y, 1e-7);
+    }
+
+    @Test
+    public void testDenseOutput() {
+        DormandPrinceIntegrator integrator = new DormandPrinceIntegrator(1e-8, 100, 1e-12, 1e-10);
+        final double[] maxError = {0, 0};
+        integrator.addStepHandler(new StepHandler() {
+            @Override
+            public void init(double t0, double[] y0, double t) {
+            }
+
+            @Override
+            public void handleStep(StepInterpolator interpolator, boolean isLast) {
+                double t0 = interpolator.getPreviousTime();
+                double t1 = interpolator.getCurrentTime();
+                for (int i = 0; i <= 8; i++) {
+                    double t = t0 + (t1 - t0) * i / 8;
+                    interpolator.setInterpolatedTime(t);
+                    double[] state = interpolator.getInterpolatedState();
+                    double[] derivatives = interpolator.getInterpolatedDerivatives();
+                    maxError[0] = Math.max(maxError[0], Math.abs(state[0] - Math.sin(t)));
+                    maxError[1] = Math.max(maxError[1], Math.abs(derivatives[0] - Math.cos(t)));
+                }
+            }
+        });
+        integrator.integrate(new Oscillator(), 0, new double[] {0, 1}, 10, new double[2]);
+        assertEquals(0, maxError[0], 1e-8);
+        assertEquals(0, maxError[1], 1e-7);
+    }
+
+    @Test
+    public void testRepeatedIntegration() {
+        // Integrating in two chunks, reusing the buffers, matches integrating in one
+        DormandPrinceIntegrator integrator = new DormandPrinceIntegrator(1e-8, 100, 1e-12, 1e-10);
+        double[] y = new double[2];
+        integrator.integrate(new Oscillator(), 0, new double[] {0, 1}, 5, y);
+        integrator.integrate(new Oscillator(), 5, y, 10, y);
+        assertArrayEquals(new double[] {Math.sin(10), Math.cos(10)}, y, 1e-8);
+
+        // The buffers are reallocated for a different dimension
+        FirstOrderDifferentialEquations decay = new FirstOrderDifferentialEquations() {
+            @Override
+            public int getDimension() {
+                return 1;
+            }
+
+            @Override
+            public void computeDerivatives(double t, double[] y, double[] yDot) {
+                yDot[0] = -y[0];
+            }
+        };
+        double[] z = new double[1];
+        integrator.integrate(decay, 0, new double[] {1}, 1, z);
+        assertEquals(Math.exp(-1), z[0], 1e-8);
+    }
+}
@@ -0,0 +1,64 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EquilibriumSolverTest {
+
+    @Test
+    public void testSingleProducerAtCarryingCapacity() {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        ModelParameters parameters = new ModelParameters(web);
+        EquilibriumSolver solver = new EquilibriumSolver(new ModelEquations(web, parameters));
+
+        double[] equilibrium = solver.solve(new double[] {0.3});
+        assertNotNull(equilibrium);
+        assertEquals(parameters.carryingCapacity[0], equilibrium[0], 1e-9);
+        assertTrue(solver.isStable(equilibrium));
+    }
+
+    @Test
+    public void testStableProducerConsumerEquilibrium() {
+        ModelEquations equations = createProducerConsumerEquations(0.2);
+        EquilibriumSolver solver = new EquilibriumSolver(equations);
+
+        double[] equilibrium = solver.solve(new double[] {0.2, 0.2});
+        assertNotNull(equilibrium);
+        double[] BDot = new double[2];
+        equations.computeDerivatives(0, equilibrium, BDot);
+        for (int i = 0; i < 2; i++)
+            assertEquals(0, BDot[i] / equilibrium[i], EquilibriumSolver.RELATIVE_DERIVATIVE_TOLERANCE);
+        assertTrue(solver.isStable(equilibrium));
+    }
+
+    @Test
+    public void testUnstableProducerConsumerEquilibrium() {
+        // With a type II functional response, the equilibrium is unstable (paradox of enrichment)
+        ModelEquations equations = createProducerConsumerEquations(0);
+        EquilibriumSolver solver = new EquilibriumSolver(equations);
+
+        double[] equilibrium = solver.solve(new double[] {0.2, 0.2});
+        assertNotNull(equilibrium);
+        assertFalse(solver.isStable(equilibrium));
+    }
+
+    @Test
+    public void testNoEquilibriumWithoutFood() {
+        FoodWeb web = new FoodWeb();
+        web.addConsumerNode(0);
+        EquilibriumSolver solver = new EquilibriumSolver(new ModelEquations(web, new ModelParameters(web)));
+        assertNull(solver.solve(new double[] {0.3}));
+    }
+
+    private ModelEquations createProducerConsumerEquations(double functionalResponseControl) {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addLink(0, 1);
+        ModelParameters parameters = new ModelParameters(web);
+        parameters.functionalResponseControl[1][0] = functionalResponseControl;
+        return new ModelEquations(web, parameters);
+    }
+}
@@ -272,6 +272,76 @@ public class FoodWebTest {
         assertEquals(NodeAttributes.NodeType.CONSUMER, serengeti.getNodeAttributes(95).nodeType);
     }
 
+    @Test
+    public void testAddDuplicateLink() {
+        initializeSmallFoodWeb(web);
+        web.addLink(1, 2);
+        assertEquals(3, web.linkCount());
+    }
+
+    @Test
+    public void testAddNodeKeepsLinks() {
+        web.addConsumerNode(5);
+        web.addProducerNode(3);
+        web.addLink(3, 5);
+        web.addConsumerNode(4);
+        web.addLink(4, 5);
+        web.addProducerNode(1);
+        assertTrue(web.containsLink(3, 5));
+        assertTrue(web.containsLink(4, 5));
+        assertFalse(web.containsLink(1, 5));
+        assertEquals(NodeAttributes.NodeType.PRODUCER, web.getNodeType(3));
+        assertEquals(NodeAttributes.NodeType.CONSUMER, web.getNodeType(4));
+        assertArrayEquals(new int[] {1, 3, 4, 5}, web.nodeIds());
+    }
+
+    @Test
+    public void testPreyAndPredatorArrays() {
+        web.addProducerNode(1);
+        web.addProducerNode(2);
+        web.addConsumerNode(3);
+        web.addConsumerNode(4);
+        web.addLink(2, 4);
+        web.addLink(1, 4);
+        web.addLink(3, 4);
+        web.addLink(1, 3);
+        assertArrayEquals(new int[] {1, 2, 3}, web.preyOf(4));
+        assertArrayEquals(new int[] {3, 4}, web.predatorsOf(1));
+        assertArrayEquals(new int[0], web.preyOf(1));
+    }
+
+    @Test(expected = FoodWebNodeAbsentException.class)
+    public void testSubwebGivenNonExistentNodes() {
+        initializeSmallFoodWeb(web);
+        web.subweb(new int[] {1, 4});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNormalizedCopyGivenDuplicateNodes() {
+        web.addProducerNode(1);
+        web.addProducerNode(2);
+        web.normalizedCopy(new int[] {1, 1});
+    }
+
+    @Test
+    public void testNormalizedCopyReordersNodes() {
+        initializeSmallFoodWeb(web);
+        FoodWeb normalizedWeb = web.normalizedCopy(new int[] {3, 1, 2});
+        assertEquals(NodeAttributes.NodeType.PRODUCER, normalizedWeb.getNodeType(1));
+        assertArrayEquals(new int[] {1, 2}, normalizedWeb.preyOf(0));
+        assertArrayEquals(new int[] {1}, normalizedWeb.preyOf(2));
+        assertEquals(3, normalizedWeb.linkCount());
+    }
+
+    @Test
+    public void testSerengetiToJson() {
+        Reader reader = new InputStreamReader(getClass().getResourceAsStream("/foodwebs/serengeti.json"));
+        FoodWeb serengeti = FoodWeb.createFromJson(reader);
+        FoodWeb webFromJson = FoodWeb.createFromJson(new StringReader(serengeti.toJson()));
+        assertEquals(serengeti, webFromJson);
+        assertEquals(serengeti.hashCode(), webFromJson.hashCode());
+    }
+
     // Corresponds to small-food-web.json test file
     private void initializeSmallFoodWeb(FoodWeb web) {
         web.addProducerNode(1);
@@ -0,0 +1,56 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IntegratorCalibratorTest {
+
+    private static FoodWeb serengeti;
+
+    @BeforeClass
+    public static void setUp() {
+        Reader reader = new InputStreamReader(
+                IntegratorCalibratorTest.class.getResourceAsStream("/foodwebs/serengeti.json"));
+        serengeti = FoodWeb.createFromJson(reader);
+    }
+
+    @Test
+    public void testChoosesAgreeingFastestIntegrator() {
+        List<String> nodeConfigs = Arrays.asList(
+                "5,[3],4112.19,20.0,2,K=3134.36,R=1.0,0,[55],3975.08,0.213,1,X=0.54461,0,[71],216.842,4.99,1,X=0.233554,0,[74],1438.01,23.8,1,X=0.642048,0,[80],128.628,41.5,1,X=0.501792,0",
+                "2,[3],2000,20.0,1,K=3000,0,[55],1000,0.1,1,X=0.3,0");
+        SimulationParameters parameters = new SimulationParameters();
+        parameters.timesteps = 500;
+        parameters.stopOnSteadyState = true;
+        IntegratorCalibrator calibrator = new IntegratorCalibrator(serengeti, parameters, 1000, 1e-4);
+        IntegratorCalibrator.Result result = calibrator.calibrate(nodeConfigs);
+
+        int chosen = Arrays.asList(result.candidates).indexOf(result.chosen);
+        assertTrue(result.agrees[chosen]);
+        assertTrue(result.maxError[chosen] <= 1e-4);
+        for (int c = 0; c < result.candidates.length; c++)
+            if (result.agrees[c])
+                assertTrue(result.elapsedNanoseconds[chosen] <= result.elapsedNanoseconds[c]);
+    }
+
+    @Test
+    public void testFinalBiomassError() {
+        SimulationParameters sp = new SimulationParameters();
+        sp.recordBiomass = false;
+        ModelParameters mp = new ModelParameters(3);
+        SimulationResults reference = new SimulationResults(sp, mp);
+        SimulationResults results = new SimulationResults(sp, mp);
+        reference.finalBiomass = new double[] {1, 0, 1e-9};
+        results.finalBiomass = new double[] {1.001, 1e-12, 2e-9};
+
+        // Relative error for the first node, absolute error relative to the floor for the others
+        assertEquals(1e-3, IntegratorCalibrator.finalBiomassError(reference, results), 1e-12);
+    }
+}
@@ -0,0 +1,76 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LinkParametersTest {
+
+    private FoodWeb web;
+    private ModelParameters parameters;
+
+    @Before
+    public void setUp() {
+        web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addProducerNode(1);
+        web.addConsumerNode(2);
+        web.addConsumerNode(3);
+        web.addLink(0, 2);
+        web.addLink(1, 2);
+        web.addLink(1, 3);
+        web.addLink(2, 3);
+        web.addLink(3, 3);
+        parameters = new ModelParameters(web);
+        for (int i = 0; i < 4; i++)
+            for (int j = 0; j < 4; j++)
+                parameters.maximumIngestionRate[i][j] = 10 * i + j;
+    }
+
+    @Test
+    public void testLinksGroupedByPredator() {
+        LinkParameters links = new LinkParameters(web, parameters);
+        assertEquals(5, links.linkCount);
+        assertArrayEquals(new int[] {0, 0, 0, 2, 5}, links.preyOffsets);
+        assertArrayEquals(new int[] {0, 1, 1, 2, 3}, links.prey);
+        assertArrayEquals(new double[] {20, 21, 31, 32, 33}, links.maximumIngestionRate, 1e-20);
+    }
+
+    @Test
+    public void testLinksGroupedByPrey() {
+        LinkParameters links = new LinkParameters(web, parameters);
+        assertArrayEquals(new int[] {0, 1, 3, 4, 5}, links.predatorOffsets);
+        for (int j = 0; j < 4; j++) {
+            for (int k = links.predatorOffsets[j]; k < links.predatorOffsets[j + 1]; k++) {
+                int l = links.predatorLinks[k];
+                assertEquals(j, links.prey[l]);
+                assertEquals(links.predators[k], predatorOfLink(links, l));
+            }
+        }
+    }
+
+    @Test
+    public void testToDense() {
+        LinkParameters links = new LinkParameters(web, parameters);
+        double[][] dense = links.toDense(links.maximumIngestionRate);
+        for (int i = 0; i < 4; i++)
+            for (int j = 0; j < 4; j++)
+                assertEquals(web.containsLink(j, i) ? parameters.maximumIngestionRate[i][j] : 0, dense[i][j], 1e-20);
+    }
+
+    @Test(expected = FoodWebNotNormalizedException.class)
+    public void testFoodWebNotNormalized() {
+        FoodWeb unnormalized = new FoodWeb();
+        unnormalized.addProducerNode(1);
+        new LinkParameters(unnormalized, new ModelParameters(1));
+    }
+
+    private int predatorOfLink(LinkParameters links, int l) {
+        for (int i = 0; i < links.nodeCount; i++)
+            if (l >= links.preyOffsets[i] && l < links.preyOffsets[i + 1])
+                return i;
+        return -1;
+    }
+}
@@ -3,7 +3,10 @@ package edu.sfsu.worldofbalance.atnsimulator;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Random;
+
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 // TODO: More comprehensive tests
@@ -62,6 +65,286 @@ public class ModelEquationsTest {
         assertTrue(BDot[0] > 0);
     }
 
+    @Test
+    public void testMatchesReferenceImplementation() {
+        Random random = new Random(1);
+        makeRandomFoodWeb(random, 30, 8, 0.2);
+        ModelParameters parameters = makeRandomParameters(random);
+        assertMatchesReferenceImplementation(random, parameters);
+    }
+
+    @Test
+    public void testMatchesReferenceImplementationSystemCarryingCapacity() {
+        Random random = new Random(2);
+        makeRandomFoodWeb(random, 30, 8, 0.2);
+        ModelParameters parameters = makeRandomParameters(random);
+        parameters.useSystemCarryingCapacity = true;
+        parameters.calculateSystemCarryingCapacity();
+        assertMatchesReferenceImplementation(random, parameters);
+    }
+
+    @Test
+    public void testSetParametersRecomputesCoefficients() {
+        Random random = new Random(3);
+        makeRandomFoodWeb(random, 10, 3, 0.3);
+        ModelParameters parameters = makeRandomParameters(random);
+        ModelEquations equations = new ModelEquations(web, parameters);
+        for (int i = 0; i < web.nodeCount(); i++) {
+            parameters.metabolicRate[i] *= 2;
+            parameters.assimilationEfficiency[i][0] /= 2;
+        }
+        equations.setParameters(parameters);
+        assertMatchesReferenceImplementation(random, parameters);
+    }
+
+    @Test
+    public void testRepeatedStateIsNotRecomputed() {
+        Random random = new Random(4);
+        makeRandomFoodWeb(random, 10, 3, 0.3);
+        ModelEquations equations = new ModelEquations(web, makeRandomParameters(random));
+        double[] Bt = new double[web.nodeCount()];
+        for (int i = 0; i < Bt.length; i++)
+            Bt[i] = 0.1 + random.nextDouble();
+        double[] BDot = new double[web.nodeCount()];
+        double[] BDotAgain = new double[web.nodeCount()];
+
+        equations.computeDerivatives(1, Bt, BDot);
+        equations.computeDerivatives(1, Bt.clone(), BDotAgain);
+        assertEquals(1, equations.getEvaluations());
+        assertArrayEquals(BDot, BDotAgain, 0);
+
+        // A different time or state is computed
+        equations.computeDerivatives(2, Bt, BDotAgain);
+        assertEquals(2, equations.getEvaluations());
+        Bt[0] *= 2;
+        equations.computeDerivatives(2, Bt, BDotAgain);
+        assertEquals(3, equations.getEvaluations());
+    }
+
+    @Test
+    public void testSetParametersInvalidatesStoredDerivatives() {
+        Random random = new Random(5);
+        makeRandomFoodWeb(random, 10, 3, 0.3);
+        ModelParameters parameters = makeRandomParameters(random);
+        ModelEquations equations = new ModelEquations(web, parameters);
+        double[] Bt = new double[web.nodeCount()];
+        for (int i = 0; i < Bt.length; i++)
+            Bt[i] = 0.1 + random.nextDouble();
+        double[] BDot = new double[web.nodeCount()];
+        equations.computeDerivatives(0, Bt, BDot);
+
+        for (int i = 0; i < web.nodeCount(); i++)
+            parameters.metabolicRate[i] *= 2;
+        equations.setParameters(parameters);
+        double[] BDotAfter = new double[web.nodeCount()];
+        equations.computeDerivatives(0, Bt, BDotAfter);
+        assertEquals(2, equations.getEvaluations());
+        assertArrayEquals(referenceDerivatives(parameters, Bt), BDotAfter, 1e-12);
+    }
+
+    @Test
+    public void testSubsystemMatchesSystemWithExtinctNodes() {
+        Random random = new Random(6);
+        makeRandomFoodWeb(random, 20, 5, 0.2);
+        ModelParameters parameters = makeRandomParameters(random);
+        parameters.useSystemCarryingCapacity = true;
+        parameters.calculateSystemCarryingCapacity();
+        ModelEquations equations = new ModelEquations(web, parameters);
+
+        // Every third node is extinct
+        int[] nodeIds = new int[web.nodeCount() - (web.nodeCount() + 2) / 3];
+        double[] Bt = new double[web.nodeCount()];
+        for (int i = 0, n = 0; i < Bt.length; i++) {
+            if (i % 3 == 0) {
+                Bt[i] = ModelEquations.EXTINCT / 2;
+            } else {
+                Bt[i] = 0.1 + random.nextDouble();
+                nodeIds[n++] = i;
+            }
+        }
+        double[] BDot = new double[Bt.length];
+        equations.computeDerivatives(0, Bt, BDot);
+
+        ModelEquations subsystem = equations.subsystem(nodeIds);
+        assertEquals(nodeIds.length, subsystem.getDimension());
+        double[] subBt = new double[nodeIds.length];
+        for (int i = 0; i < nodeIds.length; i++)
+            subBt[i] = Bt[nodeIds[i]];
+        double[] subBDot = new double[nodeIds.length];
+        subsystem.computeDerivatives(0, subBt, subBDot);
+        for (int i = 0; i < nodeIds.length; i++)
+            assertEquals(BDot[nodeIds[i]], subBDot[i], 1e-12);
+    }
+
+    @Test
+    public void testCurrentDerivativesAreACopy() {
+        web.addProducerNode(0);
+        ModelEquations equations = new ModelEquations(web, new ModelParameters(web));
+        double[] BDot = new double[1];
+        equations.computeDerivatives(0, new double[] {0.5}, BDot);
+        double expected = BDot[0];
+        BDot[0] = 42;
+        assertEquals(expected, equations.getCurrentDerivatives()[0], 0);
+    }
+
+    @Test
+    public void testJacobianMatchesFiniteDifferences() {
+        Random random = new Random(4);
+        makeRandomFoodWeb(random, 20, 5, 0.2);
+        ModelParameters parameters = makeRandomParameters(random);
+        assertJacobianMatchesFiniteDifferences(random, parameters);
+    }
+
+    @Test
+    public void testJacobianMatchesFiniteDifferencesSystemCarryingCapacity() {
+        Random random = new Random(5);
+        makeRandomFoodWeb(random, 20, 5, 0.2);
+        ModelParameters parameters = makeRandomParameters(random);
+        parameters.useSystemCarryingCapacity = true;
+        parameters.calculateSystemCarryingCapacity();
+        assertJacobianMatchesFiniteDifferences(random, parameters);
+    }
+
+    @Test
+    public void testJacobianExtinctNodes() {
+        Random random = new Random(6);
+        makeRandomFoodWeb(random, 10, 3, 0.3);
+        ModelEquations equations = new ModelEquations(web, makeRandomParameters(random));
+        double[] Bt = new double[10];
+        for (int i = 0; i < 10; i++)
+            Bt[i] = i % 3 == 0 ? ModelEquations.EXTINCT / 2 : 0.5;
+        double[][] jacobian = new double[10][10];
+        equations.computeMainStateJacobian(0, Bt, new double[10], jacobian);
+        for (int i = 0; i < 10; i++)
+            for (int m = 0; m < 10; m += 3)
+                assertEquals(0, jacobian[i][m], 1e-20);
+    }
+
+    private void assertJacobianMatchesFiniteDifferences(Random random, ModelParameters parameters) {
+        ModelEquations equations = new ModelEquations(web, parameters);
+        int nodeCount = web.nodeCount();
+        double[] Bt = new double[nodeCount];
+        for (int i = 0; i < nodeCount; i++)
+            Bt[i] = 0.1 + random.nextDouble();
+        double[][] jacobian = new double[nodeCount][nodeCount];
+        equations.computeMainStateJacobian(0, Bt, new double[nodeCount], jacobian);
+
+        // Central differences
+        double h = 1e-6;
+        double[] BDotPlus = new double[nodeCount];
+        double[] BDotMinus = new double[nodeCount];
+        for (int m = 0; m < nodeCount; m++) {
+            double[] B = Bt.clone();
+            B[m] = Bt[m] + h;
+            equations.computeDerivatives(0, B, BDotPlus);
+            B[m] = Bt[m] - h;
+            equations.computeDerivatives(0, B, BDotMinus);
+            for (int i = 0; i < nodeCount; i++) {
+                double expected = (BDotPlus[i] - BDotMinus[i]) / (2 * h);
+                assertEquals("dBDot[" + i + "]/dB[" + m + "]",
+                        expected, jacobian[i][m], 1e-6 * Math.max(1, Math.abs(expected)));
+            }
+        }
+    }
+
+    private void assertMatchesReferenceImplementation(Random random, ModelParameters parameters) {
+        ModelEquations equations = new ModelEquations(web, parameters);
+        int nodeCount = web.nodeCount();
+        double[] BDot = new double[nodeCount];
+        for (int trial = 0; trial < 10; trial++) {
+            double[] Bt = new double[nodeCount];
+            for (int i = 0; i < nodeCount; i++)
+                Bt[i] = random.nextDouble() < 0.1 ? ModelEquations.EXTINCT / 2 : random.nextDouble();
+            equations.computeDerivatives(0, Bt, BDot);
+            double[] expectedBDot = referenceDerivatives(parameters, Bt);
+            for (int i = 0; i < nodeCount; i++)
+                assertEquals(expectedBDot[i], BDot[i], 1e-12 * Math.max(1, Math.abs(expectedBDot[i])));
+        }
+    }
+
+    /**
+     * Straightforward implementation of the model equations, for comparison with the optimized ModelEquations
+     */
+    private double[] referenceDerivatives(ModelParameters p, double[] Bt) {
+        int nodeCount = Bt.length;
+        double[] B = new double[nodeCount];
+        for (int i = 0; i < nodeCount; i++)
+            B[i] = Bt[i] < ModelEquations.EXTINCT ? 0 : Bt[i];
+
+        double[][] F = new double[nodeCount][nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            for (int j : web.getPreyOf(i)) {
+                double denominator = Math.pow(p.halfSaturationDensity[i][j], 1 + p.functionalResponseControl[i][j]);
+                for (int m : web.getPreyOf(i))
+                    denominator += p.relativeHalfSaturationDensity[i][m]
+                            * Math.pow(B[m], 1 + p.functionalResponseControl[i][m]);
+                F[i][j] = Math.pow(B[j], 1 + p.functionalResponseControl[i][j]) / denominator;
+            }
+        }
+
+        double producerBiomass = 0;
+        for (int i = 0; i < nodeCount; i++)
+            if (web.getNodeAttributes(i).nodeType == NodeAttributes.NodeType.PRODUCER)
+                producerBiomass += B[i];
+
+        double[] BDot = new double[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            if (web.getNodeAttributes(i).nodeType == NodeAttributes.NodeType.PRODUCER) {
+                double G = p.useSystemCarryingCapacity
+                        ? 1 - producerBiomass / p.systemCarryingCapacity
+                        : 1 - B[i] / p.carryingCapacity[i];
+                BDot[i] = p.growthRate[i] * B[i] * G;
+            } else {
+                BDot[i] = -p.metabolicRate[i] * B[i];
+                for (int j : web.getPreyOf(i))
+                    BDot[i] += p.metabolicRate[i] * p.maximumIngestionRate[i][j]
+                            * p.relativeHalfSaturationDensity[i][j] * F[i][j] * B[i];
+            }
+            for (int j : web.getPredatorsOf(i))
+                BDot[i] -= p.metabolicRate[j] * p.maximumIngestionRate[j][i]
+                        * p.relativeHalfSaturationDensity[j][i] * F[j][i] * B[j]
+                        / p.assimilationEfficiency[j][i];
+        }
+        return BDot;
+    }
+
+    /**
+     * Populate `web` with producers 0..producerCount-1 and consumers producerCount..nodeCount-1,
+     * linking each consumer (possibly to itself) with the given probability.
+     */
+    private void makeRandomFoodWeb(Random random, int nodeCount, int producerCount, double linkProbability) {
+        for (int i = 0; i < nodeCount; i++) {
+            if (i < producerCount)
+                web.addProducerNode(i);
+            else
+                web.addConsumerNode(i);
+        }
+        for (int predator = producerCount; predator < nodeCount; predator++) {
+            web.addLink(random.nextInt(predator), predator);  // Make sure every consumer has prey
+            for (int prey = 0; prey < nodeCount; prey++)
+                if (random.nextDouble() < linkProbability)
+                    web.addLink(prey, predator);
+        }
+    }
+
+    private ModelParameters makeRandomParameters(Random random) {
+        ModelParameters parameters = new ModelParameters(web);
+        int nodeCount = web.nodeCount();
+        for (int i = 0; i < nodeCount; i++) {
+            parameters.metabolicRate[i] = 0.1 + random.nextDouble();
+            parameters.growthRate[i] = 0.5 + random.nextDouble();
+            parameters.carryingCapacity[i] = 0.5 + random.nextDouble();
+            for (int j = 0; j < nodeCount; j++) {
+                parameters.maximumIngestionRate[i][j] = 1 + 10 * random.nextDouble();
+                parameters.functionalResponseControl[i][j] = random.nextDouble();
+                parameters.relativeHalfSaturationDensity[i][j] = 0.5 + random.nextDouble();
+                parameters.halfSaturationDensity[i][j] = 0.1 + random.nextDouble();
+                parameters.assimilationEfficiency[i][j] = 0.3 + 0.7 * random.nextDouble();
+            }
+        }
+        return parameters;
+    }
+
     private void setDenominatorParametersToOne(ModelParameters parameters) {
         int nodeCount = parameters.metabolicRate.length;
         for (int i = 0; i < nodeCount; i++) {
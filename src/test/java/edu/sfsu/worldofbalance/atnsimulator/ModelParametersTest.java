@@ -57,4 +57,23 @@ public class ModelParametersTest {
         for (double[] row : parameters.assimilationEfficiency)
             assertArrayEquals(new double[] {p, a}, row, 1e-20);
     }
+
+    @Test
+    public void testSubset() {
+        ModelParameters parameters = new ModelParameters(3);
+        parameters.useSystemCarryingCapacity = true;
+        parameters.systemCarryingCapacity = 5;
+        parameters.metabolicRate = new double[] {0.1, 0.2, 0.3};
+        parameters.maximumIngestionRate[1][2] = 7;
+        parameters.maximumIngestionRate[2][1] = 8;
+
+        ModelParameters subset = parameters.subset(new int[] {1, 2});
+
+        assertEquals(true, subset.useSystemCarryingCapacity);
+        assertEquals(5, subset.systemCarryingCapacity, 1e-20);
+        assertArrayEquals(new double[] {0.2, 0.3}, subset.metabolicRate, 1e-20);
+        double v = ModelParameters.Defaults.maximumIngestionRate;
+        assertArrayEquals(new double[] {v, 7}, subset.maximumIngestionRate[0], 1e-20);
+        assertArrayEquals(new double[] {8, v}, subset.maximumIngestionRate[1], 1e-20);
+    }
 }
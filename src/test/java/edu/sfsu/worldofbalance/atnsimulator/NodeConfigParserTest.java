@@ -2,7 +2,11 @@ package edu.sfsu.worldofbalance.atnsimulator;
 
 import org.junit.Test;
 
+import java.util.Random;
+
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 
 public class NodeConfigParserTest {
 
@@ -62,9 +66,96 @@ public class NodeConfigParserTest {
         String nodeConfig = "3,[3],33.3,0.3,2,K=333.3,R=0.3,2,[55],55.5,0.5,1,X=0.55,0,[44],44.4,0.4,1,X=0.44,0";
         new NodeConfigParser().parse(nodeConfig);
     }
+
     @Test(expected = NodeConfigSyntaxError.class)
     public void testBadNumberFormat() {
         String nodeConfig = "3,[3],_3.3,0.3,2,K=333.3,R=0.3,0,[55],55.5,0.5,1,X=0.55,0,[44],44.4,0.4,1,X=0.44,0";
         new NodeConfigParser().parse(nodeConfig);
     }
+
+    @Test
+    public void testScannerAcceptsNumberForms() {
+        String nodeConfig = "2, [3], 1e3, 0.3, 3, K=+12.5E-1, R=.5, X=123456789012345678, 0,"
+                + "[55],5.,0.5,1,X=-0.0,0";
+        NodeConfigParser parser = new NodeConfigParser(1000);
+        assertNotNull(parser.scan(nodeConfig));
+        assertSameOutcome(parser, nodeConfig);
+    }
+
+    /**
+     * Generate well-formed node configs, which the scanner must accept, and mutate half of them at random,
+     * and check that parse() gives the same result or error as the original parser.
+     */
+    @Test
+    public void testScannerMatchesParser() {
+        String[] numbers = {"4112.19", "20.0", "0.213", "1", "0", "-0.0", "1e3", "1.5E-7", ".5", "5.", "+2.25",
+                "123456789012345678", "3134.36", "1e-30", "7e22", "9007199254740993", "0.000001"};
+        char[] mutations = ",[] =XRKZ0129.-+eE\tx\n".toCharArray();
+        Random random = new Random(1);
+        NodeConfigParser parser = new NodeConfigParser(1000);
+
+        for (int trial = 0; trial < 20000; trial++) {
+            int nodeCount = 1 + random.nextInt(6);
+            StringBuilder builder = new StringBuilder().append(nodeCount);
+            for (int i = 0; i < nodeCount; i++) {
+                builder.append(",[").append(random.nextInt(100)).append("],")
+                        .append(numbers[random.nextInt(numbers.length)]).append(',')
+                        .append(numbers[random.nextInt(numbers.length)]);
+                int parameterCount = random.nextInt(3);
+                builder.append(',').append(parameterCount);
+                for (int p = 0; p < parameterCount; p++) {
+                    builder.append(',').append("XRK".charAt(random.nextInt(3))).append('=')
+                            .append(numbers[random.nextInt(numbers.length)]);
+                }
+                builder.append(",0");
+            }
+
+            if (trial % 2 == 0) {
+                assertNotNull(builder.toString(), parser.scan(builder.toString()));
+            } else {
+                for (int m = random.nextInt(3); m >= 0; m--) {
+                    int position = random.nextInt(builder.length());
+                    char c = mutations[random.nextInt(mutations.length)];
+                    switch (random.nextInt(3)) {
+                        case 0:
+                            builder.deleteCharAt(position);
+                            break;
+                        case 1:
+                            builder.insert(position, c);
+                            break;
+                        default:
+                            builder.setCharAt(position, c);
+                    }
+                }
+            }
+            assertSameOutcome(parser, builder.toString());
+        }
+    }
+
+    private void assertSameOutcome(NodeConfigParser parser, String nodeConfig) {
+        NodeConfigParser.Result expected = null;
+        NodeConfigParser.Result result = null;
+        String expectedError = null;
+        String error = null;
+        try {
+            expected = parser.parseWithPatterns(nodeConfig);
+        } catch (RuntimeException e) {
+            expectedError = e.getClass() + ": " + e.getMessage();
+        }
+        try {
+            result = parser.parse(nodeConfig);
+        } catch (RuntimeException e) {
+            error = e.getClass() + ": " + e.getMessage();
+        }
+
+        assertEquals(nodeConfig, expectedError, error);
+        if (expected != null) {
+            assertArrayEquals(nodeConfig, expected.nodeIds, result.nodeIds);
+            assertArrayEquals(nodeConfig, expected.initialBiomass, result.initialBiomass, 0);
+            assertArrayEquals(nodeConfig,
+                    expected.parameters.carryingCapacity, result.parameters.carryingCapacity, 0);
+            assertArrayEquals(nodeConfig, expected.parameters.growthRate, result.parameters.growthRate, 0);
+            assertArrayEquals(nodeConfig, expected.parameters.metabolicRate, result.parameters.metabolicRate, 0);
+        }
+    }
 }
@@ -10,6 +10,7 @@ import java.io.File;
 import java.io.IOException;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertArrayEquals;
 
@@ -38,15 +39,24 @@ public class OutputFileWriterTest {
         SimulationResults results = new SimulationResults(simulationParameters, modelParameters);
         results.simulationParameters = simulationParameters;
         results.modelParameters = modelParameters;
+        double[][] biomass = new double[timesteps][nodeCount];
+        results.biomass = new BiomassSeries(nodeCount);
         for (int t = 0; t < timesteps; t++) {
             for (int i = 0; i < nodeCount; i++) {
-                results.biomass[t][i]  = t * 100 + i;
+                biomass[t][i]  = t * 100 + i;
             }
+            results.biomass.record(t, biomass[t]);
         }
+        results.biomass.finish(timesteps);
         results.extinctionTimesteps = new int[] {-1, 1};
         results.finalBiomass = new double[] {0.1, 0.2};
         results.stopEvent = SimulationEventHandler.EventType.OSCILLATING_STEADY_STATE;
         results.timestepsSimulated = timesteps;
+        results.derivativeEvaluations = 1234;
+        results.constantDetectorEvaluations = 56;
+        results.oscillationDetectorEvaluations = 78;
+        results.stability = new StabilityAnalyzer(new ModelEquations(web, modelParameters))
+                .analyze(results.finalBiomass, results.stopEvent);
 
         OutputFileWriter writer = new OutputFileWriter(outputDirectory);
         int simulationId = 1;
@@ -67,20 +77,44 @@ public class OutputFileWriterTest {
         IHDF5SimpleReader reader = HDF5Factory.openForReading(outputFile);
 
         assertEquals(web.toJson(), reader.readString("/food_web_json"));
-        assertMatrixEquals(results.biomass, reader.readFloatMatrix("/biomass"));
+        assertMatrixEquals(biomass, reader.readFloatMatrix("/biomass"));
+        assertArrayEquals(results.biomass.getTimesteps(), reader.readIntArray("/biomass_timesteps"));
         assertArrayEquals(results.finalBiomass, reader.readDoubleArray("/final_biomass"), 1e-20);
         assertArrayEquals(results.extinctionTimesteps, reader.readIntArray("/extinction_timesteps"));
         assertEquals(results.timestepsSimulated, reader.readInt("/timesteps_simulated"));
+        assertEquals(results.derivativeEvaluations, reader.readInt("/derivative_evaluations"));
+        assertEquals(results.constantDetectorEvaluations, reader.readInt("/constant_detector_evaluations"));
+        assertEquals(results.oscillationDetectorEvaluations, reader.readInt("/oscillation_detector_evaluations"));
         assertArrayEquals(nodeIds, reader.readIntArray("/node_ids"));
         assertEquals(data.nodeConfig, reader.readString("/node_config"));
         assertEquals(data.nodeConfigBiomassScale, reader.readDouble("/node_config_biomass_scale"));
         assertEquals(results.stopEvent.toString(), reader.readString("/stop_event"));
+        assertEquals(results.stability.classification.toString(), reader.readString("/stability/classification"));
+        assertArrayEquals(results.stability.nodeIds, reader.readIntArray("/stability/node_ids"));
+        assertArrayEquals(results.stability.eigenvalueRealParts,
+                reader.readDoubleArray("/stability/eigenvalues_real"), 1e-20);
+        assertArrayEquals(results.stability.eigenvalueImaginaryParts,
+                reader.readDoubleArray("/stability/eigenvalues_imaginary"), 1e-20);
+        assertEquals(results.stability.leadingEigenvalueRealPart,
+                reader.readDouble("/stability/leading_eigenvalue_real"));
 
         // Simulation parameters
         assertEquals(data.simulationResults.simulationParameters.stepSize,
                 reader.readDouble("/parameters/simulation/step_size"));
+        assertEquals(data.simulationResults.simulationParameters.recordingSchedule.toString(),
+                reader.readString("/parameters/simulation/recording_schedule"));
+        assertEquals(data.simulationResults.simulationParameters.recordingAbsoluteTolerance,
+                reader.readDouble("/parameters/simulation/recording_absolute_tolerance"));
+        assertEquals(data.simulationResults.simulationParameters.recordingRelativeTolerance,
+                reader.readDouble("/parameters/simulation/recording_relative_tolerance"));
         assertEquals(data.simulationResults.simulationParameters.stopOnSteadyState,
                 reader.readBoolean("/parameters/simulation/stop_on_steady_state"));
+        assertEquals(data.simulationResults.simulationParameters.removeExtinctNodes,
+                reader.readBoolean("/parameters/simulation/remove_extinct_nodes"));
+        assertEquals(data.simulationResults.simulationParameters.solveForEquilibrium,
+                reader.readBoolean("/parameters/simulation/solve_for_equilibrium"));
+        assertEquals(data.simulationResults.simulationParameters.analyzeStability,
+                reader.readBoolean("/parameters/simulation/analyze_stability"));
 
         // System parameters
         assertEquals(modelParameters.useSystemCarryingCapacity,
@@ -96,19 +130,21 @@ public class OutputFileWriterTest {
         assertArrayEquals(modelParameters.carryingCapacity,
                 reader.readDoubleArray("/parameters/node/carrying_capacity"), 1e-20);
 
-        // Link parameters
-        assertMatrixEquals(modelParameters.maximumIngestionRate,
-                reader.readDoubleMatrix("/parameters/link/maximum_ingestion_rate"));
-        assertMatrixEquals(modelParameters.predatorInterference,
-                reader.readDoubleMatrix("/parameters/link/predator_interference"));
-        assertMatrixEquals(modelParameters.functionalResponseControl,
-                reader.readDoubleMatrix("/parameters/link/functional_response_control"));
-        assertMatrixEquals(modelParameters.relativeHalfSaturationDensity,
-                reader.readDoubleMatrix("/parameters/link/relative_half_saturation_density"));
-        assertMatrixEquals(modelParameters.halfSaturationDensity,
-                reader.readDoubleMatrix("/parameters/link/half_saturation_density"));
-        assertMatrixEquals(modelParameters.assimilationEfficiency,
-                reader.readDoubleMatrix("/parameters/link/assimilation_efficiency"));
+        // Link parameters, of the one link from node 0 to node 1
+        assertArrayEquals(new int[] {1}, reader.readIntArray("/parameters/link/predator"));
+        assertArrayEquals(new int[] {0}, reader.readIntArray("/parameters/link/prey"));
+        assertArrayEquals(new double[] {modelParameters.maximumIngestionRate[1][0]},
+                reader.readDoubleArray("/parameters/link/maximum_ingestion_rate"), 1e-20);
+        assertArrayEquals(new double[] {modelParameters.predatorInterference[1][0]},
+                reader.readDoubleArray("/parameters/link/predator_interference"), 1e-20);
+        assertArrayEquals(new double[] {modelParameters.functionalResponseControl[1][0]},
+                reader.readDoubleArray("/parameters/link/functional_response_control"), 1e-20);
+        assertArrayEquals(new double[] {modelParameters.relativeHalfSaturationDensity[1][0]},
+                reader.readDoubleArray("/parameters/link/relative_half_saturation_density"), 1e-20);
+        assertArrayEquals(new double[] {modelParameters.halfSaturationDensity[1][0]},
+                reader.readDoubleArray("/parameters/link/half_saturation_density"), 1e-20);
+        assertArrayEquals(new double[] {modelParameters.assimilationEfficiency[1][0]},
+                reader.readDoubleArray("/parameters/link/assimilation_efficiency"), 1e-20);
 
         reader.close();
     }
@@ -135,7 +171,7 @@ public class OutputFileWriterTest {
 
         OutputFileWriter writer = new OutputFileWriter(outputDirectory);
         int simulationId = 1;
-        int[] nodeIds = new int[] {0, 1};
+        int[] nodeIds = new int[] {0};
 
         OutputFileData data = new OutputFileData();
         data.simulationId = simulationId;
@@ -150,6 +186,116 @@ public class OutputFileWriterTest {
         assertTrue(outputFile.exists());
     }
 
+    @Test
+    public void testWriteStreamedBiomass() throws IOException {
+        File outputDirectory = tempFolder.newFolder("output");
+
+        int timesteps = 2 * HDF5BiomassSink.BLOCK_ROWS + 10;
+        int nodeCount = 2;
+
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addLink(0, 1);
+
+        SimulationParameters simulationParameters = new SimulationParameters();
+        simulationParameters.timesteps = timesteps;
+        ModelParameters modelParameters = new ModelParameters(web);
+        SimulationResults results = new SimulationResults(simulationParameters, modelParameters);
+        results.timestepsSimulated = timesteps;
+
+        OutputFileWriter writer = new OutputFileWriter(outputDirectory);
+        BiomassSink sink = writer.openBiomassSink(1, nodeCount);
+        double[][] expectedBiomass = new double[timesteps][nodeCount];
+        for (int t = 0; t <= timesteps; t++) {
+            double[] row = {t, t * 0.5};
+            if (t < timesteps)
+                expectedBiomass[t] = row.clone();
+            sink.record(t, row);  // The last row is past the end of the simulation
+        }
+        sink.finish(timesteps);
+
+        OutputFileData data = new OutputFileData();
+        data.simulationId = 1;
+        data.simulationResults = results;
+        data.nodeConfig = "placeholder";
+        data.nodeConfigBiomassScale = 1000;
+        data.originalNodeIds = new int[] {0, 1};
+        data.originalSubweb = web;
+        writer.write(data);
+
+        IHDF5SimpleReader reader = HDF5Factory.openForReading(new File(outputDirectory, "ATN_1.h5"));
+        assertMatrixEquals(expectedBiomass, reader.readFloatMatrix("/biomass"));
+        assertEquals(timesteps, reader.readIntArray("/biomass_timesteps").length);
+        assertEquals(timesteps, reader.readInt("/timesteps_simulated"));
+        reader.close();
+    }
+
+    @Test
+    public void testDiscardStreamedBiomass() throws IOException {
+        File outputDirectory = tempFolder.newFolder("output");
+
+        // Two files open at once, of which one is discarded
+        OutputFileWriter writer = new OutputFileWriter(outputDirectory);
+        BiomassSink kept = writer.openBiomassSink(1, 1);
+        BiomassSink discarded = writer.openBiomassSink(2, 1);
+        kept.record(0, new double[] {1});
+        discarded.record(0, new double[] {2});
+        writer.discard(2);
+        kept.finish(1);
+        writer.close();
+
+        assertTrue(new File(outputDirectory, "ATN_1.h5").isFile());
+        assertFalse(new File(outputDirectory, "ATN_2.h5").exists());
+    }
+
+    @Test
+    public void testWriteCompressed() throws IOException {
+        File outputDirectory = tempFolder.newFolder("output");
+
+        int timesteps = 307;  // Three full chunks of 100 rows and a partial one
+        int nodeCount = 2;
+
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addLink(0, 1);
+
+        SimulationParameters simulationParameters = new SimulationParameters();
+        simulationParameters.timesteps = timesteps;
+        ModelParameters modelParameters = new ModelParameters(web);
+        SimulationResults results = new SimulationResults(simulationParameters, modelParameters);
+        results.timestepsSimulated = timesteps;
+        results.biomass = new BiomassSeries(nodeCount);
+        double[][] expectedBiomass = new double[timesteps][];
+        for (int t = 0; t < timesteps; t++) {
+            expectedBiomass[t] = new double[] {1, t * 0.25};
+            results.biomass.record(t, expectedBiomass[t]);
+        }
+        results.biomass.finish(timesteps);
+
+        OutputFileFormat format = new OutputFileFormat();
+        format.chunkRows = 100;
+        format.deflateLevel = 6;
+        OutputFileWriter writer = new OutputFileWriter(outputDirectory, format);
+
+        OutputFileData data = new OutputFileData();
+        data.simulationId = 1;
+        data.simulationResults = results;
+        data.nodeConfig = "placeholder";
+        data.nodeConfigBiomassScale = 1000;
+        data.originalNodeIds = new int[] {0, 1};
+        data.originalSubweb = web;
+        writer.write(data);
+
+        IHDF5SimpleReader reader = HDF5Factory.openForReading(new File(outputDirectory, "ATN_1.h5"));
+        assertMatrixEquals(expectedBiomass, reader.readFloatMatrix("/biomass"));
+        assertArrayEquals(results.biomass.getTimesteps(), reader.readIntArray("/biomass_timesteps"));
+        assertArrayEquals(new double[] {modelParameters.assimilationEfficiency[1][0]},
+                reader.readDoubleArray("/parameters/link/assimilation_efficiency"), 1e-20);
+        reader.close();
+    }
+
     private void assertMatrixEquals(double[][] expected, float[][] actual) {
         assertEquals(expected.length, actual.length);
         float[] expectedRow = new float[expected[0].length];
@@ -159,10 +305,4 @@ public class OutputFileWriterTest {
             assertArrayEquals(expectedRow, actual[i], 1e-20f);
         }
     }
-
-    private void assertMatrixEquals(double[][] expected, double[][] actual) {
-        assertEquals(expected.length, actual.length);
-        for (int i = 0; i < expected.length; i++)
-            assertArrayEquals(expected[i], actual[i], 1e-20);
-    }
 }
@@ -0,0 +1,50 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RecordingScheduleTest {
+
+    @Test
+    public void testEveryTimestep() {
+        RecordingSchedule schedule = RecordingSchedule.everyTimestep();
+        assertEquals(0, schedule.next(0));
+        assertEquals(7, schedule.next(7));
+    }
+
+    @Test
+    public void testEvery() {
+        RecordingSchedule schedule = RecordingSchedule.every(5);
+        assertEquals(0, schedule.next(0));
+        assertEquals(5, schedule.next(1));
+        assertEquals(5, schedule.next(5));
+        assertEquals(10, schedule.next(6));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEveryZero() {
+        RecordingSchedule.every(0);
+    }
+
+    @Test
+    public void testLogSpaced() {
+        RecordingSchedule schedule = RecordingSchedule.logSpaced(2);
+        int[] expected = {0, 1, 3, 10, 32, 100, 316, 1000};
+        int timestep = 0;
+        for (int expectedTimestep : expected) {
+            timestep = schedule.next(timestep);
+            assertEquals(expectedTimestep, timestep);
+            timestep++;
+        }
+    }
+
+    @Test
+    public void testAt() {
+        RecordingSchedule schedule = RecordingSchedule.at(new int[] {100, 5, 20});
+        assertEquals(5, schedule.next(0));
+        assertEquals(20, schedule.next(20));
+        assertEquals(100, schedule.next(21));
+        assertEquals(Integer.MAX_VALUE, schedule.next(101));
+    }
+}
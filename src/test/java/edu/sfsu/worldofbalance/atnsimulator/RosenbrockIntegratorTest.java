@@ -0,0 +1,133 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RosenbrockIntegratorTest {
+
+    /**
+     * y0' = -y0, y1' = k (y0 - y1): stiff for large k, with an exact solution.
+     */
+    static class StiffLinearEquations implements FirstOrderDifferentialEquations {
+        final double k;
+        int evaluations = 0;
+
+        StiffLinearEquations(double k) {
+            this.k = k;
+        }
+
+        @Override
+        public int getDimension() {
+            return 2;
+        }
+
+        @Override
+        public void computeDerivatives(double t, double[] y, double[] yDot) {
+            evaluations++;
+            yDot[0] = -y[0];
+            yDot[1] = k * (y[0] - y[1]);
+        }
+
+        double[] exactSolution(double t, double[] y0) {
+            double c = k / (k - 1) * y0[0];
+            return new double[] {
+                    y0[0] * Math.exp(-t),
+                    c * Math.exp(-t) + (y0[1] - c) * Math.exp(-k * t)
+            };
+        }
+    }
+
+    @Test
+    public void testStiffLinearSystem() {
+        StiffLinearEquations equations = new StiffLinearEquations(1e5);
+        RosenbrockIntegrator integrator = new RosenbrockIntegrator(1e-12, 100, 1e-10, 1e-8);
+        double[] y0 = {1, 0};
+        double[] y = new double[2];
+        integrator.integrate(equations, 0, y0, 10, y);
+
+        assertArrayEquals(equations.exactSolution(10, y0), y, 1e-8);
+
+        // An explicit method would need on the order of k * t evaluations to remain stable
+        assertTrue(equations.evaluations < 10000);
+    }
+
+    @Test
+    public void testFiniteDifferenceJacobianMatchesAnalytic() {
+        // ModelEquations provides its own Jacobian; wrapping it hides that, forcing finite differences
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addLink(0, 1);
+        ModelEquations equations = new ModelEquations(web, new ModelParameters(web));
+        FirstOrderDifferentialEquations wrapped = new FirstOrderDifferentialEquations() {
+            @Override
+            public int getDimension() {
+                return equations.getDimension();
+            }
+
+            @Override
+            public void computeDerivatives(double t, double[] y, double[] yDot) {
+                equations.computeDerivatives(t, y, yDot);
+            }
+        };
+
+        double[] y0 = {1, 0.5};
+        double[] yAnalytic = new double[2];
+        double[] yFiniteDifference = new double[2];
+        new RosenbrockIntegrator(1e-8, 100, 1e-10, 1e-8).integrate(equations, 0, y0, 20, yAnalytic);
+        new RosenbrockIntegrator(1e-8, 100, 1e-10, 1e-8).integrate(wrapped, 0, y0, 20, yFiniteDifference);
+        assertArrayEquals(yAnalytic, yFiniteDifference, 1e-6);
+    }
+
+    @Test
+    public void testDenseOutput() {
+        StiffLinearEquations equations = new StiffLinearEquations(10);
+        RosenbrockIntegrator integrator = new RosenbrockIntegrator(1e-12, 100, 1e-12, 1e-10);
+        double[] y0 = {1, 0};
+        final double[] maxError = {0};
+        integrator.addStepHandler(new StepHandler() {
+            @Override
+            public void init(double t0, double[] y0, double t) {
+            }
+
+            @Override
+            public void handleStep(StepInterpolator interpolator, boolean isLast) {
+                double t0 = interpolator.getPreviousTime();
+                double t1 = interpolator.getCurrentTime();
+                for (int i = 0; i <= 4; i++) {
+                    double t = t0 + (t1 - t0) * i / 4;
+                    interpolator.setInterpolatedTime(t);
+                    double[] exact = equations.exactSolution(t, y0);
+                    double[] interpolated = interpolator.getInterpolatedState();
+                    for (int j = 0; j < exact.length; j++)
+                        maxError[0] = Math.max(maxError[0], Math.abs(exact[j] - interpolated[j]));
+                }
+            }
+        });
+        integrator.integrate(equations, 0, y0, 5, new double[2]);
+        assertEquals(0, maxError[0], 1e-6);
+    }
+
+    @Test
+    public void testFourthOrderConvergence() {
+        // With the step size pinned, halving it should reduce the global error by about 2^4
+        StiffLinearEquations equations = new StiffLinearEquations(2);
+        double[] y0 = {1, 0};
+        double[] exact = equations.exactSolution(1, y0);
+        double[] errors = new double[2];
+        double[] steps = {0.05, 0.025};
+        for (int s = 0; s < steps.length; s++) {
+            RosenbrockIntegrator integrator = new RosenbrockIntegrator(steps[s], steps[s], 1e3, 1e3);
+            integrator.setInitialStepSize(steps[s]);
+            double[] y = new double[2];
+            integrator.integrate(equations, 0, y0, 1, y);
+            errors[s] = Math.abs(y[1] - exact[1]);
+        }
+        double order = Math.log(errors[0] / errors[1]) / Math.log(2);
+        assertEquals(4, order, 0.5);
+    }
+}
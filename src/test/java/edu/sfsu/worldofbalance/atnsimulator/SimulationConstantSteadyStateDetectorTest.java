@@ -26,6 +26,37 @@ public class SimulationConstantSteadyStateDetectorTest {
         assertTrue(detector.g(t2, new double[] {EXTINCT}) < 0);
     }
 
+    @Test
+    public void testEvaluationsCounted() {
+        makeSingleConsumerModel();
+        assertEquals(0, detector.getEvaluations());
+        detector.g(t1, new double[] {ALMOST_EXTINCT});
+        detector.g(t2, new double[] {EXTINCT});
+        assertEquals(2, detector.getEvaluations());
+    }
+
+    @Test
+    public void testChecksWithinStepSkipEvaluation() {
+        makeSingleConsumerModel();
+        detector.setChecksPerStep(2);
+        RosenbrockIntegrator.HermiteStepInterpolator step = new RosenbrockIntegrator.HermiteStepInterpolator();
+        step.storeTime(0);
+        step.shift();
+        step.storeTime(10);
+        detector.handleStep(step, false);
+
+        // After a step of length 10, checks are evaluated at least 5 apart
+        double g0 = detector.g(0, new double[] {ALMOST_EXTINCT});
+        assertEquals(g0, detector.g(1, new double[] {EXTINCT}), 0);
+        assertTrue(detector.g(5, new double[] {EXTINCT}) < 0);
+        assertEquals(2, detector.getEvaluations());
+
+        // Locating the sign change, the checks bracketing it keep their values, and other times are evaluated
+        assertEquals(g0, detector.g(1, new double[] {EXTINCT}), 0);
+        assertTrue(detector.g(3, new double[] {EXTINCT}) < 0);
+        assertEquals(3, detector.getEvaluations());
+    }
+
     @Test
     public void testEventOccurredTotalExtinction() {
         makeSingleConsumerModel();
@@ -108,5 +139,6 @@ public class SimulationConstantSteadyStateDetectorTest {
 
     private void holdConsumerBiomassConstant(int nodeId) {
         equations.getParameters().metabolicRate[nodeId] = 0;
+        equations.setParameters(equations.getParameters());
     }
 }
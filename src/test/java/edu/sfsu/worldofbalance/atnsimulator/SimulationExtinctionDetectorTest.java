@@ -0,0 +1,54 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.ode.events.EventHandler;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SimulationExtinctionDetectorTest {
+    private final double SURVIVING = 1;
+    private final double EXTINCT = ModelEquations.EXTINCT * 0.9;
+
+    @Test
+    public void testSwitchingFunctionSingleExtinction() {
+        SimulationExtinctionDetector detector = new SimulationExtinctionDetector(0);
+        detector.init(0, new double[] {SURVIVING, SURVIVING}, 10);
+        assertTrue(detector.g(1, new double[] {SURVIVING, SURVIVING}) > 0);
+        assertTrue(detector.g(2, new double[] {SURVIVING, EXTINCT}) < 0);
+    }
+
+    @Test
+    public void testSwitchingFunctionFractionOfNodes() {
+        SimulationExtinctionDetector detector = new SimulationExtinctionDetector(0.5);
+        detector.init(0, new double[] {SURVIVING, SURVIVING, SURVIVING, SURVIVING}, 10);
+        assertTrue(detector.g(1, new double[] {SURVIVING, EXTINCT, SURVIVING, SURVIVING}) > 0);
+        assertTrue(detector.g(2, new double[] {SURVIVING, EXTINCT, SURVIVING, EXTINCT}) < 0);
+    }
+
+    @Test
+    public void testNodesExtinctAtStartAreIgnored() {
+        SimulationExtinctionDetector detector = new SimulationExtinctionDetector(0);
+        detector.init(0, new double[] {EXTINCT, SURVIVING}, 10);
+        assertTrue(detector.g(1, new double[] {EXTINCT, SURVIVING}) > 0);
+        assertTrue(detector.g(2, new double[] {EXTINCT, EXTINCT}) < 0);
+    }
+
+    @Test
+    public void testEventOccurred() {
+        SimulationExtinctionDetector detector = new SimulationExtinctionDetector(0);
+        detector.init(0, new double[] {SURVIVING, SURVIVING}, 10);
+        assertFalse(detector.integrationWasStopped());
+        assertEquals(EventHandler.Action.STOP, detector.eventOccurred(1, new double[] {SURVIVING, EXTINCT}, false));
+        assertTrue(detector.integrationWasStopped());
+    }
+
+    @Test
+    public void testTotalExtinctionDoesNotStop() {
+        SimulationExtinctionDetector detector = new SimulationExtinctionDetector(0);
+        detector.init(0, new double[] {SURVIVING, SURVIVING}, 10);
+        assertEquals(EventHandler.Action.CONTINUE, detector.eventOccurred(1, new double[] {EXTINCT, EXTINCT}, false));
+        assertFalse(detector.integrationWasStopped());
+    }
+}
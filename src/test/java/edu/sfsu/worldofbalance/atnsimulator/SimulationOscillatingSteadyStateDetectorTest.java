@@ -0,0 +1,125 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.ode.events.EventHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SimulationOscillatingSteadyStateDetectorTest {
+    private final double FIRST_SNAPSHOT_TIME = 100;
+
+    private ModelEquations equations;
+    private SimulationOscillatingSteadyStateDetector detector;
+    private EventHandler schedule;
+
+    @Before
+    public void setUp() {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addLink(0, 1);
+        ModelParameters parameters = new ModelParameters(web);
+        equations = new ModelEquations(web, parameters);
+        detector = new SimulationOscillatingSteadyStateDetector(equations, FIRST_SNAPSHOT_TIME);
+        schedule = detector.getSnapshotSchedule();
+        detector.init(0, new double[] {1, 1}, 1000);
+        schedule.init(0, new double[] {1, 1}, 1000);
+    }
+
+    @Test
+    public void testSnapshotScheduleDoubles() {
+        double[] times = {0, 99, 101, 199, 201, 399, 401, 799, 801};
+        for (int i = 1; i < times.length; i++) {
+            boolean sameSign = schedule.g(times[i - 1], null) > 0 == schedule.g(times[i], null) > 0;
+            // Sign changes only across 100, 200, 400 and 800
+            assertEquals("between " + times[i - 1] + " and " + times[i], i % 2 == 1, sameSign);
+        }
+    }
+
+    @Test
+    public void testNoEventsBeforeFirstSnapshot() {
+        assertTrue(detector.g(1, new double[] {1, 1}) > 0);
+        assertTrue(detector.g(2, new double[] {2, 2}) > 0);
+        assertTrue(detector.g(3, new double[] {0.5, 0.5}) > 0);
+    }
+
+    @Test
+    public void testSnapshotIsNotAnEvent() {
+        double[] biomass = {0.5, 0.1};
+        double[] derivatives = new double[2];
+        equations.computeDerivatives(FIRST_SNAPSHOT_TIME, biomass, derivatives);
+        assertEquals(EventHandler.Action.CONTINUE, schedule.eventOccurred(FIRST_SNAPSHOT_TIME, biomass, true));
+
+        // g() at the snapshot time has the sign it has immediately afterward
+        double dt = 1e-6;
+        double[] biomassAfter = {biomass[0] + dt * derivatives[0], biomass[1] + dt * derivatives[1]};
+        double gAt = detector.g(FIRST_SNAPSHOT_TIME, biomass);
+        double gAfter = detector.g(FIRST_SNAPSHOT_TIME + dt, biomassAfter);
+        assertTrue(gAt != 0);
+        assertEquals(gAt > 0, gAfter > 0);
+    }
+
+    @Test
+    public void testStopsAfterRepeatedMatches() {
+        double[] biomass = {0.5, 0.1};
+        schedule.eventOccurred(FIRST_SNAPSHOT_TIME, biomass, true);
+
+        // Producer biomass rises below carrying capacity and falls above it
+        double[] derivatives = new double[2];
+        equations.computeDerivatives(0, new double[] {0.1, 0.1}, derivatives);
+        detector.g(110, biomass);
+        equations.computeDerivatives(0, new double[] {10, 0.1}, derivatives);
+        detector.g(120, biomass);
+
+        assertEquals(EventHandler.Action.CONTINUE, detector.eventOccurred(130, biomass, true));
+        assertEquals(EventHandler.Action.CONTINUE, detector.eventOccurred(140, biomass, true));
+        assertFalse(detector.integrationWasStopped());
+        assertEquals(EventHandler.Action.STOP, detector.eventOccurred(150, biomass, true));
+        assertEquals(SimulationEventHandler.EventType.OSCILLATING_STEADY_STATE, detector.getStopEvent());
+        assertEquals(150, detector.getTimeStopped(), 1e-20);
+    }
+
+    @Test
+    public void testSnapshotResetsMatches() {
+        double[] biomass = {0.5, 0.1};
+        schedule.eventOccurred(FIRST_SNAPSHOT_TIME, biomass, true);
+        double[] derivatives = new double[2];
+        equations.computeDerivatives(0, new double[] {0.1, 0.1}, derivatives);
+        detector.g(110, biomass);
+        equations.computeDerivatives(0, new double[] {10, 0.1}, derivatives);
+        detector.g(120, biomass);
+        detector.eventOccurred(130, biomass, true);
+        detector.eventOccurred(140, biomass, true);
+
+        // A new snapshot starts the count again, and no node has oscillated since it
+        schedule.eventOccurred(2 * FIRST_SNAPSHOT_TIME, biomass, false);
+        assertEquals(EventHandler.Action.CONTINUE, detector.eventOccurred(210, biomass, true));
+        assertFalse(detector.integrationWasStopped());
+    }
+
+    @Test
+    public void testReduceKeepsSnapshotOfExtinctNode() {
+        double extinct = ModelEquations.EXTINCT / 2;
+        schedule.eventOccurred(FIRST_SNAPSHOT_TIME, new double[] {0.5, extinct}, true);
+        detector.reduce(equations.subsystem(new int[] {0}), new int[] {0});
+        detector.init(FIRST_SNAPSHOT_TIME + 1, new double[] {0.6}, 1000);
+
+        // The snapshot of the remaining node is kept, so returning to it is an event
+        assertTrue(detector.g(FIRST_SNAPSHOT_TIME + 1, new double[] {0.6}) < 0);
+        assertTrue(detector.g(FIRST_SNAPSHOT_TIME + 2, new double[] {0.4}) > 0);
+    }
+
+    @Test
+    public void testReduceDiscardsSnapshotOfSurvivingNode() {
+        schedule.eventOccurred(FIRST_SNAPSHOT_TIME, new double[] {0.5, 0.1}, true);
+        detector.reduce(equations.subsystem(new int[] {0}), new int[] {0});
+        detector.init(FIRST_SNAPSHOT_TIME + 1, new double[] {0.6}, 1000);
+
+        // Without a snapshot, there are no events
+        assertTrue(detector.g(FIRST_SNAPSHOT_TIME + 1, new double[] {0.6}) > 0);
+        assertTrue(detector.g(FIRST_SNAPSHOT_TIME + 2, new double[] {0.4}) > 0);
+    }
+}
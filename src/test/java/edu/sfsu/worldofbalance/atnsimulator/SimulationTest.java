@@ -3,6 +3,7 @@ package edu.sfsu.worldofbalance.atnsimulator;
 import org.junit.Test;
 
 import javax.jws.WebParam;
+import java.io.InputStreamReader;
 
 import static org.junit.Assert.*;
 
@@ -37,7 +38,7 @@ public class SimulationTest {
         simulation.run();
         SimulationResults results = simulation.getResults();
 
-        assertEquals(simParams.timesteps, results.biomass.length);
+        assertEquals(simParams.timesteps, results.biomass.size());
         assertTrue(biomassIsIncreasing(results.biomass, 0));
     }
 
@@ -106,11 +107,11 @@ public class SimulationTest {
         simulation.run();
         SimulationResults results = simulation.getResults();
 
-        assertEquals(simParams.timesteps, results.biomass.length);
+        assertEquals(simParams.timesteps, results.biomass.size());
 
         double[] expectedBiomassRow = new double[web.nodeCount()];
-        for (double[] biomassRow : results.biomass) {
-            assertArrayEquals(expectedBiomassRow, biomassRow, 1e-20);
+        for (int t = 0; t < results.biomass.size(); t++) {
+            assertArrayEquals(expectedBiomassRow, results.biomass.getRow(t), 1e-20);
         }
     }
 
@@ -146,7 +147,7 @@ public class SimulationTest {
         int[] expectedExtinctionTimesteps = new int[] {-1, -1, -1};
         for (int consumer = 1; consumer < 3; consumer++) {
             for (int t = 0; t < simParams.timesteps; t++) {
-                if (results.biomass[t][consumer] < ModelEquations.EXTINCT) {
+                if (results.biomass.get(t, consumer) < ModelEquations.EXTINCT) {
                     expectedExtinctionTimesteps[consumer] = t;
                     break;
                 }
@@ -158,6 +159,69 @@ public class SimulationTest {
         assertArrayEquals(expectedExtinctionTimesteps, results.extinctionTimesteps);
     }
 
+    @Test
+    public void testRemovingExtinctNodesGivesSameResults() {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addConsumerNode(2);
+        web.addConsumerNode(3);
+        web.addLink(0, 1);
+        web.addLink(0, 2);
+        web.addLink(1, 3);
+        ModelParameters parameters = new ModelParameters(web);
+        parameters.metabolicRate[2] = 100;  // Make consumer 2 go extinct
+        double[] initialBiomass = {1, 0.5, 0.5, 0.1};
+
+        SimulationParameters sp = new SimulationParameters();
+        sp.timesteps = 500;
+        sp.stopOnSteadyState = true;
+        sp.removeExtinctNodes = false;
+        Simulation reference = new Simulation(sp, new ModelEquations(web, parameters), initialBiomass);
+        reference.run();
+        sp.removeExtinctNodes = true;
+        Simulation sim = new Simulation(sp, new ModelEquations(web, parameters), initialBiomass);
+        sim.run();
+
+        SimulationResults expected = reference.getResults();
+        SimulationResults results = sim.getResults();
+        assertTrue(results.extinctionTimesteps[2] > 0);
+        assertArrayEquals(expected.extinctionTimesteps, results.extinctionTimesteps);
+        assertEquals(expected.timestepsSimulated, results.timestepsSimulated);
+        assertEquals(expected.stopEvent, results.stopEvent);
+        for (int t = 0; t < results.timestepsSimulated; t++)
+            assertArrayEquals(expected.biomass.getRow(t), results.biomass.getRow(t), 1e-6);
+    }
+
+    @Test
+    public void testSolveForEquilibrium() {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addLink(0, 1);
+        ModelParameters parameters = new ModelParameters(web);
+        parameters.carryingCapacity[0] = 0.5;
+        double[] initialBiomass = {0.5, 0.2};
+
+        SimulationParameters sp = new SimulationParameters();
+        sp.timesteps = 10000;
+        sp.stopOnSteadyState = true;
+        sp.analyzeStability = true;
+        Simulation reference = new Simulation(sp, new ModelEquations(web, parameters), initialBiomass);
+        reference.run();
+        sp.solveForEquilibrium = true;
+        Simulation sim = new Simulation(sp, new ModelEquations(web, parameters), initialBiomass);
+        sim.run();
+
+        SimulationResults expected = reference.getResults();
+        SimulationResults results = sim.getResults();
+        assertEquals(SimulationEventHandler.EventType.CONSTANT_BIOMASS_WITH_CONSUMERS, expected.stopEvent);
+        assertEquals(expected.stopEvent, results.stopEvent);
+        assertTrue(results.timestepsSimulated < expected.timestepsSimulated);
+        assertArrayEquals(expected.finalBiomass, results.finalBiomass, 1e-9);
+        assertEquals(StabilityAnalyzer.Classification.STABLE_EQUILIBRIUM, results.stability.classification);
+    }
+
     @Test
     public void testNoRecordBiomass() {
         FoodWeb web = new FoodWeb();
@@ -169,10 +233,106 @@ public class SimulationTest {
         sp.stepSize = 0.1;
         sp.stopOnSteadyState = false;
         sp.recordBiomass = false;
+        sp.analyzeStability = true;
         Simulation sim = new Simulation(sp, equations, new double[] {1});
         sim.run();
         SimulationResults results = sim.getResults();
         assertNull(results.biomass);
+        assertNotNull(results.stability);
+    }
+
+    @Test
+    public void testBiomassSink() {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        ModelParameters mp = new ModelParameters(web);
+        SimulationParameters sp = new SimulationParameters();
+        sp.timesteps = 10;
+        sp.stepSize = 0.1;
+        sp.stopOnSteadyState = false;
+        Simulation reference = new Simulation(sp, new ModelEquations(web, mp), new double[] {0.5});
+        reference.run();
+
+        BiomassSeries sink = new BiomassSeries(1);
+        Simulation sim = new Simulation(sp, new ModelEquations(web, mp), new double[] {0.5});
+        sim.setBiomassSink(sink);
+        sim.run();
+        assertNull(sim.getResults().biomass);
+        assertEquals(sp.timesteps, sink.size());
+        for (int t = 0; t < sp.timesteps; t++)
+            assertArrayEquals(reference.getResults().biomass.getRow(t), sink.getRow(t), 1e-20);
+    }
+
+    @Test
+    public void testRecordingSchedule() {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addConsumerNode(2);
+        ModelParameters parameters = new ModelParameters(web);
+        parameters.metabolicRate[1] = 200;
+        parameters.metabolicRate[2] = 100;
+        double[] initialBiomass = {1, 1, 1};
+
+        SimulationParameters sp = new SimulationParameters();
+        sp.timesteps = 100;
+        sp.stepSize = 0.1;
+        sp.stopOnSteadyState = false;
+        Simulation reference = new Simulation(sp, new ModelEquations(web, parameters), initialBiomass);
+        reference.run();
+        sp.recordingSchedule = RecordingSchedule.every(7);
+        Simulation sim = new Simulation(sp, new ModelEquations(web, parameters), initialBiomass);
+        sim.run();
+
+        SimulationResults expected = reference.getResults();
+        SimulationResults results = sim.getResults();
+        assertEquals((sp.timesteps + 6) / 7, results.biomass.size());
+        for (int row = 0; row < results.biomass.size(); row++) {
+            int timestep = results.biomass.getTimestep(row);
+            assertEquals(7 * row, timestep);
+            assertArrayEquals(expected.biomass.getRow(timestep), results.biomass.getRow(row), 1e-6);
+        }
+
+        // Extinctions are found at every timestep, whether recorded or not
+        assertArrayEquals(expected.extinctionTimesteps, results.extinctionTimesteps);
+    }
+
+    @Test
+    public void testRecordingTolerance() {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addLink(0, 1);
+        ModelParameters parameters = new ModelParameters(web);
+        double[] initialBiomass = {0.5, 0.5};
+
+        SimulationParameters sp = new SimulationParameters();
+        sp.timesteps = 1000;
+        sp.stepSize = 0.1;
+        sp.stopOnSteadyState = false;
+        Simulation reference = new Simulation(sp, new ModelEquations(web, parameters), initialBiomass);
+        reference.run();
+        sp.recordingAbsoluteTolerance = 1e-3;
+        sp.recordingRelativeTolerance = 1e-2;
+        Simulation sim = new Simulation(sp, new ModelEquations(web, parameters), initialBiomass);
+        sim.run();
+
+        BiomassSeries expected = reference.getResults().biomass;
+        BiomassSeries results = sim.getResults().biomass;
+        assertTrue(results.size() < expected.size());
+        assertEquals(0, results.getTimestep(0));
+
+        // Holding each recorded row until the next reproduces every timestep within the tolerance
+        int row = 0;
+        for (int timestep = 0; timestep < expected.size(); timestep++) {
+            if (row + 1 < results.size() && results.getTimestep(row + 1) == timestep)
+                row++;
+            for (int i = 0; i < 2; i++) {
+                double held = results.get(row, i);
+                assertEquals(expected.get(timestep, i), held,
+                        sp.recordingAbsoluteTolerance + sp.recordingRelativeTolerance * held + 1e-6);
+            }
+        }
     }
 
     @Test
@@ -193,16 +353,71 @@ public class SimulationTest {
         assertTrue(results.finalBiomass[0] > initialBiomass[0]);
     }
 
-    private boolean biomassIsIncreasing(double[][] biomass, int nodeId) {
-        for (int t = 1; t < biomass.length; t++)
-            if (biomass[t-1][nodeId] >= biomass[t][nodeId])
+    @Test
+    public void testIntegratorTypesAgree() {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addConsumerNode(2);
+        web.addLink(0, 1);
+        web.addLink(1, 2);
+        ModelParameters parameters = new ModelParameters(web);
+        double[] initialBiomass = {1, 0.5, 0.1};
+
+        SimulationParameters sp = new SimulationParameters();
+        sp.timesteps = 200;
+        sp.stepSize = 0.1;
+        sp.stopOnSteadyState = false;
+        Simulation reference = new Simulation(sp, new ModelEquations(web, parameters), initialBiomass);
+        reference.run();
+
+        for (SimulationParameters.IntegratorType integratorType : SimulationParameters.IntegratorType.values()) {
+            sp.integratorType = integratorType;
+            Simulation sim = new Simulation(sp, new ModelEquations(web, parameters), initialBiomass);
+            sim.run();
+            SimulationResults results = sim.getResults();
+            assertEquals(reference.getResults().timestepsSimulated, results.timestepsSimulated);
+            for (int t = 0; t < sp.timesteps; t++)
+                assertArrayEquals(integratorType.toString(),
+                        reference.getResults().biomass.getRow(t), results.biomass.getRow(t), 1e-6);
+        }
+    }
+
+    @Test
+    public void testOscillatingSteadyState() {
+        FoodWeb serengeti = FoodWeb.createFromJson(new InputStreamReader(
+                SimulationTest.class.getResourceAsStream("/foodwebs/serengeti.json")));
+        NodeConfigParser.Result parseResult = new NodeConfigParser(1000).parse(
+                "5,[7],251.15,1.0,0,0,[9],512.86,1.0,0,0,[13],307.15,1.0,0,0,[89],2075.88,1.0,0,0,[92],908.15,1.0,0,0");
+        SimulationParameters sp = new SimulationParameters();
+        sp.timesteps = 10000;
+        sp.stopOnSteadyState = true;
+        sp.analyzeStability = true;
+        Simulation sim = BatchSimulationTask.createSimulation(
+                new FoodWebTopology(serengeti, parseResult.nodeIds), parseResult, sp);
+        sim.run();
+        SimulationResults results = sim.getResults();
+
+        // The first snapshot is taken at FIRST_SNAPSHOT_TIMESTEP, after which the oscillation repeats
+        assertEquals(SimulationEventHandler.EventType.OSCILLATING_STEADY_STATE, results.stopEvent);
+        assertTrue(results.timestepsSimulated > Simulation.FIRST_SNAPSHOT_TIMESTEP);
+        assertTrue(results.timestepsSimulated < 2 * Simulation.FIRST_SNAPSHOT_TIMESTEP);
+        assertTrue(results.derivativeEvaluations > 0);
+        assertTrue(results.constantDetectorEvaluations > 0);
+        assertTrue(results.oscillationDetectorEvaluations > 0);
+        assertEquals(StabilityAnalyzer.Classification.LIMIT_CYCLE, results.stability.classification);
+    }
+
+    private boolean biomassIsIncreasing(BiomassSeries biomass, int nodeId) {
+        for (int t = 1; t < biomass.size(); t++)
+            if (biomass.get(t-1, nodeId) >= biomass.get(t, nodeId))
                 return false;
         return true;
     }
 
-    private boolean biomassIsDecreasing(double[][] biomass, int nodeId) {
-        for (int t = 1; t < biomass.length; t++)
-            if (biomass[t-1][nodeId] <= biomass[t][nodeId])
+    private boolean biomassIsDecreasing(BiomassSeries biomass, int nodeId) {
+        for (int t = 1; t < biomass.size(); t++)
+            if (biomass.get(t-1, nodeId) <= biomass.get(t, nodeId))
                 return false;
         return true;
     }
@@ -0,0 +1,114 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class StabilityAnalyzerTest {
+
+    @Test
+    public void testProducerAtCarryingCapacity() {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        ModelParameters parameters = new ModelParameters(web);
+        StabilityAnalyzer analyzer = new StabilityAnalyzer(new ModelEquations(web, parameters));
+
+        StabilityAnalyzer.Result result = analyzer.analyze(
+                new double[] {parameters.carryingCapacity[0]}, SimulationEventHandler.EventType.NONE);
+        assertEquals(StabilityAnalyzer.Classification.STABLE_EQUILIBRIUM, result.classification);
+        assertEquals(-parameters.growthRate[0], result.leadingEigenvalueRealPart, 1e-12);
+        assertEquals(0, result.leadingEigenvalueImaginaryPart, 0);
+        assertEquals(0, result.equilibriumDistance, 1e-9);
+    }
+
+    @Test
+    public void testGrowingProducerIsTransient() {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        StabilityAnalyzer analyzer = new StabilityAnalyzer(new ModelEquations(web, new ModelParameters(web)));
+
+        StabilityAnalyzer.Result result = analyzer.analyze(new double[] {0.3}, SimulationEventHandler.EventType.NONE);
+        assertEquals(StabilityAnalyzer.Classification.TRANSIENT, result.classification);
+        assertTrue(result.equilibriumDistance > StabilityAnalyzer.MAX_EQUILIBRIUM_DISTANCE);
+    }
+
+    @Test
+    public void testExtinctNodesAreLeftOut() {
+        // Node 1 is extinct, and the two producers are separate blocks of the Jacobian
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addProducerNode(2);
+        web.addLink(0, 1);
+        ModelParameters parameters = new ModelParameters(web);
+        parameters.growthRate[2] = 2;
+        StabilityAnalyzer analyzer = new StabilityAnalyzer(new ModelEquations(web, parameters));
+
+        StabilityAnalyzer.Result result = analyzer.analyze(
+                new double[] {1, 0, 1}, SimulationEventHandler.EventType.CONSTANT_BIOMASS_PRODUCERS_ONLY);
+        assertArrayEquals(new int[] {0, 2}, result.nodeIds);
+        assertArrayEquals(new double[] {-1, -2}, result.eigenvalueRealParts, 1e-12);
+        assertArrayEquals(new double[] {0, 0}, result.eigenvalueImaginaryParts, 0);
+        assertEquals(StabilityAnalyzer.Classification.STABLE_EQUILIBRIUM, result.classification);
+    }
+
+    @Test
+    public void testSpectrumMatchesDenseDecomposition() {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addProducerNode(1);
+        web.addConsumerNode(2);
+        web.addConsumerNode(3);
+        web.addLink(0, 2);
+        web.addLink(1, 2);
+        web.addLink(2, 3);
+        ModelParameters parameters = new ModelParameters(web);
+        ModelEquations equations = new ModelEquations(web, parameters);
+        double[] biomass = {0.6, 0.4, 0.3, 0.1};
+
+        StabilityAnalyzer.Result result = new StabilityAnalyzer(equations)
+                .analyze(biomass, SimulationEventHandler.EventType.NONE);
+
+        double[][] jacobian = new double[4][4];
+        equations.computeMainStateJacobian(0, biomass, new double[4], jacobian);
+        EigenDecomposition decomposition = new EigenDecomposition(new Array2DRowRealMatrix(jacobian));
+        double[] expected = decomposition.getRealEigenvalues();
+        Arrays.sort(expected);
+        double[] actual = result.eigenvalueRealParts.clone();
+        Arrays.sort(actual);
+        assertArrayEquals(expected, actual, 1e-9);
+        assertEquals(actual[actual.length - 1], result.leadingEigenvalueRealPart, 0);
+    }
+
+    @Test
+    public void testOscillationAwayFromEquilibrium() {
+        FoodWeb web = new FoodWeb();
+        web.addProducerNode(0);
+        web.addConsumerNode(1);
+        web.addLink(0, 1);
+        ModelParameters parameters = new ModelParameters(web);
+        parameters.functionalResponseControl[1][0] = 0;
+        StabilityAnalyzer analyzer = new StabilityAnalyzer(new ModelEquations(web, parameters));
+
+        StabilityAnalyzer.Result result = analyzer.analyze(
+                new double[] {0.9, 0.01}, SimulationEventHandler.EventType.OSCILLATING_STEADY_STATE);
+        assertEquals(StabilityAnalyzer.Classification.LIMIT_CYCLE, result.classification);
+    }
+
+    @Test
+    public void testTotalExtinction() {
+        FoodWeb web = new FoodWeb();
+        web.addConsumerNode(0);
+        StabilityAnalyzer analyzer = new StabilityAnalyzer(new ModelEquations(web, new ModelParameters(web)));
+
+        StabilityAnalyzer.Result result = analyzer.analyze(
+                new double[] {0}, SimulationEventHandler.EventType.TOTAL_EXTINCTION);
+        assertEquals(0, result.nodeIds.length);
+        assertTrue(Double.isNaN(result.leadingEigenvalueRealPart));
+        assertEquals(StabilityAnalyzer.Classification.STABLE_EQUILIBRIUM, result.classification);
+    }
+}
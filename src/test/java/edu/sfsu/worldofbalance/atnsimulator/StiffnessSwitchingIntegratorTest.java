@@ -0,0 +1,36 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StiffnessSwitchingIntegratorTest {
+
+    @Test
+    public void testNonStiffSystemStaysExplicit() {
+        RosenbrockIntegratorTest.StiffLinearEquations equations = new RosenbrockIntegratorTest.StiffLinearEquations(2);
+        StiffnessSwitchingIntegrator integrator = new StiffnessSwitchingIntegrator(1e-12, 100, 1e-10, 1e-8);
+        double[] y0 = {1, 0};
+        double[] y = new double[2];
+        integrator.integrate(equations, 0, y0, 10, y);
+
+        assertEquals(0, integrator.getSwitchCount());
+        assertFalse(integrator.isStiff());
+        assertArrayEquals(equations.exactSolution(10, y0), y, 1e-8);
+    }
+
+    @Test
+    public void testSwitchesToImplicitWhenStiff() {
+        // The fast component decays quickly, after which the explicit method is limited by stability
+        RosenbrockIntegratorTest.StiffLinearEquations equations = new RosenbrockIntegratorTest.StiffLinearEquations(1e4);
+        StiffnessSwitchingIntegrator integrator = new StiffnessSwitchingIntegrator(1e-12, 100, 1e-10, 1e-8);
+        double[] y0 = {1, 0};
+        double[] y = new double[2];
+        integrator.integrate(equations, 0, y0, 10, y);
+
+        assertTrue(integrator.getSwitchCount() > 0);
+        assertTrue(integrator.isStiff());
+        assertArrayEquals(equations.exactSolution(10, y0), y, 1e-8);
+        assertTrue(equations.evaluations < 10000);
+    }
+}
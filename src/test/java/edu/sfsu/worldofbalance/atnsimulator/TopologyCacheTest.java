@@ -0,0 +1,95 @@
+package edu.sfsu.worldofbalance.atnsimulator;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TopologyCacheTest {
+
+    private static FoodWeb serengeti;
+
+    @BeforeClass
+    public static void setUp() {
+        Reader reader = new InputStreamReader(
+                TopologyCacheTest.class.getResourceAsStream("/foodwebs/serengeti.json"));
+        serengeti = FoodWeb.createFromJson(reader);
+    }
+
+    @Test
+    public void testTopologyMatchesSubweb() {
+        int[] nodeIds = {55, 3, 71};
+        FoodWebTopology topology = new TopologyCache(serengeti, 10).get(nodeIds);
+        FoodWeb subweb = serengeti.subweb(nodeIds);
+        assertEquals(subweb, topology.subweb);
+        assertEquals(subweb.normalizedCopy(nodeIds), topology.normalizedSubweb);
+        assertArrayEquals(nodeIds, topology.nodeIds);
+
+        LinkParameters links = new LinkParameters(
+                topology.normalizedSubweb, new ModelParameters(topology.normalizedSubweb));
+        assertArrayEquals(links.preyOffsets, topology.preyOffsets);
+        assertArrayEquals(links.prey, topology.prey);
+        assertArrayEquals(links.predatorOffsets, topology.predatorOffsets);
+        assertArrayEquals(links.predators, topology.predators);
+        assertArrayEquals(links.predatorLinks, topology.predatorLinks);
+    }
+
+    @Test
+    public void testHitReturnsSameTopology() {
+        TopologyCache cache = new TopologyCache(serengeti, 10);
+        int[] nodeIds = {3, 55};
+        FoodWebTopology topology = cache.get(nodeIds);
+        nodeIds[1] = 71;  // Changing the caller's array must not change the cached key
+        assertSame(topology, cache.get(new int[] {3, 55}));
+        assertNotSame(topology, cache.get(new int[] {55, 3}));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws InterruptedException {
+        TopologyCache cache = new TopologyCache(serengeti, 8);
+        FoodWebTopology kept = cache.get(new int[] {3});
+        for (int nodeId : new int[] {55, 71, 74, 80, 1, 2, 4, 5, 7}) {
+            Thread.sleep(1);
+            cache.get(new int[] {nodeId});
+            cache.get(new int[] {3});  // Keep node 3 the most recently used
+        }
+        assertTrue(cache.size() <= 8);
+        assertSame(kept, cache.get(new int[] {3}));
+    }
+
+    @Test
+    public void testSharedByThreads() throws InterruptedException {
+        TopologyCache cache = new TopologyCache(serengeti, 4);
+        int[][] nodeSets = {{3}, {3, 55}, {3, 55, 71}, {55, 71}, {71, 74}, {3, 74}};
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        int[] nodeIds = nodeSets[i % nodeSets.length];
+                        assertArrayEquals(nodeIds, cache.get(nodeIds).nodeIds);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertTrue(errors.isEmpty());
+        assertEquals(2000, cache.getHitCount() + cache.getMissCount());
+    }
+}